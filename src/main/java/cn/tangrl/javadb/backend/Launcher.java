@@ -9,6 +9,7 @@ import org.apache.commons.cli.ParseException;
 import cn.tangrl.javadb.backend.dm.DataManager;
 import cn.tangrl.javadb.backend.server.Server;
 import cn.tangrl.javadb.backend.tbm.TableManager;
+import cn.tangrl.javadb.backend.tbm.Vacuum;
 import cn.tangrl.javadb.backend.tm.TransactionManager;
 import cn.tangrl.javadb.backend.utils.Panic;
 import cn.tangrl.javadb.backend.vm.VersionManager;
@@ -85,6 +86,7 @@ public class Launcher {
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        Vacuum.start(tbm);
         new Server(port, tbm).start();
     }
 
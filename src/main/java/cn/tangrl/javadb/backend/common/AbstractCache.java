@@ -1,7 +1,7 @@
 package cn.tangrl.javadb.backend.common;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -149,8 +149,8 @@ public abstract class AbstractCache<T> {
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
+            // 遍历时会删除，所以遍历 key 的拷贝
+            for (long key : new ArrayList<>(cache.keySet())) {
                 T obj = cache.get(key);
                 releaseForCache(obj);
                 references.remove(key);
@@ -1,5 +1,7 @@
 package cn.tangrl.javadb.backend.dm;
 
+import java.util.List;
+
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
 import cn.tangrl.javadb.backend.dm.logger.Logger;
 import cn.tangrl.javadb.backend.dm.page.PageOne;
@@ -15,8 +17,30 @@ import cn.tangrl.javadb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long insert(long xid, long owner, byte[] data) throws Exception;
+    long insertNear(long xid, long uid, byte[] data) throws Exception;
     void close();
 
+    /**
+     * 以下方法供 vacuum 使用
+     * getPages：owner 拥有的所有页面
+     * scanPage：页中所有合法 DataItem 的 uid
+     * free：将 DataItem 设置为非法
+     * reclaim：回收页中非法 DataItem 的空间
+     */
+    List<Integer> getPages(long owner);
+    List<Long> scanPage(int pgno) throws Exception;
+    void free(long uid) throws Exception;
+    boolean reclaim(int pgno) throws Exception;
+
+    /**
+     * 以下方法供表的顺序扫描预读使用
+     * prefetch：在后台将页面读入缓存，并保持引用直到 unpin，页面已在预读时不重复读取
+     * unpin：放弃 prefetch 保持的引用，预读还没完成时等待完成
+     */
+    void prefetch(int pgno);
+    void unpin(int pgno);
+
     /**
      * 创建日志文件和db文件的工厂静态方法，返回 DataManagerImpl 对象
      * @param path
@@ -1,5 +1,20 @@
 package cn.tangrl.javadb.backend.dm;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.primitives.Bytes;
+
 import cn.tangrl.javadb.backend.common.AbstractCache;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItemImpl;
@@ -11,7 +26,9 @@ import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
 import cn.tangrl.javadb.backend.dm.pageIndex.PageIndex;
 import cn.tangrl.javadb.backend.dm.pageIndex.PageInfo;
 import cn.tangrl.javadb.backend.tm.TransactionManager;
+import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
 import cn.tangrl.javadb.backend.utils.Panic;
+import cn.tangrl.javadb.backend.utils.Parser;
 import cn.tangrl.javadb.backend.utils.Types;
 import cn.tangrl.javadb.common.Error;
 
@@ -43,6 +60,26 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 磁盘db文件的第一页对象
      */
     Page pageOne;
+    /**
+     * 所属者 -> 它拥有的页号，按页号递增，供 vacuum 遍历表的数据页
+     */
+    Map<Long, List<Integer>> ownerPages;
+    /**
+     * ownerPages 的互斥锁
+     */
+    Lock pagesLock;
+    /**
+     * 预读的页面，页号 -> 读入页面的任务，见 prefetch()
+     */
+    private final Map<Integer, Future<Page>> pinned = new ConcurrentHashMap<>();
+    /**
+     * 执行预读的后台线程
+     */
+    private final ExecutorService readAhead = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
      * 构造函数
@@ -56,6 +93,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.ownerPages = new HashMap<>();
+        this.pagesLock = new ReentrantLock();
     }
 
     /**
@@ -89,6 +128,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    /**
+     * 将有效数据包裹成 DataItem 并插入到属于 owner 的页中
+     * 优先追加在页尾，页尾放不下时复用 vacuum 回收的空洞
+     * @param xid
+     * @param owner
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         // 将有效数据包裹成DataItem
         byte[] raw = DataItem.wrapDataItemRaw(data);
         // 如果DataItem超过了一页可以放入的大小，抛出异常
@@ -100,47 +153,331 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         // 循环5次是为了避免一创建就被别的线程抢用的情况，若抢用了再创建。若五次都这样，则报错。
         PageInfo pi = null;
         for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
+            pi = pIndex.select(owner, raw.length);
             if (pi != null) {
                 break;
             } else {
                 // 如果找不到则创建一个新页，并将新页的数据添加到pageIndex中
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = pc.newPage(PageX.initRaw(owner));
+                addOwnerPage(owner, newPgno);
+                pIndex.add(owner, newPgno, PageX.MAX_FREE_SPACE);
             }
         }
         if(pi == null) {
             throw Error.DatabaseBusyException;
         }
+        long uid = insertInto(xid, owner, pi, raw);
+        if(uid == 0) {
+            throw Error.DatabaseBusyException;
+        }
+        return uid;
+    }
+
+    /**
+     * 将有效数据包裹成 DataItem，插入到 uid 所在的页面中，用于 HOT 更新
+     * 页面空间不足或正被其他线程占用时不插入，返回 0
+     * @param xid
+     * @param uid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insertNear(long xid, long uid, byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno);
+        long owner = PageX.getOwner(pg);
+        pg.release();
+        PageInfo pi = pIndex.remove(owner, pgno);
+        if(pi == null) {
+            return 0;
+        }
+        if(pi.freeSpace < raw.length) {
+            pIndex.add(owner, pgno, pi.freeSpace);
+            return 0;
+        }
+        return insertInto(xid, owner, pi, raw);
+    }
+
+    /**
+     * 将 DataItem 插入到已从 pageIndex 中取出的页面 pi 中，放不下时返回 0
+     * 2. 获取页面后，首先需要写入插入日志
+     * 3. 通过 pageX 插入数据，并返回插入位置的偏移
+     * 4. 最后需要将页面信息重新插入 pageIndex
+     * @param xid
+     * @param owner
+     * @param pi
+     * @param raw
+     * @return
+     * @throws Exception
+     */
+    private long insertInto(long xid, long owner, PageInfo pi, byte[] raw) throws Exception {
         // 2.获取页面后，首先需要写入插入日志
         Page pg = null;
-        int freeSpace = 0;
+        int freeSpace = pi.freeSpace;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-            // 3. 通过 pageX 插入数据，并返回插入位置的偏移
-            short offset = PageX.insert(pg, raw);
-
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
-
+            pg.lock();
+            try {
+                short offset = findSlot(pg, raw.length);
+                if(offset < 0) {
+                    return 0;
+                }
+                // 写入空洞且有剩余时，剩余部分作为新的空洞，其头部和数据一起写入并落日志
+                int remain = remainOf(pg, offset, raw.length);
+                byte[] toWrite = remain == 0 ? raw : Bytes.concat(raw, DataItem.wrapFreeRaw(remain));
+                byte[] log = Recover.insertLog(xid, pg, offset, toWrite);
+                logger.log(log);
+                // 3. 通过 pageX 插入数据，并返回插入位置的偏移
+                PageX.insert(pg, toWrite, offset);
+                freeSpace = getFreeSpace(pg);
+                return Types.addressToUid(pi.pgno, offset);
+            } finally {
+                pg.unlock();
+            }
         } finally {
             // 4. 最后需要将页面信息重新插入 pageIndex
             if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+                pg.release();
+            }
+            pIndex.add(owner, pi.pgno, freeSpace);
+        }
+    }
+
+    /**
+     * 在页中寻找能放下 length 字节的位置，需持有页锁
+     * 空洞只有在恰好放下，或剩余部分仍能放下一个空洞头部时才可用
+     * @param pg
+     * @param length
+     * @return 找不到时返回 -1
+     */
+    private short findSlot(Page pg, int length) {
+        short fso = PageX.getFSO(pg);
+        if(PageX.getFreeSpace(pg) >= length) {
+            return fso;
+        }
+        byte[] raw = pg.getData();
+        for(int offset = PageX.OF_DATA; offset < fso; offset += DataItem.getRawLength(raw, offset)) {
+            if(!DataItem.isRawFree(raw, offset)) continue;
+            int holeLength = DataItem.getRawLength(raw, offset);
+            if(holeLength == length || holeLength - length >= DataItem.HEADER_LENGTH) {
+                return (short)offset;
+            }
+        }
+        // PageIndex 记录的空闲空间是保守的，正常不会走到这里
+        return -1;
+    }
+
+    /**
+     * 在 offset 处写入 length 字节后，所在空洞剩余的字节数，写在页尾时为 0
+     * @param pg
+     * @param offset
+     * @param length
+     * @return
+     */
+    private int remainOf(Page pg, short offset, int length) {
+        if(offset == PageX.getFSO(pg)) {
+            return 0;
+        }
+        return DataItem.getRawLength(pg.getData(), offset) - length;
+    }
+
+    /**
+     * 页面可供一次插入使用的最大空间，即页尾空闲空间和最大空洞中的较大者，需持有页锁
+     * 空洞按减去一个头部长度计算，保证不超过这个值的插入一定能放下
+     * @param pg
+     * @return
+     */
+    private int getFreeSpace(Page pg) {
+        int freeSpace = PageX.getFreeSpace(pg);
+        byte[] raw = pg.getData();
+        short fso = PageX.getFSO(pg);
+        for(int offset = PageX.OF_DATA; offset < fso; offset += DataItem.getRawLength(raw, offset)) {
+            if(DataItem.isRawFree(raw, offset)) {
+                freeSpace = Math.max(freeSpace, DataItem.getRawLength(raw, offset) - DataItem.HEADER_LENGTH);
+            }
+        }
+        return freeSpace;
+    }
+
+    /**
+     * 记录 owner 拥有的新页面
+     * @param owner
+     * @param pgno
+     */
+    private void addOwnerPage(long owner, int pgno) {
+        pagesLock.lock();
+        try {
+            List<Integer> pages = ownerPages.get(owner);
+            if(pages == null) {
+                pages = new ArrayList<>();
+                ownerPages.put(owner, pages);
+            }
+            pages.add(pgno);
+        } finally {
+            pagesLock.unlock();
+        }
+    }
+
+    /**
+     * 获取 owner 拥有的所有页面的页号
+     * @param owner
+     * @return
+     */
+    @Override
+    public List<Integer> getPages(long owner) {
+        pagesLock.lock();
+        try {
+            List<Integer> pages = ownerPages.get(owner);
+            return pages == null ? new ArrayList<>() : new ArrayList<>(pages);
+        } finally {
+            pagesLock.unlock();
+        }
+    }
+
+    /**
+     * 扫描页面，返回页中所有合法 DataItem 的 uid
+     * @param pgno
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<Long> scanPage(int pgno) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            short fso = PageX.getFSO(pg);
+            for(int offset = PageX.OF_DATA; offset < fso; offset += DataItem.getRawLength(raw, offset)) {
+                if(DataItem.isRawValid(raw, offset)) {
+                    uids.add(Types.addressToUid(pgno, (short)offset));
+                }
+            }
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+        return uids;
+    }
+
+    /**
+     * 将 uid 对应的 DataItem 设置为非法，之后 read 将返回 null，空间在 reclaim 时才会回收
+     * 调用方需保证已没有事务会再访问这个 DataItem
+     * @param uid
+     * @throws Exception
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = read(uid);
+        if(di == null) {
+            return;
+        }
+        di.before();
+        DataItem.setDataItemRawInvalid(di.getRaw());
+        di.after(TransactionManagerImpl.SUPER_XID);
+        di.release();
+    }
+
+    /**
+     * 回收页面中所有非法 DataItem 的空间
+     * 相邻的非法 DataItem 和空洞合并成一个空洞，位于页尾的直接截断 FSO，之后将页面重新放回 pageIndex
+     * 每处修改只改写空洞的头部或 FSO，并以超级事务落更新日志
+     * 调用方需保证页中的非法 DataItem 已没有事务会再访问
+     * @param pgno
+     * @return 页面正被插入占用时返回 false，由调用方稍后重试
+     * @throws Exception
+     */
+    @Override
+    public boolean reclaim(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        long owner = PageX.getOwner(pg);
+        // 从 pageIndex 中取走页面，和插入互斥
+        PageInfo pi = pIndex.remove(owner, pgno);
+        if(pi == null) {
+            pg.release();
+            return false;
+        }
+        int freeSpace = pi.freeSpace;
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            short fso = PageX.getFSO(pg);
+            int offset = PageX.OF_DATA;
+            while(offset < fso) {
+                if(DataItem.isRawValid(raw, offset)) {
+                    offset += DataItem.getRawLength(raw, offset);
+                    continue;
+                }
+                // 找出从 offset 开始的连续一段非法 DataItem 和空洞
+                int end = offset;
+                while(end < fso && !DataItem.isRawValid(raw, end)) {
+                    end += DataItem.getRawLength(raw, end);
+                }
+                if(end == fso) {
+                    byte[] oldRaw = Parser.short2Byte(fso);
+                    logger.log(Recover.updateLog(TransactionManagerImpl.SUPER_XID, Types.addressToUid(pgno, (short)0), oldRaw, Parser.short2Byte((short)offset)));
+                    PageX.truncate(pg, (short)offset);
+                } else if(!DataItem.isRawFree(raw, offset) || DataItem.getRawLength(raw, offset) != end - offset) {
+                    byte[] oldRaw = new byte[DataItem.HEADER_LENGTH];
+                    System.arraycopy(raw, offset, oldRaw, 0, oldRaw.length);
+                    byte[] newRaw = DataItem.wrapFreeRaw(end - offset);
+                    logger.log(Recover.updateLog(TransactionManagerImpl.SUPER_XID, Types.addressToUid(pgno, (short)offset), oldRaw, newRaw));
+                    PageX.recoverUpdate(pg, newRaw, (short)offset);
+                }
+                offset = end;
             }
+            freeSpace = getFreeSpace(pg);
+        } finally {
+            pg.unlock();
+            pg.release();
+            pIndex.add(owner, pgno, freeSpace);
+        }
+        return true;
+    }
+
+    /**
+     * 在后台将页面读入 PageCache 并保持引用，顺序扫描处理前面的页面时，后面的页面已经读好
+     * 同一页面只预读一次，多个扫描共用，由先处理完的扫描 unpin，预读只是提示，提前释放不影响正确性
+     * @param pgno
+     */
+    @Override
+    public void prefetch(int pgno) {
+        pinned.computeIfAbsent(pgno, p -> readAhead.submit(() -> pc.getPage(p)));
+    }
+
+    /**
+     * 释放预读保持的页面引用，预读还没完成时等待完成，预读失败（例如缓存已满）时忽略
+     * @param pgno
+     */
+    @Override
+    public void unpin(int pgno) {
+        Future<Page> f = pinned.remove(pgno);
+        if(f == null) {
+            return;
+        }
+        try {
+            f.get().release();
+        } catch(ExecutionException e) {
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * 关闭资源
-     * 注意super的调用
+     * 注意super的调用，关闭前先等待预读结束，预读的页面随 PageCache 一起写回
      */
     @Override
     public void close() {
+        readAhead.shutdown();
+        try {
+            readAhead.awaitTermination(1, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pinned.clear();
         super.close();
         logger.close();
 
@@ -159,6 +496,18 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         logger.log(log);
     }
 
+    /**
+     * 为xid生成update日志，只包含data()中[from, to)这一段
+     * @param xid
+     * @param di
+     * @param from
+     * @param to
+     */
+    public void logDataItem(long xid, DataItem di, int from, int to) {
+        byte[] log = Recover.updateLog(xid, di, from, to);
+        logger.log(log);
+    }
+
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
@@ -204,6 +553,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 在打开已有文件时时读入PageOne，并验证正确性
+     * 文件格式与当前的格式不同时直接退出，不能用日志恢复
      * @return
      */
     boolean loadCheckPageOne() {
@@ -212,12 +562,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        if(!PageOne.checkFormat(pageOne)) {
+            Panic.panic(Error.BadDataFormatException);
+        }
         return PageOne.checkVc(pageOne);
     }
 
     /**
      * 初始化pageIndex对象
-     * 读取每页，利用页号和页的空闲空间来构建
+     * 读取每页，利用页号、页的所属者和页的空闲空间来构建
      */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
@@ -228,7 +581,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            long owner = PageX.getOwner(pg);
+            addOwnerPage(owner, i);
+            pIndex.add(owner, i, getFreeSpace(pg));
             pg.release();
         }
     }
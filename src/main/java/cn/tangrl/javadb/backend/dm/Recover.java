@@ -7,8 +7,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import com.google.common.primitives.Bytes;
-
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
 import cn.tangrl.javadb.backend.dm.logger.Logger;
@@ -16,8 +14,8 @@ import cn.tangrl.javadb.backend.dm.page.Page;
 import cn.tangrl.javadb.backend.dm.page.PageX;
 import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
 import cn.tangrl.javadb.backend.tm.TransactionManager;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Panic;
-import cn.tangrl.javadb.backend.utils.Parser;
 
 /**
  * 根据日志恢复数据库类
@@ -231,13 +229,64 @@ public class Recover {
      * @return
      */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
+        SubArray raw = di.getRaw();
         byte[] oldRaw = di.getOldRaw();
+        byte[] log = newUpdateLog(xid, di.getUid(), oldRaw);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW+oldRaw.length, oldRaw.length);
+        return log;
+    }
+
+    /**
+     * 将DataItem的data()中[from, to)这一段的修改包裹成updateLog的字节数组
+     * 日志的 uid 指向这一段在页面中的位置，恢复时与整个 DataItem 的日志一样处理
+     * @param xid
+     * @param di
+     * @param from
+     * @param to
+     * @return
+     */
+    public static byte[] updateLog(long xid, DataItem di, int from, int to) {
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        int begin = DataItem.HEADER_LENGTH + from;
+        int length = to - from;
+        byte[] log = new byte[OF_UPDATE_RAW + length*2];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putLong(log, OF_UPDATE_UID, di.getUid() + begin);
+        System.arraycopy(di.getOldRaw(), begin, log, OF_UPDATE_RAW, length);
+        System.arraycopy(raw.raw, raw.start+begin, log, OF_UPDATE_RAW+length, length);
+        return log;
+    }
+
+    /**
+     * 将页面上 uid 所指位置的一段修改包裹成updateLog的字节数组
+     * 用于 vacuum 修改空洞头部、回退 FSO 等不经过 DataItem 的页面修改，oldRaw 和 newRaw 长度必须相同
+     * @param xid
+     * @param uid 页号和页内偏移
+     * @param oldRaw
+     * @param newRaw
+     * @return
+     */
+    public static byte[] updateLog(long xid, long uid, byte[] oldRaw, byte[] newRaw) {
+        byte[] log = newUpdateLog(xid, uid, oldRaw);
+        System.arraycopy(newRaw, 0, log, OF_UPDATE_RAW+oldRaw.length, newRaw.length);
+        return log;
+    }
+
+    /**
+     * 分配updateLog的字节数组，写入日志头部和oldRaw，newRaw由调用方写入
+     * @param xid
+     * @param uid
+     * @param oldRaw
+     * @return
+     */
+    private static byte[] newUpdateLog(long xid, long uid, byte[] oldRaw) {
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length*2];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putLong(log, OF_UPDATE_UID, uid);
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        return log;
     }
 
     /**
@@ -247,8 +296,8 @@ public class Recover {
      */
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = ByteCodec.getLong(log, OF_XID);
+        long uid = ByteCodec.getLong(log, OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
@@ -311,17 +360,21 @@ public class Recover {
 
     /**
      * 将一个insert操作按inset日志的格式组织成一个byte数组
+     * offset 为数据写入的位置，可能是页的 FSO，也可能是一个已回收的空洞
      * @param xid
      * @param pg
+     * @param offset
      * @param raw
      * @return
      */
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    public static byte[] insertLog(long xid, Page pg, short offset, byte[] raw) {
+        byte[] log = new byte[OF_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        ByteCodec.putShort(log, OF_INSERT_OFFSET, offset);
+        System.arraycopy(raw, 0, log, OF_INSERT_RAW, raw.length);
+        return log;
     }
 
     /**
@@ -331,9 +384,9 @@ public class Recover {
      */
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.xid = ByteCodec.getLong(log, OF_XID);
+        li.pgno = ByteCodec.getInt(log, OF_INSERT_PGNO);
+        li.offset = ByteCodec.getShort(log, OF_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
@@ -1,13 +1,9 @@
 package cn.tangrl.javadb.backend.dm.dataItem;
 
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
-
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.DataManagerImpl;
 import cn.tangrl.javadb.backend.dm.page.Page;
-import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Types;
 
 /**
@@ -38,6 +34,15 @@ public interface DataItem {
      */
     void after(long xid);
 
+    /**
+     * 修改DataItem的后置步骤，只对data()中[from, to)这一段的修改落日志
+     * 调用方需保证这一段之外的数据没有被修改，用于只修改了一小部分数据的大 DataItem，如 B+ 树节点
+     * @param xid
+     * @param from
+     * @param to
+     */
+    void after(long xid, int from, int to);
+
     /**
      * 使用完 DataItem 后，也应当及时调用 release() 方法，释放掉 DataItem 的缓存
      */
@@ -63,6 +68,21 @@ public interface DataItem {
      */
     void rUnLock();
 
+    /**
+     * 乐观读，不加锁读取数据的用法：
+     * long stamp = tryOptimisticRead(); 读取数据; if(validate(stamp)) 使用数据; 否则加读锁重读
+     * 没有写者时整个过程没有任何原子写操作
+     * @return
+     */
+    long tryOptimisticRead();
+
+    /**
+     * 校验乐观读的戳记
+     * @param stamp
+     * @return
+     */
+    boolean validate(long stamp);
+
     /**
      * 获取Page对象
      * @return
@@ -93,9 +113,10 @@ public interface DataItem {
      * @return
      */
     public static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];
-        byte[] size = Parser.short2Byte((short)raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] di = new byte[DataItemImpl.OF_DATA + raw.length];
+        ByteCodec.putShort(di, DataItemImpl.OF_SIZE, (short)raw.length);
+        System.arraycopy(raw, 0, di, DataItemImpl.OF_DATA, raw.length);
+        return di;
     }
 
     /**
@@ -111,7 +132,7 @@ public interface DataItem {
         // 从offset处开始为dataitem
         // dataitem格式是[ValidFlag] [DataSize] [Data]
         // 取出dataitem的DataSize
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = ByteCodec.getShort(raw, offset+DataItemImpl.OF_SIZE);
         // 取出这个dataitem中的Data的结尾的相对位置
         short length = (short)(size + DataItemImpl.OF_DATA);
         // 生成uid
@@ -125,6 +146,62 @@ public interface DataItem {
      * @param raw
      */
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        raw[DataItemImpl.OF_VALID] = DataItemImpl.INVALID;
+    }
+
+    /**
+     * 设置共享数组中DataItem的ValidFlag为Invalid，需在 before() 和 after() 之间调用
+     * @param raw DataItem 的 getRaw()
+     */
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start+DataItemImpl.OF_VALID] = DataItemImpl.INVALID;
+    }
+
+    /**
+     * 判断页面数据 offset 处的 DataItem 是否合法
+     * @param raw 页面数据
+     * @param offset
+     * @return
+     */
+    public static boolean isRawValid(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == DataItemImpl.VALID;
+    }
+
+    /**
+     * 判断页面数据 offset 处的 DataItem 是否是已回收的空洞
+     * @param raw 页面数据
+     * @param offset
+     * @return
+     */
+    public static boolean isRawFree(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == DataItemImpl.FREE;
+    }
+
+    /**
+     * 获取页面数据 offset 处的 DataItem 的总长度（头部 + Data）
+     * @param raw 页面数据
+     * @param offset
+     * @return
+     */
+    public static int getRawLength(byte[] raw, int offset) {
+        return DataItemImpl.OF_DATA + ByteCodec.getShort(raw, offset+DataItemImpl.OF_SIZE);
     }
+
+    /**
+     * 生成一个总长度为 length 的空洞的头部
+     * 空洞只需要写入头部，Data 部分的旧内容无需清理
+     * @param length 空洞的总长度，不小于 DataItem 头部长度
+     * @return
+     */
+    public static byte[] wrapFreeRaw(int length) {
+        byte[] header = new byte[DataItemImpl.OF_DATA];
+        header[DataItemImpl.OF_VALID] = DataItemImpl.FREE;
+        ByteCodec.putShort(header, DataItemImpl.OF_SIZE, (short)(length - DataItemImpl.OF_DATA));
+        return header;
+    }
+
+    /**
+     * DataItem 头部长度，也是空洞的最小长度
+     */
+    public static final int HEADER_LENGTH = DataItemImpl.OF_DATA;
 }
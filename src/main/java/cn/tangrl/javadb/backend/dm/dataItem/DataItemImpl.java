@@ -1,8 +1,7 @@
 package cn.tangrl.javadb.backend.dm.dataItem;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.DataManagerImpl;
@@ -12,7 +11,7 @@ import cn.tangrl.javadb.backend.dm.page.Page;
  * DataItem 实现类
  * 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为已被 vacuum 回收的空洞
  * DataSize  2字节，标识Data的长度
  */
 public class DataItemImpl implements DataItem {
@@ -30,6 +29,15 @@ public class DataItemImpl implements DataItem {
      * Data 数据开始的起点
      */
     static final int OF_DATA = 3;
+    /**
+     * ValidFlag 的三种取值
+     * VALID：合法数据
+     * INVALID：被撤销或被 vacuum 判定死亡的数据，空间尚未回收
+     * FREE：已回收的空洞，可以被后续插入复用
+     */
+    static final byte VALID = 0;
+    static final byte INVALID = 1;
+    static final byte FREE = 2;
     /**
      * 存放DataItem的对象
      * 使用SubArray是为了取出共享数据方便
@@ -41,11 +49,16 @@ public class DataItemImpl implements DataItem {
      */
     private byte[] oldRaw;
     /**
-     * ReentrantReadWriteLock的读锁，允许多个线程读，会阻塞写进程
+     * DataItem 的锁，支持乐观读：读者先不加锁直接读，读完后校验期间没有写者，失败再加读锁重读
+     * 注意 StampedLock 不可重入，持有锁时不能再对同一个 DataItem 加锁
+     */
+    private StampedLock lock;
+    /**
+     * StampedLock的读锁视图，允许多个线程读，会阻塞写进程
      */
     private Lock rLock;
     /**
-     * ReentrantReadWriteLock的写锁，一个线程写时会阻塞所有读写进程
+     * StampedLock的写锁视图，一个线程写时会阻塞所有读写进程
      */
     private Lock wLock;
     /**
@@ -72,9 +85,9 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        lock = new StampedLock();
+        rLock = lock.asReadLock();
+        wLock = lock.asWriteLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -85,7 +98,7 @@ public class DataItemImpl implements DataItem {
      * @return
      */
     public boolean isValid() {
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return raw.raw[raw.start+OF_VALID] == VALID;
     }
 
     /**
@@ -143,6 +156,19 @@ public class DataItemImpl implements DataItem {
         wLock.unlock();
     }
 
+    /**
+     * 在修改完成后，只对data()中[from, to)这一段的修改落日志
+     * @param xid
+     * @param from
+     * @param to
+     */
+    @Override
+    public void after(long xid, int from, int to) {
+        dm.logDataItem(xid, this, from, to);
+        // 对写锁解锁
+        wLock.unlock();
+    }
+
     /**
      * 使用完 DataItem 后，也应当及时调用 release() 方法，释放掉 DataItem 的缓存（由 DM 缓存的 DataItem，基础AbstractCache实现）。
      */
@@ -183,6 +209,25 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    /**
+     * 开始一次乐观读，返回戳记，有写者持有锁时返回 0
+     * @return
+     */
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    /**
+     * 校验戳记之后没有写者修改过数据，成功则乐观读出的数据有效
+     * @param stamp
+     * @return
+     */
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     /**
      * 获取Page对象
      * @return
@@ -191,17 +191,18 @@ public class LoggerImpl implements Logger {
         ByteBuffer buf = ByteBuffer.wrap(log);
         // 涉及文件的读写都要加锁
         // 写入到文件中
+        // XChecksum 也要在锁内更新，否则并发写日志时会互相改动文件的 position
         lock.lock();
         try {
             fc.position(fc.size());
             fc.write(buf);
+            // 更新XChecksum
+            updateXChecksum(log);
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        // 更新XChecksum
-        updateXChecksum(log);
     }
 
     /**
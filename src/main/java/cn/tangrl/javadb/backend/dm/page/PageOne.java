@@ -3,6 +3,7 @@ package cn.tangrl.javadb.backend.dm.page;
 import java.util.Arrays;
 
 import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.RandomUtil;
 
 /**
@@ -11,6 +12,7 @@ import cn.tangrl.javadb.backend.utils.RandomUtil;
  * 在数据库正常关闭时，会将这串字节，拷贝到第一页的 108 ~ 115 字节。
  * 数据库在每次启动时，就会检查第一页两处的字节是否相同，以此来判断上一次是否正常关闭。
  * 如果是异常关闭，就需要执行数据的恢复流程。
+ * 116 ~ 119 字节是文件格式的版本号，创建时写入，打开时检查，见 checkFormat()。
  */
 public class PageOne {
     /**
@@ -21,6 +23,16 @@ public class PageOne {
      * 写入校验数据的长度
      */
     private static final int LEN_VC = 8;
+    /**
+     * 文件格式的版本号的位置
+     */
+    private static final int OF_FORMAT = OF_VC + 2*LEN_VC;
+    /**
+     * 当前的文件格式：页面的所有者（PageX）、DataItem 的空闲标志和表记录的定长布局（RowLayout）
+     * 页面、记录或索引的格式改变时加一，之前的版本创建的文件没有这个版本号（为 0），都不能再打开
+     * 2：哈希索引的头部加入了项数（HashIndex）
+     */
+    public static final int FORMAT = 2;
 
     /**
      * 初始化第一页
@@ -30,6 +42,7 @@ public class PageOne {
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setVcOpen(raw);
+        ByteCodec.putInt(raw, OF_FORMAT, FORMAT);
         return raw;
     }
 
@@ -80,6 +93,15 @@ public class PageOne {
         return checkVc(pg.getData());
     }
 
+    /**
+     * 文件格式的版本号是否与当前的格式相同
+     * @param pg
+     * @return
+     */
+    public static boolean checkFormat(Page pg) {
+        return ByteCodec.getInt(pg.getData(), OF_FORMAT) == FORMAT;
+    }
+
     /**
      * 判断传参raw byte数组的 100 ~ 107 字节 和  108 ~ 115 字节 是否相等
      * @param raw
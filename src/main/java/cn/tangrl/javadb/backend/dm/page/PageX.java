@@ -1,16 +1,16 @@
 package cn.tangrl.javadb.backend.dm.page;
 
-import java.util.Arrays;
-
 import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
-import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 
 /**
  * 存储在硬盘文件中的 普通页 管理类
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [Owner] [Data]
  * FreeSpaceOffset: 2字节 空闲数据开始的位置
+ * Owner: 8字节 页面所属者，表的数据页为表的 uid，其余（字段、索引节点等）为 0
  * FSO表示空闲位置的起点
+ * 同一页面只存放同一所属者的数据，vacuum 据此只扫描表自己的数据页
  */
 public class PageX {
     /**
@@ -18,9 +18,13 @@ public class PageX {
      */
     private static final short OF_FREE = 0;
     /**
-     * FSO占用的大小为2字节
+     * Owner数据在页中的起点位置，FSO占用的大小为2字节
+     */
+    private static final short OF_OWNER = 2;
+    /**
+     * 数据在页中的起点位置，Owner占用的大小为8字节
      */
-    private static final short OF_DATA = 2;
+    public static final short OF_DATA = OF_OWNER + 8;
     /**
      * 最大的页面空闲空间大小
      */
@@ -28,15 +32,34 @@ public class PageX {
 
     /**
      * 初始化页
-     * 设置FSO为FSO的大小
+     * 设置FSO为页头的大小
      * @return
      */
     public static byte[] initRaw() {
+        return initRaw(0);
+    }
+
+    /**
+     * 初始化属于 owner 的页
+     * @param owner
+     * @return
+     */
+    public static byte[] initRaw(long owner) {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw, OF_DATA);
+        ByteCodec.putLong(raw, OF_OWNER, owner);
         return raw;
     }
 
+    /**
+     * 获取页面的所属者
+     * @param pg
+     * @return
+     */
+    public static long getOwner(Page pg) {
+        return ByteCodec.getLong(pg.getData(), OF_OWNER);
+    }
+
     /**
      * 更新页的FSO
      * 将ofData写入到传参raw byte数组中的前两个字节中，即写入到pg的前两个字节中
@@ -44,7 +67,7 @@ public class PageX {
      * @param ofData
      */
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        ByteCodec.putShort(raw, OF_FREE, ofData);
     }
 
     /**
@@ -64,30 +87,33 @@ public class PageX {
      * @return
      */
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return ByteCodec.getShort(raw, OF_FREE);
     }
 
     /**
-     * 将raw插入pg中，返回插入位置
-     * 在写入之前获取 FSO，来确定写入的位置，并在写入之后更新 FSO。
+     * 将raw插入pg中的offset位置
+     * offset 可以是 FSO（追加在末尾），也可以是页中一个已回收的空洞；写入后 FSO 只会增大。
      * @param pg
      * @param raw
-     * @return
+     * @param offset
      */
-    public static short insert(Page pg, byte[] raw) {
-        // 设置页面为脏
+    public static void insert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, offset);
+    }
+
+    /**
+     * 截断页尾，将FSO回退到offset
+     * FSO 位于页的偏移 0 处，调用方需要以 (pgno, 0) 为 uid 为这次修改落更新日志
+     * @param pg
+     * @param offset
+     */
+    public static void truncate(Page pg, short offset) {
         pg.setDirty(true);
-        //
-        short offset = getFSO(pg.getData());
-        // 将传入的raw byte数组，插入到pg数据FSO开始的空闲位置
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        // 更新这个页的FSO
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        setFSO(pg.getData(), offset);
     }
 
     /**
-     * 利用FSO获取这个页的空闲空间
+     * 利用FSO获取这个页尾部的空闲空间
      * @param pg
      * @return
      */
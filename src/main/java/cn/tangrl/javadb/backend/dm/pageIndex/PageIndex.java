@@ -1,7 +1,10 @@
 package cn.tangrl.javadb.backend.dm.pageIndex;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,6 +19,8 @@ import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
  * List<PageInfo>[] lists
  * lists[i] 是一个数组，存储了有i个空闲区块的页面。
  * 每个区块大小为  PageCache.PAGE_SIZE / INTERVALS_NO
+ *
+ * 页面按所属者（owner，见 PageX）分组，插入只会选到同一所属者的页面
  */
 public class PageIndex {
     /**
@@ -31,26 +36,39 @@ public class PageIndex {
      */
     private Lock lock;
     /**
-     * 存放[[PageInfo，...],[]]
+     * owner -> 存放[[PageInfo，...],[]]
      * 下标表示空闲区块的数量
      * [PageInfo，...]表示拥有下标空闲区块数量的页的信息
      */
-    private List<PageInfo>[] lists;
+    private Map<Long, List<PageInfo>[]> owners;
 
     /**
      * 构造函数
-     * 忽略类型检查警告
      */
-    @SuppressWarnings("unchecked")
     public PageIndex() {
         // 创建锁
         lock = new ReentrantLock();
-        // 创建lists
-        // +1的原因是空闲区块数量为0-40
-        lists = new List[INTERVALS_NO+1];
-        for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+        owners = new HashMap<>();
+    }
+
+    /**
+     * 获取 owner 的 lists，不存在时创建
+     * 忽略类型检查警告
+     * @param owner
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private List<PageInfo>[] getLists(long owner) {
+        List<PageInfo>[] lists = owners.get(owner);
+        if(lists == null) {
+            // +1的原因是空闲区块数量为0-40
+            lists = new List[INTERVALS_NO+1];
+            for (int i = 0; i < INTERVALS_NO+1; i ++) {
+                lists[i] = new ArrayList<>();
+            }
+            owners.put(owner, lists);
         }
+        return lists;
     }
 
     /**
@@ -59,10 +77,50 @@ public class PageIndex {
      * @param freeSpace
      */
     public void add(int pgno, int freeSpace) {
+        add(0, pgno, freeSpace);
+    }
+
+    /**
+     * 将属于 owner 的页面信息添加到对应的list中
+     * @param owner
+     * @param pgno
+     * @param freeSpace
+     */
+    public void add(long owner, int pgno, int freeSpace) {
         lock.lock();
         try {
             int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            getLists(owner)[number].add(new PageInfo(pgno, freeSpace));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从 PageIndex 中取走指定的页面，效果和 select 相同：取走的页面不会再被插入选中，用完后需要重新 add
+     * 页面正在被其他线程使用（不在 PageIndex 中）时返回 null
+     * @param owner
+     * @param pgno
+     * @return
+     */
+    public PageInfo remove(long owner, int pgno) {
+        lock.lock();
+        try {
+            List<PageInfo>[] lists = owners.get(owner);
+            if(lists == null) {
+                return null;
+            }
+            for(List<PageInfo> list : lists) {
+                Iterator<PageInfo> it = list.iterator();
+                while(it.hasNext()) {
+                    PageInfo pi = it.next();
+                    if(pi.pgno == pgno) {
+                        it.remove();
+                        return pi;
+                    }
+                }
+            }
+            return null;
         } finally {
             lock.unlock();
         }
@@ -77,18 +135,34 @@ public class PageIndex {
      * @return
      */
     public PageInfo select(int spaceSize) {
+        return select(0, spaceSize);
+    }
+
+    /**
+     * 从属于 owner 的页面中选择
+     * @param owner
+     * @param spaceSize
+     * @return
+     */
+    public PageInfo select(long owner, int spaceSize) {
         // 对list操作要上锁
         lock.lock();
         try {
+            List<PageInfo>[] lists = getLists(owner);
             // 需要的区块数量
             int number = spaceSize / THRESHOLD;
             if(number < INTERVALS_NO) number ++;
             while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
+                // 最后一个区间里的页面空闲空间不一定都大于 spaceSize（例如需要几乎一整页时），需要逐个检查
+                Iterator<PageInfo> it = lists[number].iterator();
+                while(it.hasNext()) {
+                    PageInfo pi = it.next();
+                    if(pi.freeSpace >= spaceSize) {
+                        it.remove();
+                        return pi;
+                    }
                 }
-                return lists[number].remove(0);
+                number ++;
             }
             return null;
         } finally {
@@ -1,23 +1,44 @@
 package cn.tangrl.javadb.backend.im;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.DataManager;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
 import cn.tangrl.javadb.backend.im.Node.InsertAndSplitRes;
+import cn.tangrl.javadb.backend.im.Node.LeafDeleteRes;
 import cn.tangrl.javadb.backend.im.Node.LeafSearchRangeRes;
+import cn.tangrl.javadb.backend.im.Node.RebalanceRes;
 import cn.tangrl.javadb.backend.im.Node.SearchNextRes;
 import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.common.Error;
 
 // TODO 没有仔细看懂，大概过了一遍
 /**
  * B+树类 实现索引管理
+ * 并发控制采用 B-link 树的方式（乐观锁耦合）：
+ * 1. 读者只做乐观读，不加任何锁，读到的节点被并发修改时重读该节点（见 Node）；
+ * 2. 节点分裂时，后半部分移到新的右兄弟节点中，父节点稍后才插入分隔键。在此期间沿兄弟节点向右仍能找到所有的key，
+ *    所以下降时不需要锁住父节点，读者和写者在节点中找不到对应位置时都沿兄弟节点向右；
+ * 3. 写者只对要修改的那一个节点加写锁，分裂后释放，再到上一层插入分隔键。
+ * 根节点的 uid 和树高缓存在 volatile 的 root 中，只有生成新的根节点时才需要 bootLock。
+ * 删除后叶子节点过空时，与相邻的节点合并或重新分配（见 Node.rebalance()），父节点过空时继续向上，根节点只剩一个子节点时降低树高。
+ * 这些结构修改由 structLock 的写锁串行化，拿不到锁时跳过，留给之后的删除；插入向上层插入分隔键时持有读锁，所以结构修改期间内部节点不变。
+ * 合并后变为空的节点从父节点和兄弟链中摘下后，可能还有进行中的操作拿着它的 uid，用纪元推迟释放，见 enter()。
+ * 下降经过的内部节点解码后缓存在内存中（见 innerNode()），查找时不需要经过 DM 读取和解析，只读取叶子节点。
  */
 public class BPlusTree {
     /**
@@ -34,18 +55,126 @@ public class BPlusTree {
      */
     DataItem bootDataItem;
     /**
-     * 操作属性的锁
+     * 修改根节点时的锁
      */
     Lock bootLock;
+    /**
+     * 缓存的根节点，读取不需要加锁
+     */
+    private volatile Root root;
+    /**
+     * 节点的平衡因子，加载时由根节点的大小得到，新建节点时使用
+     */
+    int balance;
+    /**
+     * 合并节点、降低树高时持有写锁，插入向上层插入分隔键时持有读锁
+     */
+    private final ReadWriteLock structLock = new ReentrantReadWriteLock();
+    /**
+     * 按 key 分段的锁，串行化相同 key 的唯一插入，见 insertUnique()
+     */
+    private final Lock[] uniqueLocks = new Lock[64];
+    /**
+     * 当前的纪元，以及按进入时纪元的奇偶分开计数的进行中的操作数
+     */
+    private volatile int epoch;
+    private final AtomicInteger[] active = {new AtomicInteger(), new AtomicInteger()};
+    /**
+     * 已从树中摘下、等待释放的节点，按摘下时纪元的奇偶分开存放，只在持有 structLock 的写锁时访问
+     */
+    private final List<List<Long>> retired = new ArrayList<>();
+    /**
+     * 缓存的内部节点最多的个数，一个节点占满一整页时，1024 个内部节点可以覆盖约 25 万个叶子节点
+     */
+    static final int INNER_CACHE_SIZE = 1024;
+    /**
+     * 内部节点的 uid 到解码结果的缓存，节点被修改时移除，见 invalidate()
+     */
+    final Map<Long, InnerNode> innerCache = new ConcurrentHashMap<>();
+    /**
+     * 内部节点被修改的次数，解码后放入缓存时用来判断解码期间是否有修改
+     */
+    private final AtomicLong innerVersion = new AtomicLong();
 
     /**
-     * 创建新的b树，空的根结点
+     * 根节点的 uid 和它的高度（叶子节点的高度为 0），两者一起更新
+     * shrinks 为降低树高的次数，插入时用来判断下降时记下的上层节点是否还在树中
+     */
+    static class Root {
+        final long uid;
+        final int height;
+        final int shrinks;
+
+        Root(long uid, int height, int shrinks) {
+            this.uid = uid;
+            this.height = height;
+            this.shrinks = shrinks;
+        }
+    }
+
+    /**
+     * 解码后的内部节点，keys[i] 是子节点 sons[i] 中 key 的上界，只读
+     */
+    static class InnerNode {
+        final long[] keys;
+        final long[] sons;
+        final long sibling;
+
+        InnerNode(long[] keys, long[] sons, long sibling) {
+            this.keys = keys;
+            this.sons = sons;
+            this.sibling = sibling;
+        }
+
+        /**
+         * 与 Node.searchNext() 和 Node.searchNextLeft() 相同：第一个大于 key（left 时大于等于）的 key 对应的子节点，
+         * 都不满足时返回 0，应沿兄弟节点向右
+         * @param key
+         * @param left
+         * @return
+         */
+        long next(long key, boolean left) {
+            int lo = 0, hi = keys.length;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(keys[mid] < key || (!left && keys[mid] == key)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo < keys.length ? sons[lo] : 0;
+        }
+    }
+
+    /**
+     * 默认的平衡因子，一个节点占满一整页，使树的高度尽可能低
+     */
+    public static final int DEFAULT_BALANCE = Node.MAX_BALANCE;
+
+    /**
+     * 创建新的b树，空的根结点，使用默认的平衡因子
      * @param dm
      * @return
      * @throws Exception
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        return create(dm, DEFAULT_BALANCE);
+    }
+
+    /**
+     * 创建新的b树，空的根结点
+     * 平衡因子决定节点的大小，一个节点最多 balance*2 个key，取值范围为 [Node.MIN_BALANCE, Node.MAX_BALANCE]
+     * @param dm
+     * @param balance
+     * @return
+     * @throws Exception
+     */
+    public static long create(DataManager dm, int balance) throws Exception {
+        if(balance < Node.MIN_BALANCE || balance > Node.MAX_BALANCE) {
+            throw Error.InvalidBalanceException;
+        }
+        byte[] rawRoot = Node.newNilRootRaw(balance);
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
     }
@@ -65,65 +194,163 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        long rootUid = ByteCodec.getLong(sa.raw, sa.start);
+        Node root = Node.loadNode(t, rootUid);
+        t.balance = Node.getRawBalance(root.raw);
+        root.release();
+        // 沿最左边的子节点下降到叶子节点，得到树高
+        int height = 0;
+        long nodeUid = rootUid;
+        while(!t.isLeaf(nodeUid)) {
+            nodeUid = t.searchNext(nodeUid, Long.MIN_VALUE);
+            height ++;
+        }
+        t.root = new Root(rootUid, height, 0);
+        t.retired.add(new ArrayList<>());
+        t.retired.add(new ArrayList<>());
+        for(int i = 0; i < t.uniqueLocks.length; i ++) {
+            t.uniqueLocks[i] = new ReentrantLock();
+        }
         return t;
     }
 
     /**
      * 获取根结点的uid
-     * bootDataItem专门存放bootuid
      * @return
      */
-    private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
-        } finally {
-            bootLock.unlock();
+    long rootUid() {
+        return root.uid;
+    }
+
+    /**
+     * 解码后的内部节点，先查缓存，没有时从 DM 读出解码并放入缓存，叶子节点返回 null
+     * 解码是乐观读，读到的是某一时刻完整的节点；放入缓存后如果期间有内部节点被修改过，就移除，
+     * 修改者在落日志后先增加 innerVersion 再移除缓存（见 invalidate()），所以缓存中不会留下修改前的结果
+     * 缓存已满时不再放入，只解码
+     * @param nodeUid
+     * @return
+     * @throws Exception
+     */
+    InnerNode innerNode(long nodeUid) throws Exception {
+        InnerNode n = innerCache.get(nodeUid);
+        if(n != null) {
+            return n;
         }
+        long version = innerVersion.get();
+        Node node = Node.loadNode(this, nodeUid);
+        n = node.decodeInner();
+        node.release();
+        if(n != null && innerCache.size() < INNER_CACHE_SIZE) {
+            innerCache.put(nodeUid, n);
+            if(innerVersion.get() != version) {
+                innerCache.remove(nodeUid);
+            }
+        }
+        return n;
     }
 
     /**
-     * 更新 bootDataItem中的bootuid
-     * @param left
-     * @param right
-     * @param rightKey
+     * 内部节点 nodeUid 被修改或释放后，移除缓存的解码结果
+     * @param nodeUid
+     */
+    void invalidate(long nodeUid) {
+        innerVersion.incrementAndGet();
+        innerCache.remove(nodeUid);
+    }
+
+    /**
+     * 判断节点是否为叶子节点
+     * @param nodeUid
+     * @return
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private boolean isLeaf(long nodeUid) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        boolean isLeaf = node.isLeaf();
+        node.release();
+        return isLeaf;
+    }
+
+    /**
+     * 将节点 after 分裂出的节点 son 和分隔键 key 插入到第 level 层
+     * 如果 level 高于当前的根节点，说明分裂的是根节点那一层，生成新的根节点，更新 bootDataItem中的bootuid
+     * 否则根节点已经被别的线程更新过，从新的根节点下降到第 level 层插入
+     * 新根节点的左子节点总是原来的根节点（它是那一层最左边的节点），同一层中其他还没有插入分隔键的节点由兄弟节点链接找到
+     * @param level
+     * @param after
+     * @param son
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    private InsertRes insertAbove(int level, long after, long son, long key) throws Exception {
+        Root r;
         bootLock.lock();
         try {
-            // rootRaw是一个node，是dataitem的data
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            // 会找到一个页面插入
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            r = root;
+            if(r.height < level) {
+                // rootRaw是一个node，是dataitem的data
+                byte[] rootRaw = Node.newRootRaw(r.uid, son, key, balance);
+                // 会找到一个页面插入
+                long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+                bootDataItem.before();
+                SubArray diRaw = bootDataItem.data();
+                ByteCodec.putLong(diRaw.raw, diRaw.start, newRootUid);
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                root = new Root(newRootUid, level, r.shrinks);
+                return new InsertRes();
+            }
         } finally {
             bootLock.unlock();
         }
+        long nodeUid = r.uid;
+        for(int h = r.height; h > level; h --) {
+            nodeUid = searchNext(nodeUid, key);
+        }
+        return insertSon(nodeUid, after, son, key);
     }
 
     /**
-     * 在 nodeUid 的node中，搜索key关键字，找到叶节点上的uid（即关键字为key的uid dataitem）
+     * 从 nodeUid 的node开始向下，找到可能包含key的最左边的叶子节点的uid
+     * 分裂时相同的 key 可能同时留在左右两个节点中，所以用 searchNextLeft()，从这个叶子节点开始再沿兄弟节点向右查找
      * @param nodeUid
      * @param key
      * @return
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    long searchLeaf(long nodeUid, long key) throws Exception {
+        while(true) {
+            InnerNode node = innerNode(nodeUid);
+            if(node == null) {
+                return nodeUid;
+            }
+            long next = node.next(key, true);
+            nodeUid = next != 0 ? next : node.sibling;
+        }
+    }
 
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    /**
+     * 从根节点下降到可能包含key的最左边的叶子节点，与 searchLeaf() 相同
+     * 节点所在的层不会改变，按根节点的高度下降，不需要读取叶子节点判断是否到达
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    long searchLeaf(long key) throws Exception {
+        Root r = root;
+        long nodeUid = r.uid;
+        for(int h = r.height; h > 0; ) {
+            InnerNode node = innerNode(nodeUid);
+            long next = node.next(key, true);
+            if(next != 0) {
+                h --;
+                nodeUid = next;
+            } else {
+                nodeUid = node.sibling;
+            }
         }
+        return nodeUid;
     }
 
     /**
@@ -135,11 +362,26 @@ public class BPlusTree {
      */
     private long searchNext(long nodeUid, long key) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
-            node.release();
-            if(res.uid != 0) return res.uid;
-            nodeUid = res.siblingUid;
+            InnerNode node = innerNode(nodeUid);
+            long next = node.next(key, false);
+            if(next != 0) return next;
+            nodeUid = node.sibling;
+        }
+    }
+
+    /**
+     * 在 nodeUid 的node中，搜索可能包含key的最左边的子节点，与 searchNext() 相同，key 等于分隔键时走左边
+     * @param nodeUid
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    private long searchNextLeft(long nodeUid, long key) throws Exception {
+        while(true) {
+            InnerNode node = innerNode(nodeUid);
+            long next = node.next(key, true);
+            if(next != 0) return next;
+            nodeUid = node.sibling;
         }
     }
 
@@ -155,108 +397,498 @@ public class BPlusTree {
 
     /**
      * 范围搜索，返回满足的uids，即 DataItem 列表
+     * 结果全部放在列表中，数据量大时应使用 cursor()
      * @param leftKey
      * @param rightKey
      * @return
      * @throws Exception
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        // 找到叶子节点uid
-        long leafUid = searchLeaf(rootUid, leftKey);
+        Cursor cursor = cursor(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
-        // 在叶子节点找范围内的uids
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
+        while(cursor.next()) {
+            uids.add(cursor.uid());
         }
         return uids;
     }
 
+    /**
+     * 范围搜索，返回 [leftKey, rightKey] 范围的游标，按 key 的顺序逐个读取 uid
+     * @param leftKey
+     * @param rightKey
+     * @return
+     * @throws Exception
+     */
+    public Cursor cursor(long leftKey, long rightKey) throws Exception {
+        int e = enter();
+        try {
+            // 找到叶子节点uid
+            long leafUid = searchLeaf(leftKey);
+            return new TreeCursor(this, leftKey, rightKey, leafUid, e);
+        } finally {
+            exit(e);
+        }
+    }
+
+    /**
+     * 树中最大的 key，沿 key 为 Long.MAX_VALUE 的路径下降，再沿兄弟节点走到最后一个叶子节点
+     * 取最后一个非空的叶子节点中最大的 key，树为空时返回 null
+     * @return
+     * @throws Exception
+     */
+    public Long lastKey() throws Exception {
+        int e = enter();
+        try {
+            long leafUid = searchLeaf(Long.MAX_VALUE);
+            Long last = null;
+            long[] keys = new long[0], uids = new long[0];
+            while(leafUid != 0) {
+                Node leaf = Node.loadNode(this, leafUid);
+                try {
+                    if(keys.length < leaf.capacity()) {
+                        keys = new long[leaf.capacity()];
+                        uids = new long[leaf.capacity()];
+                    }
+                    LeafSearchRangeRes res = leaf.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE, keys, uids);
+                    if(res.noUids > 0) {
+                        last = keys[res.noUids-1];
+                    }
+                    leafUid = res.siblingUid;
+                } finally {
+                    leaf.release();
+                }
+            }
+            return last;
+        } finally {
+            exit(e);
+        }
+    }
+
     /**
      * 插入
+     * 从根节点下降到叶子节点并记下每一层经过的节点，叶子节点分裂后把分隔键插入到上一层记下的节点中（必要时向右移动），直到不再分裂
+     * 下降之后树高降低过时，记下的上层节点可能已不在树中，改为从当前的根节点下降到每一层插入
+     * 叶子节点中的键值对按 (key, uid) 排序：先下降到可能包含 key 的最右边的叶子节点，(key, uid) 会插在它的最前面时，
+     * 左边的叶子节点中可能还有更大的 uid，这时改为沿最左边的路径下降，再向右找到插入的位置（见 Node.insertAndSplit()）
      * @param key
      * @param uid
      * @throws Exception
      */
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        // 插到根节点上
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        insert(key, uid, null);
+    }
+
+    /**
+     * 唯一索引的插入，已有与之冲突的记录时不插入，返回 false
+     * 冲突检查在叶子节点的写锁下进行（见 Node.checkUnique()），与插入在同一次下降中完成；
+     * 叶子节点中的检查不完整时，用游标检查所有相同的 key 后再插入。
+     * 同一个 key 的唯一插入由 uniqueLocks 串行化，检查和插入之间不会有另一个相同 key 的插入。
+     * @param key
+     * @param uid
+     * @param check
+     * @return
+     * @throws Exception
+     */
+    public boolean insertUnique(long key, long uid, UniqueCheck check) throws Exception {
+        Lock lock = uniqueLocks[(int)(key ^ (key >>> 32)) & (uniqueLocks.length-1)];
+        lock.lock();
+        try {
+            return insert(key, uid, check);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean insert(long key, long uid, UniqueCheck check) throws Exception {
+        int e = enter();
+        try {
+            Root r = root;
+            long[] path = new long[r.height+1];
+            long nodeUid = r.uid;
+            for(int level = r.height; level > 0; level --) {
+                path[level] = nodeUid;
+                nodeUid = searchNext(nodeUid, key);
+            }
+            // 插到叶子节点上
+            InsertRes res = insertAndSplit(nodeUid, uid, key, check, r.height > 0);
+            if(res.conflict) {
+                return false;
+            }
+            if(res.unsure || (res.left && check != null)) {
+                Cursor cursor = new TreeCursor(this, key, key, searchLeaf(key), e);
+                while(cursor.next()) {
+                    if(check.conflicts(cursor.uid())) {
+                        return false;
+                    }
+                }
+                if(res.unsure) {
+                    res = insertAndSplit(nodeUid, uid, key, null, r.height > 0);
+                }
+            }
+            if(res.left) {
+                nodeUid = r.uid;
+                for(int level = r.height; level > 0; level --) {
+                    path[level] = nodeUid;
+                    nodeUid = searchNextLeft(nodeUid, key);
+                }
+                res = insertAndSplit(nodeUid, uid, key, null, false);
+            }
+            if(res.newNode == 0) {
+                return true;
+            }
+            structLock.readLock().lock();
+            try {
+                boolean stale = root.shrinks != r.shrinks;
+                for(int level = 1; res.newNode != 0; level ++) {
+                    if(!stale && level <= r.height) {
+                        res = insertSon(path[level], res.splitNode, res.newNode, res.newKey);
+                    } else {
+                        res = insertAbove(level, res.splitNode, res.newNode, res.newKey);
+                    }
+                }
+            } finally {
+                structLock.readLock().unlock();
+            }
+            return true;
+        } finally {
+            exit(e);
         }
     }
 
     /**
-     * 存放插入的结果
+     * 存放插入的结果，分裂时 splitNode 为分裂的节点，newNode 为分裂出的节点
      */
     class InsertRes {
-        long newNode, newKey;
+        long splitNode, newNode, newKey;
+        boolean conflict, unsure, left;
     }
 
     /**
-     * 插入key，uid到nodeUid节点上
+     * 在内部节点 nodeUid 所在的一层中，把子节点 after 分裂出的节点 son 插在它后面（见 Node.insertSonAndSplit()），必要时向右移动
      * @param nodeUid
-     * @param uid
+     * @param after
+     * @param son
      * @param key
      * @return
      * @throws Exception
      */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        InsertRes res = null;
-        // 如果当前节点是叶子节点，调用 insertAndSplit 方法。
-        if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            // 如果当前节点是内部节点，递归地插入键值对，并在需要时分裂节点。
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+    private InsertRes insertSon(long nodeUid, long after, long son, long key) throws Exception {
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            InsertAndSplitRes iasr = node.insertSonAndSplit(son, key, after);
+            node.release();
+            if(iasr.siblingUid != 0) {
+                nodeUid = iasr.siblingUid;
             } else {
-                res = new InsertRes();
+                InsertRes res = new InsertRes();
+                res.splitNode = nodeUid;
+                res.newNode = iasr.newSon;
+                res.newKey = iasr.newKey;
+                return res;
             }
         }
-        return res;
     }
 
     /**
-     * 插入并分割
+     * 插入并分割，checkLeft 见 Node.insertAndSplit()，向右移动过之后左边的节点中不会再有更大的键值对，不再检查
      * @param nodeUid
      * @param uid
      * @param key
+     * @param check
+     * @param checkLeft
      * @return
      * @throws Exception
      */
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long key, UniqueCheck check, boolean checkLeft) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            InsertAndSplitRes iasr = node.insertAndSplit(uid, key, check, checkLeft);
             node.release();
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
+                checkLeft = false;
             } else {
                 InsertRes res = new InsertRes();
+                res.splitNode = nodeUid;
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.conflict = iasr.conflict;
+                res.unsure = iasr.unsure;
+                res.left = iasr.left;
                 return res;
             }
         }
     }
 
+    /**
+     * 删除键值对 (key, uid)，返回是否找到并删除
+     * @param key
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        return replace(key, uid, 0);
+    }
+
+    /**
+     * 将键值对 (key, uid) 替换为 (key, newUid)，newUid 为 0 时删除，返回是否找到
+     * 从可能包含 key 的最左边的叶子开始，沿兄弟节点向右查找；删除后叶子节点过空时尝试合并或重新分配
+     * (key, newUid) 按顺序不一定在同一个叶子节点中时（见 Node.leafReplace()），先插入 (key, newUid) 再删除 (key, uid)，
+     * 两步之间并发的查找可能同时读到两项，它们指向同一条记录（版本链的链首和链上的版本），不会漏掉记录
+     * @param key
+     * @param uid
+     * @param newUid
+     * @return
+     * @throws Exception
+     */
+    public boolean replace(long key, long uid, long newUid) throws Exception {
+        LeafDeleteRes res = null;
+        long nodeUid;
+        int e = enter();
+        try {
+            nodeUid = searchLeaf(key);
+            while(nodeUid != 0) {
+                Node leaf = Node.loadNode(this, nodeUid);
+                res = leaf.leafReplace(uid, key, newUid);
+                leaf.release();
+                if(res.deleted || res.elsewhere) {
+                    break;
+                }
+                nodeUid = res.siblingUid;
+            }
+        } finally {
+            exit(e);
+        }
+        if(nodeUid == 0) {
+            return false;
+        }
+        if(res.elsewhere) {
+            insert(key, newUid);
+            return delete(key, uid);
+        }
+        if(res.underflow && root.height > 0 && structLock.writeLock().tryLock()) {
+            try {
+                rebalance(key, nodeUid);
+                reclaim();
+            } finally {
+                structLock.writeLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 处理叶子节点 leafUid 过空的情况，调用方持有 structLock 的写锁
+     * 先从根节点按 key 下降，记下每一层经过的节点 path[h] 和它左边的节点 lefts[h]（最左边时为 0，不确定时为 -1）；
+     * 再自底向上，在父节点中找到过空的节点，合并或重新分配，父节点也过空时继续向上；到达根节点后尝试降低树高。
+     * 持有写锁时没有插入在修改内部节点，内部节点不变，叶子节点仍可能被并发地插入、删除和分裂
+     * @param key
+     * @param leafUid
+     * @throws Exception
+     */
+    private void rebalance(long key, long leafUid) throws Exception {
+        Root r = root;
+        long[] path = new long[r.height+1];
+        long[] lefts = new long[r.height+1];
+        path[r.height] = r.uid;
+        for(int h = r.height; h > 0; h --) {
+            while(true) {
+                Node node = Node.loadNode(this, path[h]);
+                SearchNextRes res = node.searchNextLeft(key);
+                int kth = res.uid != 0 ? node.findSon(res.uid) : -1;
+                long left = kth > 0 ? node.kthSon(kth-1) : 0;
+                node.release();
+                if(res.uid == 0) {
+                    lefts[h] = path[h];
+                    path[h] = res.siblingUid;
+                    continue;
+                }
+                path[h-1] = res.uid;
+                lefts[h-1] = kth > 0 ? left : lastSon(lefts[h]);
+                break;
+            }
+        }
+        long child = leafUid;
+        for(int h = 0; h < r.height; h ++) {
+            // 在第 h+1 层找到 child 所在的父节点，父节点中第一个 key 已大于 key 时不再向右
+            long parentUid = path[h+1], left = lefts[h+1];
+            Node parent;
+            int kth;
+            while(true) {
+                parent = Node.loadNode(this, parentUid);
+                kth = parent.findSon(child);
+                if(kth >= 0) {
+                    break;
+                }
+                long sibling = parent.noKeys() == 0 || parent.kthKey(0) <= key ? parent.sibling() : 0;
+                parent.release();
+                if(sibling == 0) {
+                    return;
+                }
+                left = parentUid;
+                parentUid = sibling;
+            }
+            RebalanceRes res;
+            try {
+                res = parent.rebalance(kth);
+            } finally {
+                parent.release();
+            }
+            if(res == null) {
+                return;
+            }
+            if(res.removed != 0) {
+                unlink(res.removed, res.leftSon != 0 ? res.leftSon : lastSon(left));
+            }
+            if(h+1 == r.height) {
+                if(res.noKeys == 1) {
+                    shrink();
+                }
+                return;
+            }
+            if(!res.underflow) {
+                return;
+            }
+            child = parentUid;
+        }
+    }
+
+    /**
+     * 节点 nodeUid 的最后一个子节点，nodeUid 为 0 时返回 0，为 -1 或空节点时返回 -1（不确定）
+     * @param nodeUid
+     * @return
+     * @throws Exception
+     */
+    private long lastSon(long nodeUid) throws Exception {
+        if(nodeUid == 0 || nodeUid == -1) {
+            return nodeUid;
+        }
+        Node node = Node.loadNode(this, nodeUid);
+        try {
+            int noKeys = node.noKeys();
+            return noKeys == 0 ? -1 : node.kthSon(noKeys-1);
+        } finally {
+            node.release();
+        }
+    }
+
+    /**
+     * 把合并后变为空的节点从兄弟链中摘下，之后等待释放
+     * 从 left 开始向右找到兄弟节点为它的节点（持有写锁时只有叶子节点会分裂，最多向右几步），改为指向它的兄弟节点；
+     * left 为 0 时它是这一层最左边的节点，已经没有节点指向它；left 为 -1 或找不到时留在兄弟链中，查找经过时向右跳过
+     * @param nodeUid
+     * @param left
+     * @throws Exception
+     */
+    private void unlink(long nodeUid, long left) throws Exception {
+        if(left == -1) {
+            return;
+        }
+        if(left != 0) {
+            Node node = Node.loadNode(this, nodeUid);
+            long sibling = node.sibling();
+            node.release();
+            while(true) {
+                if(left == 0 || left == nodeUid) {
+                    return;
+                }
+                Node l = Node.loadNode(this, left);
+                boolean ok = l.replaceSibling(nodeUid, sibling);
+                long next = ok ? 0 : l.sibling();
+                l.release();
+                if(ok) {
+                    break;
+                }
+                left = next;
+            }
+        }
+        retired.get(epoch & 1).add(nodeUid);
+    }
+
+    /**
+     * 根节点是只有一个子节点的内部节点时，以这个子节点为新的根节点，调用方持有 structLock 的写锁
+     * 旧的根节点等待释放；持有写锁时没有插入在向上插入分隔键，这时上一层的分裂都已经插入了根节点，根节点那一层不会有未插入的节点
+     * @throws Exception
+     */
+    private void shrink() throws Exception {
+        while(true) {
+            Root r = root;
+            if(r.height == 0) {
+                return;
+            }
+            Node node = Node.loadNode(this, r.uid);
+            int noKeys = node.noKeys();
+            long son = node.kthSon(0);
+            node.release();
+            if(noKeys != 1) {
+                return;
+            }
+            bootLock.lock();
+            try {
+                bootDataItem.before();
+                SubArray diRaw = bootDataItem.data();
+                ByteCodec.putLong(diRaw.raw, diRaw.start, son);
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                root = new Root(son, r.height-1, r.shrinks+1);
+            } finally {
+                bootLock.unlock();
+            }
+            retired.get(epoch & 1).add(r.uid);
+        }
+    }
+
+    /**
+     * 开始一次访问节点的操作，返回当前的纪元，结束时调用 exit()
+     * 从树中摘下的节点放入摘下时纪元的等待列表；纪元从 e 推进到 e+1 时（见 reclaim()），要求纪元 e-1 进入的操作都已结束，
+     * 这时释放纪元 e-1 摘下的节点：之后还能拿到它们的只有纪元 e 及以后进入的操作，而这些操作开始时它们已经不在树中。
+     * 一次操作中从根节点出发读到的节点，都在这次操作进入之后才被摘下，至少要再推进两次纪元才会释放；
+     * 游标在两次调用之间不处于操作中，纪元变化后不再使用记下的兄弟节点
+     * @return
+     */
+    int enter() {
+        while(true) {
+            int e = epoch;
+            active[e & 1].incrementAndGet();
+            if(epoch == e) {
+                return e;
+            }
+            active[e & 1].decrementAndGet();
+        }
+    }
+
+    /**
+     * 结束 enter() 开始的操作
+     * @param e
+     */
+    void exit(int e) {
+        active[e & 1].decrementAndGet();
+    }
+
+    /**
+     * 纪元 e-1 进入的操作都已结束时，释放纪元 e-1 摘下的节点，回收它们所在页面的空间，并推进纪元，调用方持有 structLock 的写锁
+     * @throws Exception
+     */
+    private void reclaim() throws Exception {
+        int e = epoch;
+        if(active[(e+1) & 1].get() != 0) {
+            return;
+        }
+        List<Long> nodes = retired.get((e+1) & 1);
+        Set<Integer> pages = new HashSet<>();
+        for(long uid : nodes) {
+            invalidate(uid);
+            dm.free(uid);
+            pages.add((int)(uid >>> 32));
+        }
+        nodes.clear();
+        for(int pgno : pages) {
+            // 页面正被插入占用时不回收，空间留到这个页面下一次回收
+            dm.reclaim(pgno);
+        }
+        epoch = e+1;
+    }
+
     /**
      * 关闭 B+ 树，释放资源。
      */
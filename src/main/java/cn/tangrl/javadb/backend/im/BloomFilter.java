@@ -0,0 +1,97 @@
+package cn.tangrl.javadb.backend.im;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 索引 key 的布隆过滤器，只保存在内存中，用于在等值查找前判断 key 一定不存在，从而不必访问索引
+ * 每个 key 占 BITS_PER_KEY 位，用 NO_HASHES 个哈希函数，误判率约为 1%。
+ * 哈希函数由 HashIndex.hash() 的高低 32 位组合得到：h1 + i*h2。
+ * 布隆过滤器不能删除 key，删除只记下次数；删除过多或插入超过容量后误判率会升高，需要重新建立（见 needsRebuild()）。
+ * put() 和 mightContain() 可以并发调用。
+ */
+public class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+    static final int NO_HASHES = 7;
+    static final int MIN_CAPACITY = 1024;
+
+    private final AtomicLongArray bits;
+    private final long noBits;
+    private final long capacity;
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+
+    /**
+     * 创建能容纳 capacity 个 key 的布隆过滤器，容量至少为 MIN_CAPACITY
+     * @param capacity
+     */
+    public BloomFilter(long capacity) {
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        int noWords = (int)((this.capacity*BITS_PER_KEY + 63) / 64);
+        this.bits = new AtomicLongArray(noWords);
+        this.noBits = (long)noWords * 64;
+    }
+
+    /**
+     * 加入一个 key
+     * @param key
+     */
+    public void put(long key) {
+        long h = HashIndex.hash(key);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for(int i = 1; i <= NO_HASHES; i ++) {
+            long bit = bitOf(h1 + i*h2);
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            if((bits.get(word) & mask) == 0) {
+                bits.getAndAccumulate(word, mask, (a, b) -> a | b);
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    /**
+     * key 是否可能存在，返回 false 时 key 一定没有加入过
+     * @param key
+     * @return
+     */
+    public boolean mightContain(long key) {
+        long h = HashIndex.hash(key);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for(int i = 1; i <= NO_HASHES; i ++) {
+            long bit = bitOf(h1 + i*h2);
+            if((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long bitOf(int combined) {
+        return (combined & 0xffffffffL) % noBits;
+    }
+
+    /**
+     * 记下一次删除，key 对应的位仍然保留
+     */
+    public void remove() {
+        removed.incrementAndGet();
+    }
+
+    /**
+     * 已加入的 key 的个数（包括重复的 key）
+     * @return
+     */
+    public long size() {
+        return added.get();
+    }
+
+    /**
+     * 是否需要重新建立：插入超过了容量，或删除的 key 超过了插入的四分之一
+     * @return
+     */
+    public boolean needsRebuild() {
+        long a = added.get();
+        return a > capacity || removed.get()*4 > a;
+    }
+}
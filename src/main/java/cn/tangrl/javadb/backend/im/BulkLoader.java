@@ -0,0 +1,373 @@
+package cn.tangrl.javadb.backend.im;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import cn.tangrl.javadb.backend.common.SubArray;
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
+import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.common.Error;
+
+/**
+ * B+树的批量加载类，用于在已有的大量数据上创建索引，以及数据的恢复和导入
+ * 逐个调用 BPlusTree.insert() 时，每个键值对都要从根节点下降、记录节点的修改日志、分裂节点；
+ * 批量加载先将所有 (key, uid) 排序，再自底向上按顺序一层层地写出节点：
+ * 1. add() 收集键值对，内存中超过 runSize 个时排序后写入临时文件（外部排序的一个顺串）；
+ * 2. build() 将各个顺串多路归并，按顺序填满叶子节点，每写完一个节点就把 (节点uid, 节点中最小的key) 交给上一层，
+ *    上一层同样按顺序填满内部节点，最后只剩一个节点的那一层就是根节点。
+ * 节点只填到 FILL_PERCENT，给之后的插入留出空间；节点只有插入日志，以及设置前一个节点的兄弟节点时一条 8 字节的修改日志。
+ * 得到的树与逐个插入得到的树结构相同，之后可以正常地插入、删除。
+ */
+public class BulkLoader {
+    /**
+     * 内存中最多缓存的键值对数量，超过后排序写入临时文件
+     */
+    private static final int DEFAULT_RUN_SIZE = 1 << 20;
+    /**
+     * 节点的填充率，百分比
+     */
+    private static final int FILL_PERCENT = 90;
+
+    DataManager dm;
+    /**
+     * 节点的平衡因子
+     */
+    private int balance;
+    /**
+     * 每个节点填入的键值对数量
+     */
+    private int fill;
+    private int runSize;
+    /**
+     * 内存中的键值对，按 [key0][uid0][key1][uid1]... 存放
+     */
+    private long[] pairs;
+    /**
+     * 内存中键值对的数量
+     */
+    private int size;
+    /**
+     * 已写入临时文件的顺串
+     */
+    private List<File> runs;
+
+    /**
+     * 创建批量加载对象，使用默认的平衡因子
+     * @param dm
+     * @return
+     * @throws Exception
+     */
+    public static BulkLoader create(DataManager dm) throws Exception {
+        return create(dm, BPlusTree.DEFAULT_BALANCE);
+    }
+
+    /**
+     * 创建批量加载对象
+     * @param dm
+     * @param balance
+     * @return
+     * @throws Exception
+     */
+    public static BulkLoader create(DataManager dm, int balance) throws Exception {
+        return new BulkLoader(dm, balance, DEFAULT_RUN_SIZE);
+    }
+
+    BulkLoader(DataManager dm, int balance, int runSize) throws Exception {
+        if(balance < Node.MIN_BALANCE || balance > Node.MAX_BALANCE) {
+            throw Error.InvalidBalanceException;
+        }
+        this.dm = dm;
+        this.balance = balance;
+        this.fill = Math.max(1, Math.min(balance*2*FILL_PERCENT/100, balance*2-1));
+        this.runSize = runSize;
+        this.pairs = new long[2*Math.min(runSize, 1024)];
+        this.runs = new ArrayList<>();
+    }
+
+    /**
+     * 加入一个键值对，不要求有序
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void add(long key, long uid) throws Exception {
+        if(size == runSize) {
+            spill();
+        }
+        if(2*size == pairs.length) {
+            long[] tmp = new long[2*Math.min(size*2, runSize)];
+            System.arraycopy(pairs, 0, tmp, 0, 2*size);
+            pairs = tmp;
+        }
+        pairs[2*size] = key;
+        pairs[2*size+1] = uid;
+        size ++;
+    }
+
+    /**
+     * 构建B+树，返回 bootUid，之后用 BPlusTree.load() 加载
+     * @return
+     * @throws Exception
+     */
+    public long build() throws Exception {
+        Level leaves = new Level(true);
+        try {
+            if(runs.isEmpty()) {
+                sort(pairs, 0, size-1);
+                for(int i = 0; i < size; i ++) {
+                    leaves.add(pairs[2*i+1], pairs[2*i]);
+                }
+            } else {
+                spill();
+                merge(leaves);
+            }
+        } finally {
+            for(File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            pairs = null;
+        }
+        long rootUid = leaves.finish();
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+    }
+
+    /**
+     * 将内存中的键值对排序后写入临时文件
+     * @throws Exception
+     */
+    private void spill() throws Exception {
+        sort(pairs, 0, size-1);
+        File run = File.createTempFile("javadb-bulk", ".run");
+        run.deleteOnExit();
+        runs.add(run);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for(int i = 0; i < 2*size; i ++) {
+                out.writeLong(pairs[i]);
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * 多路归并所有的顺串，按顺序交给叶子节点层
+     * @param leaves
+     * @throws Exception
+     */
+    private void merge(Level leaves) throws Exception {
+        PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> a.key != b.key ? Long.compare(a.key, b.key) : Long.compare(a.uid, b.uid));
+        List<Run> opened = new ArrayList<>();
+        try {
+            for(File file : runs) {
+                Run run = new Run(file);
+                opened.add(run);
+                if(run.next()) {
+                    queue.add(run);
+                }
+            }
+            while(!queue.isEmpty()) {
+                Run run = queue.poll();
+                leaves.add(run.uid, run.key);
+                if(run.next()) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            for(Run run : opened) {
+                run.in.close();
+            }
+        }
+    }
+
+    /**
+     * 一个顺串的读取者
+     */
+    private static class Run {
+        DataInputStream in;
+        long key, uid;
+
+        Run(File file) throws Exception {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean next() throws Exception {
+            try {
+                key = in.readLong();
+            } catch(EOFException e) {
+                return false;
+            }
+            uid = in.readLong();
+            return true;
+        }
+    }
+
+    /**
+     * B+树的一层，按顺序接收子节点（叶子节点层接收键值对），填满一个节点就写出
+     */
+    private class Level {
+        boolean leaf;
+        /**
+         * 上一层，这一层写出第一个节点时创建
+         */
+        Level parent;
+        /**
+         * 正在填充的节点
+         */
+        SubArray raw;
+        int noKeys;
+        /**
+         * 正在填充的节点中最小的 key
+         */
+        long lowKey;
+        /**
+         * 这一层上一个写出的节点
+         */
+        long prevUid;
+
+        Level(boolean leaf) {
+            this.leaf = leaf;
+            newNode();
+        }
+
+        private void newNode() {
+            int size = Node.nodeSize(balance);
+            raw = new SubArray(new byte[size], 0, size);
+            Node.setRawIsLeaf(raw, leaf);
+            noKeys = 0;
+        }
+
+        /**
+         * 加入一项：叶子节点层是 (uid, key)；内部节点层是 (子节点uid, 子节点中最小的key)
+         * 内部节点中第 i 项的 key 是第 i+1 个子节点中最小的 key，即第 i 个子节点的上界，所以在下一个子节点到来时才设置
+         * @param son
+         * @param key
+         * @throws Exception
+         */
+        void add(long son, long key) throws Exception {
+            if(noKeys == fill) {
+                if(!leaf) {
+                    Node.setRawKthKey(raw, key, noKeys-1);
+                }
+                flush();
+            }
+            if(noKeys == 0) {
+                lowKey = key;
+            }
+            if(!leaf && noKeys > 0) {
+                Node.setRawKthKey(raw, key, noKeys-1);
+            }
+            Node.setRawKthSon(raw, son, noKeys);
+            if(leaf) {
+                Node.setRawKthKey(raw, key, noKeys);
+            }
+            noKeys ++;
+        }
+
+        /**
+         * 写出正在填充的节点，设置前一个节点的兄弟节点，并交给上一层
+         * @throws Exception
+         */
+        private void flush() throws Exception {
+            long uid = write();
+            if(prevUid != 0) {
+                setSibling(prevUid, uid);
+            }
+            prevUid = uid;
+            if(parent == null) {
+                parent = new Level(false);
+            }
+            parent.add(uid, lowKey);
+            newNode();
+        }
+
+        private long write() throws Exception {
+            Node.setRawNoKeys(raw, noKeys);
+            return dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+        }
+
+        /**
+         * 结束这一层，返回根节点的uid
+         * 最右边的内部节点的最后一个 key 是 MAX_VALUE；只写出了一个节点的那一层是根节点
+         * @return
+         * @throws Exception
+         */
+        long finish() throws Exception {
+            if(!leaf) {
+                Node.setRawKthKey(raw, Long.MAX_VALUE, noKeys-1);
+            }
+            if(parent == null) {
+                return write();
+            }
+            flush();
+            return parent.finish();
+        }
+    }
+
+    /**
+     * 设置节点的兄弟节点，只对这 8 个字节落日志
+     * @param nodeUid
+     * @param sibling
+     * @throws Exception
+     */
+    private void setSibling(long nodeUid, long sibling) throws Exception {
+        DataItem di = dm.read(nodeUid);
+        di.before();
+        Node.setRawSibling(di.data(), sibling);
+        di.after(TransactionManagerImpl.SUPER_XID, Node.SIBLING_OFFSET, Node.SIBLING_OFFSET+8);
+        di.release();
+    }
+
+    /**
+     * 按 (key, uid) 对 pairs 中第 lo 到第 hi 个键值对快速排序
+     * @param a
+     * @param lo
+     * @param hi
+     */
+    static void sort(long[] a, int lo, int hi) {
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long pk = a[2*mid], pu = a[2*mid+1];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(compare(a[2*i], a[2*i+1], pk, pu) < 0) i ++;
+                while(compare(a[2*j], a[2*j+1], pk, pu) > 0) j --;
+                if(i <= j) {
+                    swap(a, i, j);
+                    i ++;
+                    j --;
+                }
+            }
+            // 递归处理较小的一边，较大的一边继续循环，栈的深度不超过 log(n)
+            if(j - lo < hi - i) {
+                sort(a, lo, j);
+                lo = i;
+            } else {
+                sort(a, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static int compare(long k1, long u1, long k2, long u2) {
+        return k1 != k2 ? Long.compare(k1, k2) : Long.compare(u1, u2);
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long k = a[2*i], u = a[2*i+1];
+        a[2*i] = a[2*j];
+        a[2*i+1] = a[2*j+1];
+        a[2*j] = k;
+        a[2*j+1] = u;
+    }
+}
@@ -0,0 +1,28 @@
+package cn.tangrl.javadb.backend.im;
+
+/**
+ * 索引上的游标，逐个返回满足条件的 uid，由 BPlusTree.cursor() 和 HashIndex.cursor() 创建
+ * 用法：
+ * Cursor cursor = tree.cursor(leftKey, rightKey);
+ * while(cursor.next()) { long uid = cursor.uid(); ... }
+ */
+public interface Cursor {
+    /**
+     * 移到下一个 uid，没有更多的 uid 时返回 false
+     * @return
+     * @throws Exception
+     */
+    boolean next() throws Exception;
+
+    /**
+     * 当前的 uid，在 next() 返回 true 之后调用
+     * @return
+     */
+    long uid();
+
+    /**
+     * 当前 uid 在索引中的 key，在 next() 返回 true 之后调用
+     * @return
+     */
+    long key();
+}
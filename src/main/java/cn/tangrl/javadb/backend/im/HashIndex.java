@@ -0,0 +1,463 @@
+package cn.tangrl.javadb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cn.tangrl.javadb.backend.common.SubArray;
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
+import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
+
+/**
+ * 线性哈希索引，只支持等值查找，每次查找只读一个桶（没有溢出时就是一个 DataItem）
+ * 1. 桶：[Overflow][Key0][Uid0][Key1][Uid1]...，共 BUCKET_SLOTS 个槽，uid 为 0 的槽是空的，
+ *    插入只写一个空槽，删除只清空一个槽，都只对这 16 个字节落日志；桶满时挂上溢出桶；
+ * 2. 桶的编号：key 的哈希值取低位，桶数为 INITIAL_BUCKETS*2^level + next，编号小于 next 的桶已经分裂过，多取一位；
+ * 3. 分裂：项数超过桶数的 MAX_LOAD 倍时，分裂编号为 next 的桶（不一定是溢出的那个），把哈希值多一位为 1 的项移到新桶中，
+ *    next 加一，一轮分裂完后 level 加一。桶数随项数线性增长；同一个 key 的项总在一个桶中，分裂不能缩短它们的溢出链，
+ *    所以不按溢出分裂，否则重复的 key 每次插入都会多出一个桶；
+ * 4. 目录：桶编号到桶 uid 的映射，分段存放，每段 SEGMENT_SIZE 个 uid；头部（bootUid 对应的 DataItem）存放
+ *    [Level][Next][Count][Segment0]...[SegmentN]。目录在加载时读入内存，查找时不需要读取。
+ *    项数 Count 在内存中维护，只在分裂时写回头部，重新加载后可能偏少，只会推迟之后的分裂。
+ * 查找、插入、删除持有 structLock 的读锁，只锁要读写的桶；分裂持有写锁。
+ * 分裂时先写好新桶和目录，再更新头部，最后才从旧桶中删除移走的项：中途崩溃时，移走的项仍能在新桶或旧桶中找到。
+ */
+public class HashIndex {
+    static final int INITIAL_BUCKETS = 4;
+    static final int BUCKET_SLOTS = 64;
+    static final int SEGMENT_SIZE = 512;
+    static final int MAX_SEGMENTS = 256;
+    /**
+     * 平均每个桶的项数超过它时分裂，即装载因子 3/4
+     */
+    static final int MAX_LOAD = BUCKET_SLOTS*3/4;
+
+    private static final int OF_SEGMENTS = 16;
+    private static final int HEADER_SIZE = OF_SEGMENTS + 8*MAX_SEGMENTS;
+    private static final int BUCKET_SIZE = 8 + 16*BUCKET_SLOTS;
+
+    DataManager dm;
+    private long bootUid;
+    private DataItem header;
+    private final ReadWriteLock structLock = new ReentrantReadWriteLock();
+    /**
+     * 桶编号到桶 uid 的映射，只在持有写锁时修改
+     */
+    private long[] buckets;
+    private int level, next;
+    /**
+     * 索引中的项数
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * 项数超过了 MAX_LOAD 倍的桶数，需要分裂
+     */
+    private volatile boolean splitPending;
+
+    /**
+     * 创建一个空的哈希索引，返回 bootUid，之后用 load() 加载
+     * @param dm
+     * @return
+     * @throws Exception
+     */
+    public static long create(DataManager dm) throws Exception {
+        byte[] segment = new byte[8*SEGMENT_SIZE];
+        for(int i = 0; i < INITIAL_BUCKETS; i ++) {
+            long bucket = dm.insert(TransactionManagerImpl.SUPER_XID, new byte[BUCKET_SIZE]);
+            ByteCodec.putLong(segment, 8*i, bucket);
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        ByteCodec.putLong(header, OF_SEGMENTS, dm.insert(TransactionManagerImpl.SUPER_XID, segment));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, header);
+    }
+
+    /**
+     * 加载哈希索引，读入目录
+     * @param bootUid
+     * @param dm
+     * @return
+     * @throws Exception
+     */
+    public static HashIndex load(long bootUid, DataManager dm) throws Exception {
+        HashIndex h = new HashIndex();
+        h.dm = dm;
+        h.bootUid = bootUid;
+        h.header = dm.read(bootUid);
+        SubArray raw = h.header.data();
+        h.level = ByteCodec.getInt(raw.raw, raw.start);
+        h.next = ByteCodec.getInt(raw.raw, raw.start+4);
+        h.count.set(ByteCodec.getLong(raw.raw, raw.start+8));
+        int noBuckets = h.noBuckets();
+        h.buckets = new long[Math.max(noBuckets, 16)];
+        for(int s = 0; s*SEGMENT_SIZE < noBuckets; s ++) {
+            DataItem segment = dm.read(ByteCodec.getLong(raw.raw, raw.start+OF_SEGMENTS+8*s));
+            SubArray sr = segment.data();
+            for(int i = 0; i < SEGMENT_SIZE && s*SEGMENT_SIZE+i < noBuckets; i ++) {
+                h.buckets[s*SEGMENT_SIZE+i] = ByteCodec.getLong(sr.raw, sr.start+8*i);
+            }
+            segment.release();
+        }
+        return h;
+    }
+
+    public long bootUid() {
+        return bootUid;
+    }
+
+    int noBuckets() {
+        return (INITIAL_BUCKETS << level) + next;
+    }
+
+    /**
+     * key 的哈希值，打散 key 的各位，使相邻的 key 落在不同的桶中
+     * @param key
+     * @return
+     */
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * key 所在的桶的编号，调用方持有 structLock
+     * @param key
+     * @return
+     */
+    private int bucketOf(long key) {
+        long h = hash(key);
+        int b = (int)(h & ((INITIAL_BUCKETS << level) - 1));
+        if(b < next) {
+            b = (int)(h & ((INITIAL_BUCKETS << (level+1)) - 1));
+        }
+        return b;
+    }
+
+    private static int slotOffset(int i) {
+        return 8 + 16*i;
+    }
+
+    /**
+     * 等值查找，返回 key 对应的所有 uid
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public List<Long> search(long key) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        structLock.readLock().lock();
+        try {
+            long uid = buckets[bucketOf(key)];
+            while(uid != 0) {
+                DataItem di = dm.read(uid);
+                di.rLock();
+                try {
+                    SubArray raw = di.data();
+                    for(int i = 0; i < BUCKET_SLOTS; i ++) {
+                        int off = raw.start + slotOffset(i);
+                        long u = ByteCodec.getLong(raw.raw, off+8);
+                        if(u != 0 && ByteCodec.getLong(raw.raw, off) == key) {
+                            uids.add(u);
+                        }
+                    }
+                    uid = ByteCodec.getLong(raw.raw, raw.start);
+                } finally {
+                    di.rUnLock();
+                    di.release();
+                }
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+        return uids;
+    }
+
+    /**
+     * 等值查找的游标
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public Cursor cursor(long key) throws Exception {
+        List<Long> uids = search(key);
+        return new Cursor() {
+            int pos = -1;
+
+            @Override
+            public boolean next() {
+                return ++ pos < uids.size();
+            }
+
+            @Override
+            public long uid() {
+                return uids.get(pos);
+            }
+
+            @Override
+            public long key() {
+                return key;
+            }
+        };
+    }
+
+    /**
+     * 插入 (key, uid)，写入桶链中第一个空槽，都满时挂上新的溢出桶；项数超过 MAX_LOAD 倍的桶数时之后分裂一个桶
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void insert(long key, long uid) throws Exception {
+        structLock.readLock().lock();
+        try {
+            long bucket = buckets[bucketOf(key)];
+            while(true) {
+                DataItem di = dm.read(bucket);
+                di.before();
+                SubArray raw = di.data();
+                int i = 0;
+                while(i < BUCKET_SLOTS && ByteCodec.getLong(raw.raw, raw.start+slotOffset(i)+8) != 0) {
+                    i ++;
+                }
+                if(i < BUCKET_SLOTS) {
+                    ByteCodec.putLong(raw.raw, raw.start+slotOffset(i), key);
+                    ByteCodec.putLong(raw.raw, raw.start+slotOffset(i)+8, uid);
+                    di.after(TransactionManagerImpl.SUPER_XID, slotOffset(i), slotOffset(i)+16);
+                    di.release();
+                    break;
+                }
+                long ov = ByteCodec.getLong(raw.raw, raw.start);
+                if(ov == 0) {
+                    byte[] b = new byte[BUCKET_SIZE];
+                    ByteCodec.putLong(b, slotOffset(0), key);
+                    ByteCodec.putLong(b, slotOffset(0)+8, uid);
+                    // 溢出桶尽量放在同一页中，放不下时再另找页面
+                    ov = dm.insertNear(TransactionManagerImpl.SUPER_XID, bucket, b);
+                    if(ov == 0) {
+                        ov = dm.insert(TransactionManagerImpl.SUPER_XID, b);
+                    }
+                    ByteCodec.putLong(raw.raw, raw.start, ov);
+                    di.after(TransactionManagerImpl.SUPER_XID, 0, 8);
+                    di.release();
+                    break;
+                }
+                di.unBefore();
+                di.release();
+                bucket = ov;
+            }
+            if(count.incrementAndGet() > (long)noBuckets()*MAX_LOAD) {
+                splitPending = true;
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+        if(splitPending) {
+            split();
+        }
+    }
+
+    /**
+     * 删除 (key, uid)，返回是否找到
+     * @param key
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        return replace(key, uid, 0);
+    }
+
+    /**
+     * 将 (key, uid) 替换为 (key, newUid)，newUid 为 0 时删除，返回是否找到
+     * @param key
+     * @param uid
+     * @param newUid
+     * @return
+     * @throws Exception
+     */
+    public boolean replace(long key, long uid, long newUid) throws Exception {
+        structLock.readLock().lock();
+        try {
+            long bucket = buckets[bucketOf(key)];
+            while(bucket != 0) {
+                DataItem di = dm.read(bucket);
+                di.before();
+                SubArray raw = di.data();
+                for(int i = 0; i < BUCKET_SLOTS; i ++) {
+                    int off = raw.start + slotOffset(i);
+                    if(ByteCodec.getLong(raw.raw, off+8) == uid && ByteCodec.getLong(raw.raw, off) == key) {
+                        ByteCodec.putLong(raw.raw, off, newUid == 0 ? 0 : key);
+                        ByteCodec.putLong(raw.raw, off+8, newUid);
+                        di.after(TransactionManagerImpl.SUPER_XID, slotOffset(i), slotOffset(i)+16);
+                        di.release();
+                        if(newUid == 0) {
+                            count.decrementAndGet();
+                        }
+                        return true;
+                    }
+                }
+                bucket = ByteCodec.getLong(raw.raw, raw.start);
+                di.unBefore();
+                di.release();
+            }
+            return false;
+        } finally {
+            structLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分裂编号为 next 的桶：哈希值多取一位后为 1 的项移到新桶 next + INITIAL_BUCKETS*2^level 中
+     * 其他线程已经分裂过、项数不再超过 MAX_LOAD 倍的桶数时不分裂；目录已满时不再分裂，只用溢出桶
+     * @throws Exception
+     */
+    private void split() throws Exception {
+        structLock.writeLock().lock();
+        try {
+            if(!splitPending) {
+                return;
+            }
+            splitPending = false;
+            int newBucket = noBuckets();
+            if(count.get() <= (long)newBucket*MAX_LOAD || newBucket >= SEGMENT_SIZE*MAX_SEGMENTS) {
+                return;
+            }
+            long highBit = (long)INITIAL_BUCKETS << level;
+            // 读出旧桶链中所有的项
+            List<Long> chain = new ArrayList<>();
+            long[] moved = new long[0], kept = new long[0];
+            int noMoved = 0, noKept = 0;
+            for(long uid = buckets[next]; uid != 0; ) {
+                chain.add(uid);
+                DataItem di = dm.read(uid);
+                SubArray raw = di.data();
+                for(int i = 0; i < BUCKET_SLOTS; i ++) {
+                    int off = raw.start + slotOffset(i);
+                    long key = ByteCodec.getLong(raw.raw, off), u = ByteCodec.getLong(raw.raw, off+8);
+                    if(u == 0) continue;
+                    if((hash(key) & highBit) != 0) {
+                        if(2*noMoved == moved.length) moved = Arrays.copyOf(moved, Math.max(32, moved.length*2));
+                        moved[2*noMoved] = key;
+                        moved[2*noMoved+1] = u;
+                        noMoved ++;
+                    } else {
+                        if(2*noKept == kept.length) kept = Arrays.copyOf(kept, Math.max(32, kept.length*2));
+                        kept[2*noKept] = key;
+                        kept[2*noKept+1] = u;
+                        noKept ++;
+                    }
+                }
+                uid = ByteCodec.getLong(raw.raw, raw.start);
+                di.release();
+            }
+            // 1. 写出新桶链
+            long newUid = writeChain(moved, noMoved);
+            // 2. 写入目录
+            addToDirectory(newBucket, newUid);
+            // 3. 更新头部，之后查找移走的项会找到新桶，同时写回项数
+            int oldBucket = next;
+            if(next + 1 == highBit) {
+                level ++;
+                next = 0;
+            } else {
+                next ++;
+            }
+            header.before();
+            SubArray hr = header.data();
+            ByteCodec.putInt(hr.raw, hr.start, level);
+            ByteCodec.putInt(hr.raw, hr.start+4, next);
+            ByteCodec.putLong(hr.raw, hr.start+8, count.get());
+            header.after(TransactionManagerImpl.SUPER_XID, 0, 16);
+            // 4. 重写旧桶链，只保留留下的项，多余的溢出桶留在链上，之后插入时再使用
+            rewriteChain(chain, kept, noKept);
+            assert buckets[oldBucket] == chain.get(0);
+        } finally {
+            structLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 将 n 个项写入新的桶链，返回第一个桶的uid
+     * @param pairs
+     * @param n
+     * @return
+     * @throws Exception
+     */
+    private long writeChain(long[] pairs, int n) throws Exception {
+        int noBuckets = Math.max(1, (n + BUCKET_SLOTS - 1) / BUCKET_SLOTS);
+        long overflow = 0;
+        // 从链尾开始写，写前一个桶时已知道后一个桶的uid
+        for(int b = noBuckets-1; b >= 0; b --) {
+            byte[] raw = new byte[BUCKET_SIZE];
+            ByteCodec.putLong(raw, 0, overflow);
+            for(int i = 0; i < BUCKET_SLOTS && b*BUCKET_SLOTS+i < n; i ++) {
+                int p = b*BUCKET_SLOTS + i;
+                ByteCodec.putLong(raw, slotOffset(i), pairs[2*p]);
+                ByteCodec.putLong(raw, slotOffset(i)+8, pairs[2*p+1]);
+            }
+            overflow = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+        }
+        return overflow;
+    }
+
+    /**
+     * 用 n 个项重写已有的桶链，保留链上的溢出桶
+     * @param chain
+     * @param pairs
+     * @param n
+     * @throws Exception
+     */
+    private void rewriteChain(List<Long> chain, long[] pairs, int n) throws Exception {
+        int p = 0;
+        for(long uid : chain) {
+            DataItem di = dm.read(uid);
+            di.before();
+            SubArray raw = di.data();
+            for(int i = 0; i < BUCKET_SLOTS; i ++) {
+                int off = raw.start + slotOffset(i);
+                ByteCodec.putLong(raw.raw, off, p < n ? pairs[2*p] : 0);
+                ByteCodec.putLong(raw.raw, off+8, p < n ? pairs[2*p+1] : 0);
+                if(p < n) p ++;
+            }
+            di.after(TransactionManagerImpl.SUPER_XID);
+            di.release();
+        }
+    }
+
+    /**
+     * 将新桶加入目录，需要时创建新的目录段
+     * @param bucket
+     * @param uid
+     * @throws Exception
+     */
+    private void addToDirectory(int bucket, long uid) throws Exception {
+        int s = bucket / SEGMENT_SIZE, i = bucket % SEGMENT_SIZE;
+        SubArray hr = header.data();
+        if(i == 0) {
+            byte[] segment = new byte[8*SEGMENT_SIZE];
+            ByteCodec.putLong(segment, 0, uid);
+            long segUid = dm.insert(TransactionManagerImpl.SUPER_XID, segment);
+            header.before();
+            ByteCodec.putLong(hr.raw, hr.start+OF_SEGMENTS+8*s, segUid);
+            header.after(TransactionManagerImpl.SUPER_XID, OF_SEGMENTS+8*s, OF_SEGMENTS+8+8*s);
+        } else {
+            DataItem segment = dm.read(ByteCodec.getLong(hr.raw, hr.start+OF_SEGMENTS+8*s));
+            segment.before();
+            SubArray sr = segment.data();
+            ByteCodec.putLong(sr.raw, sr.start+8*i, uid);
+            segment.after(TransactionManagerImpl.SUPER_XID, 8*i, 8*i+8);
+            segment.release();
+        }
+        if(bucket == buckets.length) {
+            buckets = Arrays.copyOf(buckets, buckets.length*2);
+        }
+        buckets[bucket] = uid;
+    }
+}
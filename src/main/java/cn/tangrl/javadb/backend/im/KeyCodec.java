@@ -0,0 +1,185 @@
+package cn.tangrl.javadb.backend.im;
+
+/**
+ * 索引 key 的编码 工具类
+ * B+树的 key 是 8 字节的 long，按有符号数比较。编码保持值的顺序：a <= b 时 key(a) <= key(b)，范围查找和按索引顺序读取才是正确的。
+ * 1. 整数：直接作为 long，有符号比较就是数值的顺序（等价于翻转符号位后按字节无符号比较），负数也在正确的位置；
+ * 2. 字符串：取 UTF-8 编码的前 8 个字节，不足 8 个字节时补 0，按大端序得到无符号数后翻转符号位，
+ *    这样有符号比较就是字节的字典序，也就是码点的字典序（见 compareString()）。
+ * 字符串的 key 只是前缀，前 8 个字节相同的字符串 key 相同，在B+树中相邻，按索引查找后需要再用字段的值比较一次，见 Table。
+ * 组合索引的 key 见 Composite：依次拼接各列可按字节比较的编码，同样取前 8 个字节。
+ */
+public class KeyCodec {
+    /**
+     * UTF-8 编码中长度为 2、3、4 个字节的字符的首字节标志
+     */
+    private static final int[] LEAD = {0, 0, 0xC0, 0xE0, 0xF0};
+
+    /**
+     * int32 字段的 key
+     * @param v
+     * @return
+     */
+    public static long ofInt(int v) {
+        return v;
+    }
+
+    /**
+     * int64 字段的 key
+     * @param v
+     * @return
+     */
+    public static long ofLong(long v) {
+        return v;
+    }
+
+    /**
+     * string 字段的 key，即 UTF-8 编码的前 8 个字节，不分配对象
+     * @param s
+     * @return
+     */
+    public static long ofString(String s) {
+        long key = 0;
+        int n = 0;
+        for(int i = 0; i < s.length() && n < 8; ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if(cp < 0x80) {
+                key = (key << 8) | cp;
+                n ++;
+                continue;
+            }
+            int len = cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            for(int j = 0; j < len && n < 8; j ++) {
+                key = (key << 8) | utf8Byte(cp, len, j);
+                n ++;
+            }
+        }
+        key <<= 8*(8-n);
+        return key ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 码点 cp 的 UTF-8 编码（共 len 个字节）中的第 j 个字节
+     */
+    private static int utf8Byte(int cp, int len, int j) {
+        return j == 0 ? LEAD[len] | (cp >>> (6*(len-1))) : 0x80 | ((cp >>> (6*(len-1-j))) & 0x3F);
+    }
+
+    /**
+     * 按码点的字典序比较两个字符串，与 UTF-8 编码的字节序一致，和 ofString() 的顺序相同
+     * String.compareTo() 按 UTF-16 的码元比较，辅助平面的字符与 U+E000 之后的字符顺序相反，所以不能直接使用
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int compareString(String a, String b) {
+        int i = 0, j = 0;
+        while(i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i), cb = b.codePointAt(j);
+            if(ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length()-i, b.length()-j);
+    }
+
+    /**
+     * 组合索引的 key，按列的顺序依次 put 各列的值
+     * 每列的编码按字节的字典序比较与值的顺序一致，拼接后按字节比较就是按列的字典序比较：
+     * 1. int32：4 个字节，int64：8 个字节，都是翻转符号位后的大端序；
+     * 2. string：UTF-8 编码后加一个 0 字节作为结束符，较短的字符串排在以它为前缀的字符串之前。
+     * 只保留前 8 个字节，后面的列可能被截掉，所以组合索引的 key 总是需要再比较字段的值。
+     * 查找的边界用 key() 和 keyMax()：前几列确定后，剩余的字节补 0 得到最小的 key，补 0xFF 得到最大的 key。
+     */
+    public static class Composite {
+        private long key;
+        private int n;
+
+        public Composite putInt(int v) {
+            v ^= Integer.MIN_VALUE;
+            for(int i = 3; i >= 0; i --) {
+                put(v >>> (8*i));
+            }
+            return this;
+        }
+
+        public Composite putLong(long v) {
+            v ^= Long.MIN_VALUE;
+            for(int i = 7; i >= 0; i --) {
+                put((int)(v >>> (8*i)));
+            }
+            return this;
+        }
+
+        public Composite putString(String s) {
+            for(int i = 0; i < s.length() && n < 8; ) {
+                int cp = s.codePointAt(i);
+                i += Character.charCount(cp);
+                int len = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+                for(int j = 0; j < len; j ++) {
+                    put(len == 1 ? cp : utf8Byte(cp, len, j));
+                }
+            }
+            put(0);
+            return this;
+        }
+
+        private void put(int b) {
+            if(n < 8) {
+                key = (key << 8) | (b & 0xFF);
+                n ++;
+            }
+        }
+
+        /**
+         * 已写入的字节数，超过 8 个字节的部分被截掉，最多为 8
+         * @return
+         */
+        public int size() {
+            return n;
+        }
+
+        /**
+         * 剩余的字节补 0
+         * @return
+         */
+        public long key() {
+            return pad(0) ^ Long.MIN_VALUE;
+        }
+
+        /**
+         * 剩余的字节补 0xFF
+         * @return
+         */
+        public long keyMax() {
+            return pad(0xFF) ^ Long.MIN_VALUE;
+        }
+
+        /**
+         * 从 key() 得到的 key 中取出第 offset 个字节开始的 width 个字节（width 为 4 或 8），
+         * 即 putInt() 或 putLong() 写入的值，调用方保证这一段没有被截掉
+         * @param key
+         * @param offset
+         * @param width
+         * @return
+         */
+        public static long get(long key, int offset, int width) {
+            long k = key ^ Long.MIN_VALUE;
+            if(width == 8) {
+                return k ^ Long.MIN_VALUE;
+            }
+            return (int)(k >>> (8*(8-offset-width))) ^ Integer.MIN_VALUE;
+        }
+
+        private long pad(int b) {
+            long k = key;
+            for(int i = n; i < 8; i ++) {
+                k = (k << 8) | b;
+            }
+            return k;
+        }
+    }
+}
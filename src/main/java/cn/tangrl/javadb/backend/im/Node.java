@@ -1,13 +1,10 @@
 package cn.tangrl.javadb.backend.im;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
+import cn.tangrl.javadb.backend.dm.page.PageX;
 import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
-import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 /**
  * IM模块，即 Index Manager，索引管理器，为 MYDB 提供了基于 B+ 树的聚簇索引。
  * 目前 MYDB 只支持基于索引查找数据，不支持全表扫描。
@@ -22,6 +19,8 @@ import cn.tangrl.javadb.backend.utils.Parser;
  * Son和Key都是8个字节。
  * LeafFlag 标记了该节点是否是个叶子节点；KeyNumber 为该节点中 key 的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ * 叶子节点中的 Son 就是记录的 uid，键值对按 (key, uid) 排序，相同的 key 按 uid 升序，与 BulkLoader 的顺序一致；
+ * 整棵树的叶子节点沿兄弟节点也保持这个顺序，游标据此跳过已返回过的键值对，见 TreeCursor。
  *
  * 定义有有关node的插入key，插入后的分割等方法。
  * IM 在操作 DM 时，使用的事务都是 SUPER_XID。
@@ -44,13 +43,15 @@ public class Node {
      */
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
     /**
-     * 节点的平衡因子的常量，一个节点最多可以包含32*2个key
+     * 节点的平衡因子，一个节点最多可以包含 balance*2 个key，达到后分裂成两个各 balance 个key的节点
+     * 平衡因子由每棵树创建时决定（见 BPlusTree.create()），节点本身不存储，由节点的大小反推，见 getRawBalance()
+     * 最小的平衡因子
      */
-    static final int BALANCE_NUMBER = 32;
+    static final int MIN_BALANCE = 2;
     /**
-     * 节点的大小
+     * 最大的平衡因子，此时一个节点占满一整页
      */
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    static final int MAX_BALANCE = ((PageX.MAX_FREE_SPACE - DataItem.HEADER_LENGTH - NODE_HEADER_SIZE)/(2*8) - 2)/2;
     /**
      * B+树对象的索引
      */
@@ -68,6 +69,99 @@ public class Node {
      */
     long uid;
 
+    /**
+     * 平衡因子为 balance 的节点的大小
+     * @param balance
+     * @return
+     */
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
+
+    /**
+     * 由节点的大小得到节点的平衡因子
+     * @param raw
+     * @return
+     */
+    static int getRawBalance(SubArray raw) {
+        return ((raw.end-raw.start-NODE_HEADER_SIZE)/(2*8) - 2)/2;
+    }
+
+    /**
+     * 节点最多能容纳的键值对数量，乐观读时用来限制读到的 KeyNumber，避免读到写了一半的数据时越界
+     * @param raw
+     * @return
+     */
+    static int getRawCapacity(SubArray raw) {
+        return (raw.end-raw.start-NODE_HEADER_SIZE)/(2*8);
+    }
+
+    /**
+     * 节点中的键值对是否过少（不足容量的四分之一），需要与兄弟节点合并或重新分配，见 rebalance()
+     * 阈值低于容量的一半，避免刚合并或分裂过的节点在插入、删除交替时反复合并、分裂
+     * @param raw
+     * @return
+     */
+    static boolean isRawUnderflow(SubArray raw) {
+        return getRawNoKeys(raw)*2 < getRawBalance(raw);
+    }
+
+    /**
+     * 二分查找第一个大于等于 key 的位置（upper 为 true 时是第一个大于 key 的位置），都不满足时返回 noKeys
+     * 节点内的 key 是有序的
+     * @param raw
+     * @param noKeys
+     * @param key
+     * @param upper
+     * @return
+     */
+    static int searchRawKey(SubArray raw, int noKeys, long key, boolean upper) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long ik = getRawKthKey(raw, mid);
+            if(ik < key || (upper && ik == key)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 比较两个键值对，先比较 key，key 相同时比较 uid
+     * @param k1
+     * @param u1
+     * @param k2
+     * @param u2
+     * @return
+     */
+    static int comparePair(long k1, long u1, long k2, long u2) {
+        return k1 != k2 ? Long.compare(k1, k2) : Long.compare(u1, u2);
+    }
+
+    /**
+     * 在叶子节点中二分查找第一个大于等于 (key, uid) 的键值对的位置，都不满足时返回 noKeys
+     * @param raw
+     * @param noKeys
+     * @param key
+     * @param uid
+     * @return
+     */
+    static int searchRawPair(SubArray raw, int noKeys, long key, long uid) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(comparePair(getRawKthKey(raw, mid), getRawKthSon(raw, mid), key, uid) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     /**
      * 在SubArray中设置LeafFlag数据
      * @param raw
@@ -96,7 +190,7 @@ public class Node {
      * @param noKeys
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        ByteCodec.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     /**
@@ -105,7 +199,7 @@ public class Node {
      * @return
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)ByteCodec.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     /**
@@ -114,7 +208,7 @@ public class Node {
      * @param sibling
      */
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        ByteCodec.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     /**
@@ -123,7 +217,7 @@ public class Node {
      * @return
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return ByteCodec.getLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     /**
@@ -134,7 +228,7 @@ public class Node {
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        ByteCodec.putLong(raw.raw, offset, uid);
     }
 
     /**
@@ -145,7 +239,7 @@ public class Node {
      */
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return ByteCodec.getLong(raw.raw, offset);
     }
 
     /**
@@ -156,7 +250,7 @@ public class Node {
      */
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        ByteCodec.putLong(raw.raw, offset, key);
     }
 
     /**
@@ -167,7 +261,7 @@ public class Node {
      */
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return ByteCodec.getLong(raw.raw, offset);
     }
 
     /**
@@ -182,28 +276,55 @@ public class Node {
     }
 
     /**
-     * 将kth后开始的数据往后移一个位置
+     * 将kth到noKeys之间的数据往后移一个位置
+     * 只移动已使用的部分，之后的字节保持不变，修改范围不超过第noKeys个位置，便于只对修改部分落日志
      * @param raw
      * @param kth
+     * @param noKeys
      */
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    static void shiftRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+        if(end > begin) {
+            System.arraycopy(raw.raw, begin, raw.raw, begin+(8*2), end-begin);
         }
     }
 
+    /**
+     * 将kth后开始的数据往前移一个位置，覆盖第kth个位置
+     * @param raw
+     * @param kth
+     */
+    static void shiftRawKthLeft(SubArray raw, int kth) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        int end = raw.end-(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, end-begin);
+    }
+
+    /**
+     * 将 from 中从第 fromKth 个开始的 n 个键值对复制到 to 中第 toKth 个位置，from 和 to 可以是同一个节点
+     * @param from
+     * @param fromKth
+     * @param to
+     * @param toKth
+     * @param n
+     */
+    static void copyRawKth(SubArray from, int fromKth, SubArray to, int toKth, int n) {
+        System.arraycopy(from.raw, from.start+NODE_HEADER_SIZE+fromKth*(8*2), to.raw, to.start+NODE_HEADER_SIZE+toKth*(8*2), n*(8*2));
+    }
+
     /**
      * 生成一个根节点，传入数据
      * @param left
      * @param right
      * @param key
+     * @param balance
      * @return
      */
-    static byte[] newRootRaw(long left, long right, long key)  {
+    static byte[] newRootRaw(long left, long right, long key, int balance)  {
         // 创建存储节点数据的SubArray
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         // 设置LeafFlag数据为false
         setRawIsLeaf(raw, false);
         // 设置KeyNumber数据，为2
@@ -224,10 +345,12 @@ public class Node {
 
     /**
      * 生成一个空的根节点
+     * @param balance
      * @return
      */
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -262,18 +385,63 @@ public class Node {
     }
 
     /**
-     *
+     * 判断是否为叶子节点
+     * 读操作都是乐观读：不加锁读取，读完后校验节点的版本（StampedLock 的戳记）没有变化，变化了就重读，读者从不阻塞
+     * 节点分裂时只会把后半部分移到新的右兄弟中，读到旧版本的读者沿兄弟节点向右也能找到，见 BPlusTree
      * @return
      */
     public boolean isLeaf() {
-        // 上dataItem读锁
-        dataItem.rLock();
-        try {
-            // 在SubArray中获取LeafFlag数据
-            return getRawIfLeaf(raw);
-        } finally {
-            // 解dataItem读锁
-            dataItem.rUnLock();
+        while(true) {
+            long stamp = beginRead();
+            boolean isLeaf = getRawIfLeaf(raw);
+            if(dataItem.validate(stamp)) {
+                return isLeaf;
+            }
+        }
+    }
+
+    /**
+     * 开始一次乐观读，节点正被写者修改时让出 CPU 等待，直到拿到有效的戳记
+     * @return
+     */
+    private long beginRead() {
+        long stamp = dataItem.tryOptimisticRead();
+        while(stamp == 0) {
+            Thread.yield();
+            stamp = dataItem.tryOptimisticRead();
+        }
+        return stamp;
+    }
+
+    /**
+     * 乐观读出内部节点的 key、子节点和兄弟节点，叶子节点返回 null，用于 BPlusTree 的内部节点缓存
+     * @return
+     */
+    BPlusTree.InnerNode decodeInner() {
+        while(true) {
+            long stamp = beginRead();
+            BPlusTree.InnerNode n = null;
+            if(!getRawIfLeaf(raw)) {
+                int noKeys = Math.max(0, Math.min(getRawNoKeys(raw), getRawCapacity(raw)));
+                long[] keys = new long[noKeys], sons = new long[noKeys];
+                for(int i = 0; i < noKeys; i ++) {
+                    keys[i] = getRawKthKey(raw, i);
+                    sons[i] = getRawKthSon(raw, i);
+                }
+                n = new BPlusTree.InnerNode(keys, sons, getRawSibling(raw));
+            }
+            if(dataItem.validate(stamp)) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * 修改节点并落日志后调用，内部节点被修改时使 BPlusTree 中缓存的解码结果失效
+     */
+    private void invalidate() {
+        if(!getRawIfLeaf(raw)) {
+            tree.invalidate(uid);
         }
     }
 
@@ -292,79 +460,224 @@ public class Node {
      * @return
      */
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            // 获取key的数量
-            int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; i ++) {
-                // 获取第i个key
-                long ik = getRawKthKey(raw, i);
-                // 如果key小于keyi，则返回第i个son
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+        return search(key, false);
+    }
+
+    /**
+     * 寻找可能包含 key 的最左边的子节点 UID, 如果找不到, 则返回兄弟节点的 UID。
+     * 与 searchNext() 不同，key 等于分隔键时走左边：分裂时相同的 key 可能同时留在左右两个节点中，
+     * 从最左边开始再沿兄弟节点向右，才不会漏掉。
+     * @param key
+     * @return
+     */
+    public SearchNextRes searchNextLeft(long key) {
+        return search(key, true);
+    }
+
+    /**
+     * searchNext() 和 searchNextLeft() 的实现，乐观读，校验失败时重读
+     * @param key
+     * @param left key 等于分隔键时是否走左边
+     * @return
+     */
+    private SearchNextRes search(long key, boolean left) {
+        while(true) {
+            long stamp = beginRead();
+            SearchNextRes res = searchRaw(key, left);
+            if(dataItem.validate(stamp)) {
+                return res;
             }
-            // 找不到则返回兄弟节点的uid
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
+        }
+    }
 
-        } finally {
-            dataItem.rUnLock();
+    /**
+     * 不加锁在节点中查找，调用方负责校验
+     * @param key
+     * @param left
+     * @return
+     */
+    private SearchNextRes searchRaw(long key, boolean left) {
+        SearchNextRes res = new SearchNextRes();
+        // 获取key的数量
+        int noKeys = Math.min(getRawNoKeys(raw), getRawCapacity(raw));
+        // 二分找到第一个大于key（left时大于等于）的keyi，返回第i个son
+        int i = searchRawKey(raw, noKeys, key, !left);
+        if(i < noKeys) {
+            res.uid = getRawKthSon(raw, i);
+            res.siblingUid = 0;
+            return res;
         }
+        // 找不到则返回兄弟节点的uid
+        res.uid = 0;
+        res.siblingUid = getRawSibling(raw);
+        return res;
     }
 
     /**
-     * 存放范围key的搜索节点，用于leafSearchRange()
+     * 存放范围key的搜索结果，用于leafSearchRange()
+     * 范围内的uid写入调用方传入的数组中，noUids 为写入的数量
      */
     class LeafSearchRangeRes {
-        List<Long> uids;
+        int noUids;
         long siblingUid;
     }
 
     /**
-     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]
+     * 节点最多能容纳的键值对数量，范围查找时传入的数组不能小于它
+     * @return
+     */
+    int capacity() {
+        return getRawCapacity(raw);
+    }
+
+    /**
+     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]，范围内的 key 和 uid 按顺序写入 keys 和 uids 中
      * 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
      * @param leftKey
      * @param rightKey
+     * @param keys 长度不小于 capacity()
+     * @param uids 长度不小于 capacity()
      * @return
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
+    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey, long[] keys, long[] uids) {
+        while(true) {
+            long stamp = beginRead();
+            LeafSearchRangeRes res = leafSearchRangeRaw(leftKey, rightKey, keys, uids);
+            if(dataItem.validate(stamp)) {
+                return res;
+            }
+        }
+    }
+
+    /**
+     * 不加锁在叶子节点中范围查找，调用方负责校验
+     * @param leftKey
+     * @param rightKey
+     * @param keys
+     * @param uids
+     * @return
+     */
+    private LeafSearchRangeRes leafSearchRangeRaw(long leftKey, long rightKey, long[] keys, long[] uids) {
+        int noKeys = Math.min(getRawNoKeys(raw), getRawCapacity(raw));
+        int kth = searchRawKey(raw, noKeys, leftKey, false);
+        int noUids = 0;
+        while(kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if(ik <= rightKey) {
+                keys[noUids] = ik;
+                uids[noUids ++] = getRawKthSon(raw, kth);
                 kth ++;
+            } else {
+                break;
             }
-            List<Long> uids = new ArrayList<>();
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
-                }
+        }
+        long siblingUid = 0;
+        if(kth == noKeys) {
+            siblingUid = getRawSibling(raw);
+        }
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.noUids = noUids;
+        res.siblingUid = siblingUid;
+        return res;
+    }
+
+    /**
+     * 存放叶子节点删除的结果，用于leafDelete()和leafReplace()
+     * 没有删除且 siblingUid 不为 0 时，需要继续在兄弟节点中查找
+     */
+    class LeafDeleteRes {
+        boolean deleted;
+        /**
+         * 删除后节点是否过空，见 isRawUnderflow()
+         */
+        boolean underflow;
+        /**
+         * 替换时新的键值对按顺序不一定属于这个叶子节点，没有替换，由调用方先插入新的键值对再删除旧的
+         */
+        boolean elsewhere;
+        long siblingUid;
+    }
+
+    /**
+     * 在叶子节点中删除键值对 (key, uid)
+     * 删除后节点过空时由 BPlusTree 与兄弟节点合并或重新分配
+     * @param uid
+     * @param key
+     * @return
+     */
+    public LeafDeleteRes leafDelete(long uid, long key) {
+        return leafReplace(uid, key, 0);
+    }
+
+    /**
+     * 在叶子节点中将键值对 (key, uid) 替换为 (key, newUid)，newUid 为 0 时删除
+     * 替换在一次节点修改中完成，并发的查找不会看到中间状态；(key, newUid) 移到节点中按顺序的位置，
+     * 新的位置在节点的第一项之前或最后一项之后时，它可能属于相邻的叶子节点，不替换，见 LeafDeleteRes.elsewhere
+     * 先乐观地查找，只有找到时才对节点加写锁，加锁后重新查找一次
+     * @param uid
+     * @param key
+     * @param newUid
+     * @return
+     */
+    public LeafDeleteRes leafReplace(long uid, long key, long newUid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        while(true) {
+            long stamp = beginRead();
+            int kth = leafFindRaw(uid, key);
+            long sibling = getRawSibling(raw);
+            if(!dataItem.validate(stamp)) {
+                continue;
             }
-            long siblingUid = 0;
-            if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
+            if(kth < 0) {
+                res.siblingUid = kth == -1 ? sibling : 0;
+                return res;
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
+            break;
+        }
+        dataItem.before();
+        int noKeys = getRawNoKeys(raw);
+        int kth = leafFindRaw(uid, key);
+        if(kth < 0) {
+            // 加锁前被并发修改了，例如节点分裂后 (key, uid) 被移到了兄弟节点中
+            dataItem.unBefore();
+            res.siblingUid = kth == -1 ? getRawSibling(raw) : 0;
             return res;
-        } finally {
-            dataItem.rUnLock();
         }
+        if(newUid != 0 && (comparePair(key, newUid, getRawKthKey(raw, 0), getRawKthSon(raw, 0)) <= 0
+                || comparePair(key, newUid, getRawKthKey(raw, noKeys-1), getRawKthSon(raw, noKeys-1)) >= 0)) {
+            dataItem.unBefore();
+            res.elsewhere = true;
+            return res;
+        }
+        shiftRawKthLeft(raw, kth);
+        if(newUid == 0) {
+            setRawNoKeys(raw, noKeys-1);
+            res.underflow = isRawUnderflow(raw);
+        } else {
+            int pos = searchRawPair(raw, noKeys-1, key, newUid);
+            shiftRawKth(raw, pos, noKeys-1);
+            setRawKthKey(raw, key, pos);
+            setRawKthSon(raw, newUid, pos);
+        }
+        dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE+noKeys*(8*2));
+        res.deleted = true;
+        return res;
+    }
+
+    /**
+     * 在叶子节点中二分查找键值对 (key, uid) 的位置
+     * 找不到时，如果节点中的键值对都小于 (key, uid)，需要继续在兄弟节点中查找，返回 -1，否则返回 -2
+     * @param uid
+     * @param key
+     * @return
+     */
+    private int leafFindRaw(long uid, long key) {
+        int noKeys = Math.min(getRawNoKeys(raw), getRawCapacity(raw));
+        int kth = searchRawPair(raw, noKeys, key, uid);
+        if(kth == noKeys) {
+            return -1;
+        }
+        return getRawKthKey(raw, kth) == key && getRawKthSon(raw, kth) == uid ? kth : -2;
     }
 
     /**
@@ -372,6 +685,14 @@ public class Node {
      */
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
+        /**
+         * 唯一索引插入时：已有冲突的记录，或这个节点中的检查不完整、需要调用方重新检查，这两种情况都没有插入
+         */
+        boolean conflict, unsure;
+        /**
+         * 插入的位置可能在左边的叶子节点中，没有插入，见 insertAndSplit()
+         */
+        boolean left;
     }
 
     /**
@@ -382,6 +703,40 @@ public class Node {
      * @throws Exception
      */
     public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+        return insertAndSplit(uid, key, null, false);
+    }
+
+    /**
+     * 在B+树的节点中插入一个键值对，check 不为 null 时先在写锁下检查唯一性（见 checkUnique()）
+     * 叶子节点中 (key, uid) 要插在按顺序的位置上。按 key 下降到的是可能包含 key 的最右边的叶子节点，
+     * 相同 key 的 uid 更大的键值对可能还在左边的叶子节点中：checkLeft 为 true 时，如果 (key, uid) 会插在节点的最前面（或节点为空），
+     * 不插入，返回 left，由调用方从可能包含 key 的最左边的叶子节点开始向右找到插入的位置
+     * @param uid
+     * @param key
+     * @param check
+     * @param checkLeft
+     * @return
+     * @throws Exception
+     */
+    public InsertAndSplitRes insertAndSplit(long uid, long key, UniqueCheck check, boolean checkLeft) throws Exception {
+        return insertAndSplit(uid, key, check, checkLeft, 0);
+    }
+
+    /**
+     * 在内部节点中插入子节点 after 分裂出的节点 son 和分隔键 key，son 插在 after 的后面，使子节点的顺序与兄弟节点的顺序一致
+     * 相同的 key 跨越多个子节点时，分隔键也有多个相同的，只按 key 找到的是其中第一个的位置；
+     * after 不在这个节点中（例如它自己分裂出的节点还没有插入）时，仍按 key 找插入的位置
+     * @param son
+     * @param key
+     * @param after
+     * @return
+     * @throws Exception
+     */
+    public InsertAndSplitRes insertSonAndSplit(long son, long key, long after) throws Exception {
+        return insertAndSplit(son, key, null, false, after);
+    }
+
+    private InsertAndSplitRes insertAndSplit(long uid, long key, UniqueCheck check, boolean checkLeft, long after) throws Exception {
         // 创建一个标志位，用于标记插入操作是否成功
         boolean success = false;
         // 创建一个异常对象，用于存储在插入或分裂节点时发生的异常
@@ -389,11 +744,34 @@ public class Node {
         // 创建一个InsertAndSplitRes对象，用于存储插入和分裂节点的结果
         InsertAndSplitRes res = new InsertAndSplitRes();
 
-        // 执行dataItem的before()，保存数据副本
+        // 先乐观地判断key是否属于兄弟节点，是则不加锁直接向右
+        long sibling = moveRightRaw(key, uid, check != null, after);
+        if(sibling != 0) {
+            res.siblingUid = sibling;
+            return res;
+        }
+        // 执行dataItem的before()，对节点加写锁并保存数据副本
         dataItem.before();
+        // 修改只涉及头部和已使用的前noKeys+1个位置，只对这一段落日志
+        int logEnd = NODE_HEADER_SIZE+(getRawNoKeys(raw)+1)*(8*2);
         try {
+            if(checkLeft && getRawIfLeaf(raw)) {
+                int noKeys = getRawNoKeys(raw);
+                if(noKeys == 0 || comparePair(getRawKthKey(raw, 0), getRawKthSon(raw, 0), key, uid) > 0) {
+                    res.left = true;
+                    return res;
+                }
+            }
+            if(check != null) {
+                int c = checkUnique(key, uid, check);
+                if(c != UNIQUE_OK) {
+                    res.conflict = c == UNIQUE_CONFLICT;
+                    res.unsure = c == UNIQUE_UNSURE;
+                    return res;
+                }
+            }
             // 如果插入失败，设置兄弟节点的UID，并返回结果
-            success = insert(uid, key);
+            success = insert(uid, key, after);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -419,7 +797,8 @@ public class Node {
         } finally {
             // 如果没有发生错误并且插入成功，提交数据项的修改
             if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                dataItem.after(TransactionManagerImpl.SUPER_XID, 0, logEnd);
+                invalidate();
             } else {
                 // 如果发生错误或插入失败，回滚数据项的修改
                 dataItem.unBefore();
@@ -427,32 +806,104 @@ public class Node {
         }
     }
 
+    private static final int UNIQUE_OK = 0;
+    private static final int UNIQUE_CONFLICT = 1;
+    private static final int UNIQUE_UNSURE = 2;
+
+    /**
+     * 在持有写锁的叶子节点中检查 key 相同的项，与插入在同一次下降中完成，不需要再查找一次
+     * 插入的位置在兄弟节点中时不检查，由兄弟节点检查。
+     * 相同的 key 从节点的第一项开始时，左边的节点中可能还有；一直到最后一项且有兄弟节点时，右边的节点中可能还有，
+     * 这两种情况返回 UNIQUE_UNSURE，由调用方在整棵树中检查。
+     * 插入的位置在兄弟节点中、而这个节点的最后几项也是 key 时，兄弟节点看不到它们，同样返回 UNIQUE_UNSURE
+     * @param key
+     * @param uid
+     * @param check
+     * @return
+     * @throws Exception
+     */
+    private int checkUnique(long key, long uid, UniqueCheck check) throws Exception {
+        int noKeys = getRawNoKeys(raw);
+        int kth = searchRawKey(raw, noKeys, key, false);
+        long sibling = getRawSibling(raw);
+        if(searchRawPair(raw, noKeys, key, uid) == noKeys && sibling != 0) {
+            return kth < noKeys ? UNIQUE_UNSURE : UNIQUE_OK;
+        }
+        if(kth == 0 && noKeys > 0 && getRawKthKey(raw, 0) == key) {
+            return UNIQUE_UNSURE;
+        }
+        int i = kth;
+        for(; i < noKeys && getRawKthKey(raw, i) == key; i ++) {
+            if(check.conflicts(getRawKthSon(raw, i))) {
+                return UNIQUE_CONFLICT;
+            }
+        }
+        if(i == noKeys && i > kth && sibling != 0) {
+            return UNIQUE_UNSURE;
+        }
+        return UNIQUE_OK;
+    }
+
+    /**
+     * 乐观读判断key是否应该插入到兄弟节点中，是则返回兄弟节点的UID，否则返回 0
+     * 叶子节点按 (key, uid) 比较；唯一索引插入时只在节点中没有 key 时才不加锁向右，有 key 时要在这个节点中检查（见 checkUnique()）
+     * 内部节点中有子节点 after 时不向右，见 insertSonAndSplit()
+     * @param key
+     * @param uid
+     * @param unique
+     * @param after
+     * @return
+     */
+    private long moveRightRaw(long key, long uid, boolean unique, long after) {
+        while(true) {
+            long stamp = beginRead();
+            int noKeys = Math.min(getRawNoKeys(raw), getRawCapacity(raw));
+            long sibling = getRawSibling(raw);
+            boolean right;
+            if(sibling == 0) {
+                right = false;
+            } else if(noKeys == 0) {
+                right = true;
+            } else if(after != 0 && findSonRaw(after, noKeys) >= 0) {
+                right = false;
+            } else if(getRawIfLeaf(raw) && !unique) {
+                right = comparePair(getRawKthKey(raw, noKeys-1), getRawKthSon(raw, noKeys-1), key, uid) < 0;
+            } else {
+                right = getRawKthKey(raw, noKeys-1) < key;
+            }
+            if(dataItem.validate(stamp)) {
+                return right ? sibling : 0;
+            }
+        }
+    }
+
     /**
      * 在B+树的节点中插入一个键值对的方法
      * @param uid
      * @param key
+     * @param after 内部节点中分裂的子节点，见 insertSonAndSplit()，为 0 时不考虑
      * @return
      */
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long key, long after) {
         // 获取节点中的键的数量
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        // 尝试找插入的位置
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
+        boolean isLeaf = getRawIfLeaf(raw);
+        // 二分找插入的位置，叶子节点中是第一个大于 (key, uid) 的位置，内部节点中是第一个大于等于key的位置
+        int kth = isLeaf ? searchRawPair(raw, noKeys, key, uid) : searchRawKey(raw, noKeys, key, false);
+        if(!isLeaf && after != 0) {
+            // 分裂的子节点在这个节点中、且分隔键仍然有序时，插在它的后面
+            int j = findSonRaw(after, noKeys);
+            if(j >= 0 && (j == 0 || getRawKthKey(raw, j-1) <= key) && key <= getRawKthKey(raw, j)) {
+                kth = j;
             }
         }
         // 如果所有的键都被遍历过，并且存在兄弟节点，插入失败
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
         // 如果节点是叶子节点
-        if(getRawIfLeaf(raw)) {
+        if(isLeaf) {
             // 在插入位置后的所有键和子节点向后移动一位
-            shiftRawKth(raw, kth);
+            shiftRawKth(raw, kth, noKeys);
             // 在插入位置插入新的键和子节点的UID
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
@@ -465,7 +916,7 @@ public class Node {
             // 在插入位置插入新的键
             setRawKthKey(raw, key, kth);
             // 在插入位置后的所有键和子节点向后移动一位
-            shiftRawKth(raw, kth+1);
+            shiftRawKth(raw, kth+1, noKeys);
             // 在插入位置的下一个位置插入原来的键和新的子节点的UID
             setRawKthKey(raw, kk, kth+1);
             setRawKthSon(raw, uid, kth+1);
@@ -477,11 +928,11 @@ public class Node {
     }
 
     /**
-     * 判断是否需要分割，如果key的数量==BALANCE_NUMBER*2则需要分割
+     * 判断是否需要分割，如果key的数量==balance*2则需要分割
      * @return
      */
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return getRawBalance(raw)*2 == getRawNoKeys(raw);
     }
 
     /**
@@ -493,27 +944,29 @@ public class Node {
 
     /**
      * 分裂B+树的节点。
-     * 当一个节点的键的数量达到 `BALANCE_NUMBER * 2` 时，就意味着这个节点已经满了，需要进行分裂操作。
+     * 当一个节点的键的数量达到 `balance * 2` 时，就意味着这个节点已经满了，需要进行分裂操作。
      * 分裂操作的目的是将一个满的节点分裂成两个节点，每个节点包含一半的键。
      * @return
      * @throws Exception
      */
     private SplitRes split() throws Exception {
         // 创建一个新的字节数组，用于存储新节点的原始数据
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = getRawBalance(raw);
+        int size = raw.end - raw.start;
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         // 设置新节点的叶子节点标志，与原节点相同
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        // 设置新节点的键的数量为BALANCE_NUMBER
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        // 设置新节点的键的数量为balance
+        setRawNoKeys(nodeRaw, balance);
         // 设置新节点的兄弟节点的UID，与原节点的兄弟节点的UID相同
         setRawSibling(nodeRaw, getRawSibling(raw));
-        // 从原节点的原始字节数组中复制后面32个数据到新节点的原始字节数组中
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        // 从原节点的原始字节数组中复制后面balance个数据到新节点的原始字节数组中
+        copyRawFromKth(raw, nodeRaw, balance);
         // 在数据管理器中插入新节点的原始数据，并获取新节点的UID
         // xid为super_xid
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        // 更新原节点的键的数量为BALANCE_NUMBER
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        // 更新原节点的键的数量为balance
+        setRawNoKeys(raw, balance);
         // 更新原节点的兄弟节点的UID为新节点的UID
         setRawSibling(raw, son);
 
@@ -527,6 +980,218 @@ public class Node {
         return res;
     }
 
+    /**
+     * 节点中 key 的个数
+     * @return
+     */
+    int noKeys() {
+        while(true) {
+            long stamp = beginRead();
+            int noKeys = getRawNoKeys(raw);
+            if(dataItem.validate(stamp)) {
+                return noKeys;
+            }
+        }
+    }
+
+    /**
+     * 兄弟节点的uid
+     * @return
+     */
+    long sibling() {
+        while(true) {
+            long stamp = beginRead();
+            long sibling = getRawSibling(raw);
+            if(dataItem.validate(stamp)) {
+                return sibling;
+            }
+        }
+    }
+
+    /**
+     * 第 kth 个子节点的uid
+     * @param kth
+     * @return
+     */
+    long kthSon(int kth) {
+        while(true) {
+            long stamp = beginRead();
+            long son = getRawKthSon(raw, kth);
+            if(dataItem.validate(stamp)) {
+                return son;
+            }
+        }
+    }
+
+    /**
+     * 第 kth 个 key
+     * @param kth
+     * @return
+     */
+    long kthKey(int kth) {
+        while(true) {
+            long stamp = beginRead();
+            long key = getRawKthKey(raw, kth);
+            if(dataItem.validate(stamp)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * 子节点 son 在内部节点中的位置，不在这个节点中时返回 -1
+     * @param son
+     * @return
+     */
+    int findSon(long son) {
+        while(true) {
+            long stamp = beginRead();
+            int kth = findSonRaw(son, Math.min(getRawNoKeys(raw), getRawCapacity(raw)));
+            if(dataItem.validate(stamp)) {
+                return kth;
+            }
+        }
+    }
+
+    /**
+     * 不加锁查找子节点 son 的位置，不在这个节点中时返回 -1，调用方负责校验或持有写锁
+     * @param son
+     * @param noKeys
+     * @return
+     */
+    private int findSonRaw(long son, int noKeys) {
+        for(int i = 0; i < noKeys; i ++) {
+            if(getRawKthSon(raw, i) == son) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 存放合并或重新分配的结果，用于rebalance()
+     */
+    class RebalanceRes {
+        /**
+         * 合并后变为空的左节点，以及它左边同一个父节点下的节点（没有时为 0），没有合并时都为 0
+         */
+        long removed, leftSon;
+        /**
+         * 合并后父节点剩下的 key 的个数，以及父节点是否也过空
+         */
+        int noKeys;
+        boolean underflow;
+    }
+
+    /**
+     * 在父节点中处理第 kth 个子节点过空的情况，调用方持有 BPlusTree 的结构锁
+     * 取相邻的一对子节点 (L, R)，kth 有左边的节点时 R 是第 kth 个子节点，否则 L 是第 0 个子节点：
+     * 1. L 和 R 的键值对放得进一个节点时合并：L 的键值对移到 R 的开头，L 变为空节点，兄弟节点仍指向 R，
+     *    父节点中去掉 L 那一项，R 的范围向左扩展到原来 L 的下界；
+     * 2. 否则如果 R 过空，把 L 后面的一部分键值对移到 R 的开头，更新父节点中 L 的分隔键。
+     * 键值对总是从左向右移动：拿着旧的父节点或旧的兄弟指针的乐观读者到了 L 中找不到，沿兄弟节点向右仍能在 R 中找到，
+     * 与分裂时一样不需要锁住上层；反方向移动会让拿着 R 的读者漏掉 key，所以 L 过空而 R 较满时不处理。
+     * 依次锁住父节点、L、R，按 R、L、父节点的顺序修改并落日志，写者平时只锁一个节点，不会死锁。
+     * 三个节点的修改是三条日志，崩溃恰好发生在 R 和 L 的日志之间时，恢复后 L 中的键值对在 R 中还有一份，
+     * 范围查找的游标会跳过已返回过的 (key, uid)，见 Cursor。
+     * 没有处理时返回 null
+     * @param kth
+     * @return
+     * @throws Exception
+     */
+    RebalanceRes rebalance(int kth) throws Exception {
+        dataItem.before();
+        int noKeys = getRawNoKeys(raw);
+        if(noKeys < 2) {
+            dataItem.unBefore();
+            return null;
+        }
+        int j = kth > 0 ? kth-1 : 0;
+        long leftSon = j > 0 ? getRawKthSon(raw, j-1) : 0;
+        Node left = null, right = null;
+        RebalanceRes res = null;
+        try {
+            left = loadNode(tree, getRawKthSon(raw, j));
+            right = loadNode(tree, getRawKthSon(raw, j+1));
+            left.dataItem.before();
+            right.dataItem.before();
+            int nL = getRawNoKeys(left.raw), nR = getRawNoKeys(right.raw);
+            // 两者之间有还没有插入父节点的分裂出的节点，或者都不过空
+            if(getRawSibling(left.raw) != right.uid || !(isRawUnderflow(left.raw) || isRawUnderflow(right.raw))) {
+                right.dataItem.unBefore();
+                left.dataItem.unBefore();
+                return null;
+            }
+            int balance = getRawBalance(raw);
+            if(nL + nR < balance*2) {
+                copyRawKth(right.raw, 0, right.raw, nL, nR);
+                copyRawKth(left.raw, 0, right.raw, 0, nL);
+                setRawNoKeys(right.raw, nL+nR);
+                setRawNoKeys(left.raw, 0);
+                right.dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE+(nL+nR)*(8*2));
+                left.dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE);
+                right.invalidate();
+                left.invalidate();
+                shiftRawKthLeft(raw, j);
+                setRawNoKeys(raw, noKeys-1);
+                res = new RebalanceRes();
+                res.removed = left.uid;
+                res.leftSon = leftSon;
+            } else if(isRawUnderflow(right.raw)) {
+                int m = (nL - nR)/2;
+                copyRawKth(right.raw, 0, right.raw, m, nR);
+                copyRawKth(left.raw, nL-m, right.raw, 0, m);
+                setRawNoKeys(right.raw, nR+m);
+                setRawNoKeys(left.raw, nL-m);
+                right.dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE+(nR+m)*(8*2));
+                left.dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE);
+                right.invalidate();
+                left.invalidate();
+                // 与分裂时相同，L 的分隔键取 R 的第一个 key
+                setRawKthKey(raw, getRawKthKey(right.raw, 0), j);
+                res = new RebalanceRes();
+            } else {
+                right.dataItem.unBefore();
+                left.dataItem.unBefore();
+                return null;
+            }
+            res.noKeys = getRawNoKeys(raw);
+            res.underflow = isRawUnderflow(raw);
+            return res;
+        } finally {
+            if(res != null) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID, 0, NODE_HEADER_SIZE+noKeys*(8*2));
+                invalidate();
+            } else {
+                dataItem.unBefore();
+            }
+            if(left != null) {
+                left.release();
+            }
+            if(right != null) {
+                right.release();
+            }
+        }
+    }
+
+    /**
+     * 兄弟节点为 old 时替换为 sibling，用于把合并后变为空的节点从兄弟链中摘下，返回是否替换
+     * @param old
+     * @param sibling
+     * @return
+     */
+    boolean replaceSibling(long old, long sibling) {
+        dataItem.before();
+        if(getRawSibling(raw) != old) {
+            dataItem.unBefore();
+            return false;
+        }
+        setRawSibling(raw, sibling);
+        dataItem.after(TransactionManagerImpl.SUPER_XID, SIBLING_OFFSET, SIBLING_OFFSET+8);
+        invalidate();
+        return true;
+    }
+
     /**
      * 将raw即node打印出来
      * @return
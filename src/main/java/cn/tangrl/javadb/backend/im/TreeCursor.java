@@ -0,0 +1,116 @@
+package cn.tangrl.javadb.backend.im;
+
+import cn.tangrl.javadb.backend.im.Node.LeafSearchRangeRes;
+
+/**
+ * B+树的游标，按 key 的顺序逐个返回 [leftKey, rightKey] 范围内的 uid，由 BPlusTree.cursor() 创建
+ * 每次只把一个叶子节点中范围内的 uid 读到缓冲区，读完立即释放节点，两次调用之间不持有任何节点，可以随时停止读取
+ * 读完一个叶子节点后记下它当时的兄弟节点，之后再移到兄弟节点，所以即使叶子节点在两次调用之间分裂，也不会重复返回 uid
+ * 叶子节点合并时键值对从左向右移动，读过的键值对可能在兄弟节点中再次出现；叶子节点中的键值对按 (key, uid) 排序（见 Node），
+ * 游标只记下最后返回的 (key, uid)，跳过小于等于它的键值对，相同的 key 再多也只占常数的内存。
+ * 记下的兄弟节点可能已被合并掉并释放，纪元变化后从根节点按最后返回的 key 重新下降，见 BPlusTree.enter()
+ */
+class TreeCursor implements Cursor {
+    /**
+     * B+树
+     */
+    private BPlusTree tree;
+    /**
+     * 查找范围
+     */
+    private long leftKey, rightKey;
+    /**
+     * 下一个要读取的叶子节点的uid，为 0 时已经读完
+     */
+    private long nextLeaf;
+    /**
+     * 读到 nextLeaf 时的纪元
+     */
+    private int epoch;
+    /**
+     * 当前叶子节点中范围内的 key 和 uid，以及个数
+     */
+    private long[] keys;
+    private long[] uids;
+    private int noUids;
+    /**
+     * 下一个要返回的 uid 在 uids 中的位置
+     */
+    private int pos;
+    /**
+     * 当前的，即最后返回的 uid 和它的 key，started 为 false 时还没有返回过
+     */
+    private long uid, key;
+    private boolean started;
+
+    TreeCursor(BPlusTree tree, long leftKey, long rightKey, long leafUid, int epoch) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.nextLeaf = leafUid;
+        this.epoch = epoch;
+        this.keys = new long[0];
+        this.uids = new long[0];
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        while(true) {
+            while(pos >= noUids) {
+                if(nextLeaf == 0) {
+                    return false;
+                }
+                readLeaf();
+            }
+            long key = keys[pos];
+            long u = uids[pos ++];
+            if(started && Node.comparePair(key, u, this.key, uid) <= 0) {
+                continue;
+            }
+            started = true;
+            uid = u;
+            this.key = key;
+            return true;
+        }
+    }
+
+    @Override
+    public long uid() {
+        return uid;
+    }
+
+    @Override
+    public long key() {
+        return key;
+    }
+
+    /**
+     * 读取下一个叶子节点中范围内的 uid
+     * @throws Exception
+     */
+    private void readLeaf() throws Exception {
+        int e = tree.enter();
+        try {
+            long from = started ? key : leftKey;
+            if(e != epoch) {
+                nextLeaf = tree.searchLeaf(from);
+                epoch = e;
+            }
+            Node leaf = Node.loadNode(tree, nextLeaf);
+            try {
+                if(uids.length < leaf.capacity()) {
+                    keys = new long[leaf.capacity()];
+                    uids = new long[leaf.capacity()];
+                }
+                LeafSearchRangeRes res = leaf.leafSearchRange(from, rightKey, keys, uids);
+                noUids = res.noUids;
+                pos = 0;
+                nextLeaf = res.siblingUid;
+            } finally {
+                leaf.release();
+            }
+        } finally {
+            tree.exit(e);
+        }
+    }
+}
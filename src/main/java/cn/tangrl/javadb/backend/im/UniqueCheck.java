@@ -0,0 +1,10 @@
+package cn.tangrl.javadb.backend.im;
+
+/**
+ * 唯一索引插入时的冲突检查，见 BPlusTree.insertUnique()
+ * 对索引中与要插入的 key 相同的每个 uid 调用，返回这条记录是否与要插入的值冲突
+ * key 可能只是值的前缀，相同的 key 不一定是相同的值，由调用方读出记录比较
+ */
+public interface UniqueCheck {
+    boolean conflicts(long uid) throws Exception;
+}
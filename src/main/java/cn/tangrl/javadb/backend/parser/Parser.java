@@ -2,14 +2,19 @@ package cn.tangrl.javadb.backend.parser;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import cn.tangrl.javadb.backend.parser.statement.Abort;
+import cn.tangrl.javadb.backend.parser.statement.Aggregate;
 import cn.tangrl.javadb.backend.parser.statement.Begin;
 import cn.tangrl.javadb.backend.parser.statement.Commit;
 import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
 import cn.tangrl.javadb.backend.parser.statement.Drop;
+import cn.tangrl.javadb.backend.parser.statement.Execute;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
+import cn.tangrl.javadb.backend.parser.statement.Prepare;
 import cn.tangrl.javadb.backend.parser.statement.Select;
 import cn.tangrl.javadb.backend.parser.statement.Show;
 import cn.tangrl.javadb.backend.parser.statement.SingleExpression;
@@ -44,38 +49,18 @@ public class Parser {
         Exception statErr = null;
         try {
             switch(token) {
-                case "begin":
-                    stat = parseBegin(tokenizer);
+                case "prepare":
+                    stat = parsePrepare(tokenizer);
                     break;
-                case "commit":
-                    stat = parseCommit(tokenizer);
-                    break;
-                case "abort":
-                    stat = parseAbort(tokenizer);
-                    break;
-                case "create":
-                    stat = parseCreate(tokenizer);
-                    break;
-                case "drop":
-                    stat = parseDrop(tokenizer);
-                    break;
-                case "select":
-                    stat = parseSelect(tokenizer);
-                    break;
-                case "insert":
-                    stat = parseInsert(tokenizer);
-                    break;
-                case "delete":
-                    stat = parseDelete(tokenizer);
-                    break;
-                case "update":
-                    stat = parseUpdate(tokenizer);
-                    break;
-                case "show":
-                    stat = parseShow(tokenizer);
+                case "execute":
+                    stat = parseExecute(tokenizer);
                     break;
                 default:
-                    throw Error.InvalidCommandException;
+                    stat = parseStatement(token, tokenizer);
+                    // 参数只能出现在预处理语句中
+                    if(!params(stat).isEmpty()) {
+                        throw Error.InvalidCommandException;
+                    }
             }
         } catch(Exception e) {
             statErr = e;
@@ -98,6 +83,149 @@ public class Parser {
         return stat;
     }
 
+    /**
+     * 根据第一个token解析语句
+     * @param token
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Object parseStatement(String token, Tokenizer tokenizer) throws Exception {
+        switch(token) {
+            case "begin":
+                return parseBegin(tokenizer);
+            case "commit":
+                return parseCommit(tokenizer);
+            case "abort":
+                return parseAbort(tokenizer);
+            case "create":
+                return parseCreate(tokenizer);
+            case "drop":
+                return parseDrop(tokenizer);
+            case "select":
+                return parseSelect(tokenizer);
+            case "insert":
+                return parseInsert(tokenizer);
+            case "delete":
+                return parseDelete(tokenizer);
+            case "update":
+                return parseUpdate(tokenizer);
+            case "show":
+                return parseShow(tokenizer);
+            default:
+                throw Error.InvalidCommandException;
+        }
+    }
+
+    /**
+     * 解析prepare语句：prepare name statement
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Prepare parsePrepare(Tokenizer tokenizer) throws Exception {
+        Prepare prepare = new Prepare();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        prepare.name = name;
+        tokenizer.pop();
+
+        String token = tokenizer.peek();
+        tokenizer.pop();
+        prepare.statement = parseStatement(token, tokenizer);
+        prepare.params = params(prepare.statement);
+        return prepare;
+    }
+
+    /**
+     * 解析execute语句：execute name value1 value2 ...
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Execute parseExecute(Tokenizer tokenizer) throws Exception {
+        Execute execute = new Execute();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        execute.name = name;
+        tokenizer.pop();
+
+        List<String> values = new ArrayList<>();
+        while(true) {
+            String value = tokenizer.peek();
+            if("".equals(value)) {
+                break;
+            }
+            if(tokenizer.isParam()) {
+                throw Error.InvalidCommandException;
+            }
+            values.add(value);
+            tokenizer.pop();
+        }
+        execute.values = values.toArray(new String[values.size()]);
+        return execute;
+    }
+
+    /**
+     * 语句中的参数 ?，按在语句中出现的顺序，每个参数返回一个把值填入对应位置的函数
+     * 参数可以是 insert 的值、update 的新值和 where 中比较的值，解析时在参数的位置上放入 null
+     * @param stat
+     * @return
+     */
+    static List<Consumer<String>> params(Object stat) {
+        List<Consumer<String>> params = new ArrayList<>();
+        if(stat instanceof Insert) {
+            Insert insert = (Insert)stat;
+            for(int i = 0; i < insert.values.length; i ++) {
+                if(insert.values[i] == null) {
+                    int index = i;
+                    params.add(v -> insert.values[index] = v);
+                }
+            }
+        } else if(stat instanceof Update) {
+            Update update = (Update)stat;
+            if(update.value == null) {
+                params.add(v -> update.value = v);
+            }
+            params(update.where, params);
+        } else if(stat instanceof Delete) {
+            params(((Delete)stat).where, params);
+        } else if(stat instanceof Select) {
+            params(((Select)stat).where, params);
+        }
+        return params;
+    }
+
+    private static void params(Where where, List<Consumer<String>> params) {
+        if(where == null) {
+            return;
+        }
+        if("".equals(where.logicOp)) {
+            SingleExpression exp = where.singleExp;
+            if(exp.value == null) {
+                params.add(v -> exp.value = v);
+            }
+            return;
+        }
+        params(where.left, params);
+        params(where.right, params);
+    }
+
+    /**
+     * 读取一个值，是参数 ? 时返回 null
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.peek();
+        return tokenizer.isParam() ? null : value;
+    }
+
     /**
      * 解析show语句
      * @param tokenizer
@@ -136,7 +264,7 @@ public class Parser {
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
+        update.value = parseValue(tokenizer);
         tokenizer.pop();
 
         String tmp = tokenizer.peek();
@@ -202,7 +330,7 @@ public class Parser {
         List<String> values = new ArrayList<>();
         while(true) {
             tokenizer.pop();
-            String value = tokenizer.peek();
+            String value = parseValue(tokenizer);
             if("".equals(value)) {
                 break;
             } else {
@@ -224,6 +352,7 @@ public class Parser {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<Aggregate> aggregates = new ArrayList<>();
         String asterisk = tokenizer.peek();
         if("*".equals(asterisk)) {
             fields.add(asterisk);
@@ -234,16 +363,25 @@ public class Parser {
                 if(!isName(field)) {
                     throw Error.InvalidCommandException;
                 }
-                fields.add(field);
                 tokenizer.pop();
+                if(isAggregate(field) && "(".equals(tokenizer.peek())) {
+                    aggregates.add(parseAggregate(field, tokenizer));
+                } else {
+                    fields.add(field);
+                }
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
                     break;
                 }
             }
+            // 没有 group by，聚合函数不能与字段一起出现
+            if(!aggregates.isEmpty() && !fields.isEmpty()) {
+                throw Error.InvalidCommandException;
+            }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        read.aggregates = aggregates.isEmpty() ? null : aggregates.toArray(new Aggregate[aggregates.size()]);
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -257,50 +395,164 @@ public class Parser {
         read.tableName = tableName;
         tokenizer.pop();
 
-        String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        if("where".equals(tokenizer.peek())) {
+            read.where = parseWhere(tokenizer);
+        }
+        if("order".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if("".equals(field) || !isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            read.orderBy = field;
+            tokenizer.pop();
+            String dir = tokenizer.peek();
+            if("asc".equals(dir) || "desc".equals(dir)) {
+                read.desc = "desc".equals(dir);
+                tokenizer.pop();
+            }
+        }
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.limit = parseLimit(tokenizer.peek());
+            tokenizer.pop();
+            if("offset".equals(tokenizer.peek())) {
+                tokenizer.pop();
+                read.offset = parseLimit(tokenizer.peek());
+                tokenizer.pop();
+            }
         }
-
-        read.where = parseWhere(tokenizer);
         return read;
     }
 
+    private static boolean isAggregate(String func) {
+        return "count".equals(func) || "sum".equals(func) || "min".equals(func) ||
+            "max".equals(func) || "avg".equals(func);
+    }
+
     /**
-     * 解析操作中的where关键词
+     * 解析聚合函数的括号部分：(field)，count 还可以是 (*)
+     * @param func
      * @param tokenizer
      * @return
      * @throws Exception
      */
-    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
-        Where where = new Where();
-
-        if(!"where".equals(tokenizer.peek())) {
+    private static Aggregate parseAggregate(String func, Tokenizer tokenizer) throws Exception {
+        tokenizer.pop();
+        Aggregate aggregate = new Aggregate();
+        aggregate.func = func;
+        String field = tokenizer.peek();
+        if(!isName(field) && !("count".equals(func) && "*".equals(field))) {
             throw Error.InvalidCommandException;
         }
+        aggregate.field = field;
         tokenizer.pop();
+        if(!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return aggregate;
+    }
 
-        SingleExpression exp1 = parseSingleExp(tokenizer);
-        where.singleExp1 = exp1;
-
-        String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
-            return where;
+    /**
+     * 解析 limit 和 offset 之后的记录数，必须是非负整数
+     * @param token
+     * @return
+     * @throws Exception
+     */
+    private static long parseLimit(String token) throws Exception {
+        try {
+            long limit = Long.parseLong(token);
+            if(limit >= 0) {
+                return limit;
+            }
+        } catch(NumberFormatException e) {
         }
-        if(!isLogicOp(logicOp)) {
+        throw Error.InvalidCommandException;
+    }
+
+    /**
+     * 解析操作中的where关键词，where 之后的条件可以用 and、or、not 和括号任意组合，
+     * 优先级从高到低为括号、not、and、or，例如：where not (id < 5 or name = a) and age > 18
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
+        if(!"where".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
-        where.logicOp = logicOp;
         tokenizer.pop();
 
-        SingleExpression exp2 = parseSingleExp(tokenizer);
-        where.singleExp2 = exp2;
+        // 条件之后的 token 由调用方处理（例如 select 的 limit），多余的 token 在 Parse() 中报错
+        return parseOr(tokenizer);
+    }
 
-        if(!"".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
+    /**
+     * 解析用 or 连接的条件
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Where parseOr(Tokenizer tokenizer) throws Exception {
+        Where where = parseAnd(tokenizer);
+        while("or".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            where = logic("or", where, parseAnd(tokenizer));
+        }
+        return where;
+    }
+
+    /**
+     * 解析用 and 连接的条件
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Where parseAnd(Tokenizer tokenizer) throws Exception {
+        Where where = parseNot(tokenizer);
+        while("and".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            where = logic("and", where, parseNot(tokenizer));
+        }
+        return where;
+    }
+
+    /**
+     * 解析 not 条件、括号中的条件，或单个比较表达式
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static Where parseNot(Tokenizer tokenizer) throws Exception {
+        if("not".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return logic("not", parseNot(tokenizer), null);
+        }
+        if("(".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            Where where = parseOr(tokenizer);
+            if(!")".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            return where;
         }
+        Where where = new Where();
+        where.logicOp = "";
+        where.singleExp = parseSingleExp(tokenizer);
+        return where;
+    }
+
+    private static Where logic(String logicOp, Where left, Where right) {
+        Where where = new Where();
+        where.logicOp = logicOp;
+        where.left = left;
+        where.right = right;
         return where;
     }
 
@@ -327,7 +579,10 @@ public class Parser {
         exp.compareOp = op;
         tokenizer.pop();
 
-        exp.value = tokenizer.peek();
+        exp.value = parseValue(tokenizer);
+        if("".equals(exp.value)) {
+            throw Error.InvalidCommandException;
+        }
         tokenizer.pop();
         return exp;
     }
@@ -341,15 +596,6 @@ public class Parser {
         return ("=".equals(op) || ">".equals(op) || "<".equals(op));
     }
 
-    /**
-     * 判断字符串是不是逻辑操作
-     * @param op
-     * @return
-     */
-    private static boolean isLogicOp(String op) {
-        return ("and".equals(op) || "or".equals(op));
-    }
-
     /**
      * 解析drop语句
      * @param tokenizer
@@ -378,12 +624,18 @@ public class Parser {
     }
 
     /**
-     * 解析create语句
+     * 解析create语句，create table 或 create index
+     * create table 的索引子句之后可以再跟唯一索引子句、哈希索引子句和布隆过滤器子句，
+     * 例如：create table student id int32, name string, age int32 (index id) (unique name) (hash age) (bloom id)
      * @param tokenizer
      * @return
      * @throws Exception
      */
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -453,6 +705,124 @@ public class Parser {
         create.index = indexes.toArray(new String[indexes.size()]);
         tokenizer.pop();
 
+        // 可选的唯一索引子句 (unique name ...)、哈希索引子句 (hash name ...) 和布隆过滤器子句 (bloom name ...)，顺序任意
+        List<String> uniques = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        List<String> blooms = new ArrayList<>();
+        while("(".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            List<String> clause;
+            if("unique".equals(tokenizer.peek())) {
+                clause = uniques;
+            } else if("hash".equals(tokenizer.peek())) {
+                clause = hashes;
+            } else if("bloom".equals(tokenizer.peek())) {
+                clause = blooms;
+            } else {
+                throw Error.InvalidCommandException;
+            }
+            while(true) {
+                tokenizer.pop();
+                String field = tokenizer.peek();
+                if(")".equals(field)) {
+                    break;
+                }
+                if(!isName(field)) {
+                    throw Error.InvalidCommandException;
+                }
+                clause.add(field);
+            }
+            tokenizer.pop();
+        }
+        create.unique = uniques.toArray(new String[uniques.size()]);
+        create.hash = hashes.toArray(new String[hashes.size()]);
+        create.bloom = blooms.toArray(new String[blooms.size()]);
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return create;
+    }
+
+    /**
+     * 解析create index语句，例如：create index idx_name on student(name)，组合索引 create index idx_class_name on student(class, name)
+     * 之后可以跟 include 子句，例如：create index idx_id on student(id) include (age)
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        CreateIndex create = new CreateIndex();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        create.indexName = name;
+        tokenizer.pop();
+
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        create.tableName = tableName;
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        List<String> fields = new ArrayList<>();
+        while(true) {
+            String field = tokenizer.peek();
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+
+            String next = tokenizer.peek();
+            tokenizer.pop();
+            if(")".equals(next)) {
+                break;
+            } else if(!",".equals(next)) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        create.fieldName = fields.toArray(new String[fields.size()]);
+
+        // 可选的 include (a, b ...)，只存放在索引中、不用于查找的字段
+        List<String> includes = new ArrayList<>();
+        if("include".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"(".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            while(true) {
+                String field = tokenizer.peek();
+                if(!isName(field)) {
+                    throw Error.InvalidCommandException;
+                }
+                includes.add(field);
+                tokenizer.pop();
+
+                String next = tokenizer.peek();
+                tokenizer.pop();
+                if(")".equals(next)) {
+                    break;
+                } else if(!",".equals(next)) {
+                    throw Error.InvalidCommandException;
+                }
+            }
+        }
+        create.include = includes.toArray(new String[includes.size()]);
+
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -23,6 +23,10 @@ public class Tokenizer {
      * 刷新token标志
      */
     private boolean flushToken;
+    /**
+     * 当前的token是否是参数 ?，带引号的 "?" 不是参数
+     */
+    private boolean param;
     /**
      * 异常
      */
@@ -65,6 +69,14 @@ public class Tokenizer {
         return currentToken;
     }
 
+    /**
+     * peek()返回的token是否是参数 ?
+     * @return
+     */
+    public boolean isParam() {
+        return param;
+    }
+
     /**
      * 将当前的标记设置为需要刷新，这样下次调用peek()时会生成新的标记。
      */
@@ -125,6 +137,7 @@ public class Tokenizer {
      * @throws Exception
      */
     private String nextMetaState() throws Exception {
+        param = false;
         // 找到不是空白字符的字节
         while(true) {
             Byte b = peekByte();     // 获取下一个字节
@@ -138,7 +151,11 @@ public class Tokenizer {
         }
         // 开始获取token
         byte b = peekByte();    // 获取下一个字节
-        if(isSymbol(b)) {
+        param = b == '?';
+        if(b == '-' && pos+1 < stat.length && isDigit(stat[pos+1])) {
+            popByte();  // 紧跟数字的减号是负数的一部分
+            return "-" + nextTokenState();
+        } else if(isSymbol(b)) {
             popByte();  // 如果这个字节是一个符号，跳过这个字节
             return new String(new byte[]{b});   // 并返回这个符号
         } else if(b == '"' || b == '\'') {
@@ -157,21 +174,20 @@ public class Tokenizer {
      * @throws Exception
      */
     private String nextTokenState() throws Exception {
-        StringBuilder sb = new StringBuilder(); // 创建一个StringBuilder，用于存储标记
+        int start = pos;    // 标记的开始位置，结束后一次性截取，不逐个字节拼接
         while(true) {
             Byte b = peekByte();    // 获取下一个字节
             // 如果没有下一个字节，或者下一个字节不是字母、数字或下划线，那么结束循环
             if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+                String token = new String(stat, start, pos - start);
                 // 如果下一个字节是空白字符，那么跳过这个字节
                 if(b != null && isBlank(b)) {
                     popByte();
                 }
                 // 返回标记
-                return sb.toString();
+                return token;
             }
-            // 如果下一个字节是字母、数字或下划线，那么将这个字节添加到StringBuilder中
-            sb.append(new String(new byte[]{b}));
-            // 跳过这个字节
+            // 如果下一个字节是字母、数字或下划线，跳过这个字节
             popByte();
         }
     }
@@ -202,7 +218,7 @@ public class Tokenizer {
     private String nextQuoteState() throws Exception {
         byte quote = peekByte();    // 获取下一个字节，这应该是一个引号
         popByte();  // 跳过这个引号
-        StringBuilder sb = new StringBuilder(); // 创建一个StringBuilder，用于存储被引号包围的字符串
+        int start = pos;    // 字符串的开始位置
         while(true) {
             Byte b = peekByte();    // 获取下一个字节
             if(b == null) {
@@ -210,13 +226,13 @@ public class Tokenizer {
                 throw err;  // 并抛出异常
             }
             if(b == quote) {
-                popByte();  // 如果这个字节是引号，跳过这个字节，并跳出循环
-                break;
+                break;  // 如果这个字节是引号，跳出循环
             }
-            sb.append(new String(new byte[]{b}));   // 如果这个字节不是引号，将这个字节添加到StringBuilder中
-            popByte();  // 并跳过这个字节
+            popByte();  // 否则跳过这个字节
         }
-        return sb.toString();   // 返回被引号包围的字符串
+        String str = new String(stat, start, pos - start);
+        popByte();  // 跳过结尾的引号
+        return str;   // 返回被引号包围的字符串
     }
 
     /**
@@ -226,7 +242,7 @@ public class Tokenizer {
      */
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-		b == ',' || b == '(' || b == ')');
+		b == ',' || b == '(' || b == ')' || b == '?');
     }
 
     /**
@@ -0,0 +1,15 @@
+package cn.tangrl.javadb.backend.parser.statement;
+
+/**
+ * select 中的聚合函数，例如：count(*)、max(age)
+ * func 为 count、sum、min、max、avg 之一，field 为字段名，count(*) 时为 *
+ */
+public class Aggregate {
+    public String func;
+    public String field;
+
+    @Override
+    public String toString() {
+        return func + "(" + field + ")";
+    }
+}
@@ -5,4 +5,7 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    public String[] unique;
+    public String[] hash;
+    public String[] bloom;
 }
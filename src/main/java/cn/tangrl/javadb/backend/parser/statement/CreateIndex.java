@@ -0,0 +1,8 @@
+package cn.tangrl.javadb.backend.parser.statement;
+
+public class CreateIndex {
+    public String indexName;
+    public String tableName;
+    public String[] fieldName;
+    public String[] include;
+}
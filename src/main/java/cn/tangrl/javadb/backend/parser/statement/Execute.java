@@ -0,0 +1,9 @@
+package cn.tangrl.javadb.backend.parser.statement;
+
+/**
+ * 执行预处理语句：execute name value1 value2 ...，值按顺序对应语句中的参数
+ */
+public class Execute {
+    public String name;
+    public String[] values;
+}
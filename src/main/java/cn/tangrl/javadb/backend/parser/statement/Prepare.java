@@ -0,0 +1,20 @@
+package cn.tangrl.javadb.backend.parser.statement;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 预处理语句：prepare name statement，statement 中的值可以是参数 ?
+ * 例如：prepare find select * from student where id = ?
+ */
+public class Prepare {
+    public String name;
+    /**
+     * 解析好的语句，参数的位置上是 null
+     */
+    public Object statement;
+    /**
+     * 按参数在语句中出现的顺序，把值填入语句中对应的位置
+     */
+    public List<Consumer<String>> params;
+}
@@ -3,5 +3,19 @@ package cn.tangrl.javadb.backend.parser.statement;
 public class Select {
     public String tableName;
     public String[] fields;
+    /**
+     * 聚合函数，没有时为 null，有时 fields 为空，二者不能同时出现
+     */
+    public Aggregate[] aggregates;
     public Where where;
+    /**
+     * 排序的字段，没有 order by 时为 null，desc 为 true 时降序
+     */
+    public String orderBy;
+    public boolean desc;
+    /**
+     * 最多返回的记录数，-1 表示不限制；offset 为跳过的记录数
+     */
+    public long limit = -1;
+    public long offset;
 }
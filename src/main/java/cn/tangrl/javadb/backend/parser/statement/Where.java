@@ -1,7 +1,14 @@
 package cn.tangrl.javadb.backend.parser.statement;
 
+/**
+ * where 条件，是一棵表达式树，节点的种类由 logicOp 区分：
+ * 1. ""：比较，singleExp 是比较表达式，例如 id > 5；
+ * 2. "and"、"or"：与、或，left 和 right 是两个子条件；
+ * 3. "not"：非，left 是子条件。
+ */
 public class Where {
-    public SingleExpression singleExp1;
     public String logicOp;
-    public SingleExpression singleExp2;
+    public SingleExpression singleExp;
+    public Where left;
+    public Where right;
 }
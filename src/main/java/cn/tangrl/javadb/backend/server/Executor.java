@@ -1,24 +1,43 @@
 package cn.tangrl.javadb.backend.server;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import cn.tangrl.javadb.backend.parser.Parser;
 import cn.tangrl.javadb.backend.parser.statement.Abort;
 import cn.tangrl.javadb.backend.parser.statement.Begin;
 import cn.tangrl.javadb.backend.parser.statement.Commit;
 import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
+import cn.tangrl.javadb.backend.parser.statement.Execute;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
+import cn.tangrl.javadb.backend.parser.statement.Prepare;
 import cn.tangrl.javadb.backend.parser.statement.Select;
 import cn.tangrl.javadb.backend.parser.statement.Show;
 import cn.tangrl.javadb.backend.parser.statement.Update;
 import cn.tangrl.javadb.backend.tbm.BeginRes;
+import cn.tangrl.javadb.backend.tbm.ResultSet;
 import cn.tangrl.javadb.backend.tbm.TableManager;
 import cn.tangrl.javadb.common.Error;
+import cn.tangrl.javadb.transport.Package;
+import cn.tangrl.javadb.transport.Packager;
 
 /**
  * Executor 类负责解析和执行 SQL 语句。
  * 它与 TableManager 交互，处理事务并执行各种 SQL 操作。
  */
 public class Executor {
+    /**
+     * select 的结果每攒够 BATCH_SIZE 字节就发送一次
+     */
+    static final int BATCH_SIZE = 1 << 16;
+    /**
+     * 解析缓存最多保存的语句数
+     */
+    static final int PARSE_CACHE_SIZE = 64;
+
     /**
      * 事务xid
      * xid =0 ，表示此时没有事务在执行
@@ -28,6 +47,20 @@ public class Executor {
      * tbm模块对象
      */
     TableManager tbm;
+    /**
+     * 解析缓存，语句的文本 -> 解析出的命令对象，按最近使用的顺序淘汰
+     * 命令对象在执行时不会被修改，可以重复执行
+     */
+    private final Map<String, Object> parseCache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > PARSE_CACHE_SIZE;
+        }
+    };
+    /**
+     * 本次连接中的预处理语句，名称 -> 语句
+     */
+    private final Map<String, Prepare> prepared = new HashMap<>();
 
     /**
      * 构造函数
@@ -51,16 +84,41 @@ public class Executor {
     }
 
     /**
-     * 执行传入的sql字节数组
+     * 执行传入的sql字节数组，select 的结果全部读出后一起返回
      * @param sql
      * @return
      * @throws Exception
      */
     public byte[] execute(byte[] sql) throws Exception {
-        System.out.println("Execute: " + new String(sql));
-        // 解析出命令对象
-        Object stat = Parser.Parse(sql);
+        return execute(sql, null);
+    }
+
+    /**
+     * 执行传入的sql字节数组
+     * out 不为 null 时，select 的结果按批次发送（见 ResultSet）：除最后一批外，每批作为一个后面还有数据的 Package 发送，
+     * 最后一批作为返回值，由调用方与其他语句的结果一样发送，服务器的内存中最多只有两批结果
+     * @param sql
+     * @param out
+     * @return
+     * @throws Exception
+     */
+    public byte[] execute(byte[] sql, Packager out) throws Exception {
+        // 解析出命令对象，相同的语句只解析一次
+        String text = new String(sql);
+        Object stat = parseCache.get(text);
+        if(stat == null) {
+            stat = Parser.Parse(sql);
+            parseCache.put(text, stat);
+        }
         // 判断是什么命令，并执行
+        if(Prepare.class.isInstance(stat)) {
+            Prepare prepare = (Prepare)stat;
+            prepared.put(prepare.name, prepare);
+            return ("prepare " + prepare.name).getBytes();
+        }
+        if(Execute.class.isInstance(stat)) {
+            stat = bind((Execute)stat);
+        }
         if(Begin.class.isInstance(stat)) {
             // 如果xid不为0，说明此时有事务正在执行，不可以begin新的
             if(xid != 0) {
@@ -89,18 +147,40 @@ public class Executor {
             return res;
         } else {
             // 执行非事务操作命令
-            return execute2(stat);
+            return execute2(stat, out);
         }
     }
 
+    /**
+     * 把 execute 的值填入预处理语句的参数，返回填好的语句
+     * 同一连接中的语句依次执行，预处理语句可以直接修改后执行
+     * @param execute
+     * @return
+     * @throws Exception
+     */
+    private Object bind(Execute execute) throws Exception {
+        Prepare prepare = prepared.get(execute.name);
+        if(prepare == null) {
+            throw Error.PreparedNotFoundException;
+        }
+        if(execute.values.length != prepare.params.size()) {
+            throw Error.InvalidValuesException;
+        }
+        for(int i = 0; i < execute.values.length; i ++) {
+            prepare.params.get(i).accept(execute.values[i]);
+        }
+        return prepare.statement;
+    }
+
     /**
      * 执行非事务操作命令
      * 当执行单条语句的时候，也要开始一个事务
      * @param stat
+     * @param out
      * @return
      * @throws Exception
      */
-    private byte[] execute2(Object stat) throws Exception {
+    private byte[] execute2(Object stat, Packager out) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         // 如果xid == 0，begin一个事务
@@ -116,8 +196,10 @@ public class Executor {
                 res = tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
+            } else if(CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(xid, (CreateIndex)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                res = out == null ? tbm.read(xid, (Select)stat) : stream(tbm.select(xid, (Select)stat), out);
             } else if(Insert.class.isInstance(stat)) {
                 res = tbm.insert(xid, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
@@ -142,4 +224,28 @@ public class Executor {
             }
         }
     }
+
+    /**
+     * 按批次拉取 select 的结果并发送，返回最后一批
+     * @param rs
+     * @param out
+     * @return
+     * @throws Exception
+     */
+    private byte[] stream(ResultSet rs, Packager out) throws Exception {
+        byte[] last = new byte[0];
+        rs.open();
+        try {
+            byte[] batch;
+            while((batch = rs.next(BATCH_SIZE)) != null) {
+                if(last.length > 0) {
+                    out.send(Package.partial(last));
+                }
+                last = batch;
+            }
+        } finally {
+            rs.close();
+        }
+        return last;
+    }
 }
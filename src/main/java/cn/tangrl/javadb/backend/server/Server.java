@@ -136,7 +136,7 @@ class HandleSocket implements Runnable {
             byte[] result = null;
             Exception e = null;
             try {
-                result = exe.execute(sql);
+                result = exe.execute(sql, packager);
             } catch (Exception e1) {
                 e = e1;
                 e.printStackTrace();
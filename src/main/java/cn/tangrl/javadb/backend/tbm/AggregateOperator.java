@@ -0,0 +1,180 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.tangrl.javadb.backend.im.Cursor;
+import cn.tangrl.javadb.backend.parser.statement.Aggregate;
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * 聚合算子，逐条消费下层的记录，只保存每个聚合函数的中间结果，最后返回一条记录，列名为 Aggregate.toString()
+ * count 统计记录数，sum 和 avg 只用于整数字段，结果分别是 long 和 double；min 和 max 可用于任何字段，没有记录时为 null。
+ * 没有条件、且所有聚合函数都是B+树索引字段上的 min 或 max 时（indexed），直接在索引中查找（见 extreme()），不扫描表；
+ * 索引不能回答时再扫描下层的记录
+ */
+class AggregateOperator implements Operator {
+    private final Table tb;
+    private final long xid;
+    private final Operator child;
+    private final Aggregate[] aggregates;
+    /**
+     * 每个聚合函数的字段，count(*) 为 null
+     */
+    private final List<Field> fields;
+    private final boolean indexed;
+
+    private boolean done;
+    private long count;
+    private long[] sums;
+    private Object[] values;
+
+    AggregateOperator(Table tb, long xid, Operator child, Aggregate[] aggregates, List<Field> fields, boolean indexed) {
+        this.tb = tb;
+        this.xid = xid;
+        this.child = child;
+        this.aggregates = aggregates;
+        this.fields = fields;
+        this.indexed = indexed;
+    }
+
+    @Override
+    public void open() throws Exception {
+        done = false;
+        count = 0;
+        sums = new long[aggregates.length];
+        values = new Object[aggregates.length];
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        if(done) {
+            return null;
+        }
+        done = true;
+        if(!indexed || !fromIndex()) {
+            values = new Object[aggregates.length];
+            child.open();
+            try {
+                Map<String, Object> entry;
+                while((entry = child.next()) != null) {
+                    accumulate(entry);
+                }
+            } finally {
+                child.close();
+            }
+        }
+        Map<String, Object> res = new HashMap<>();
+        for(int i = 0; i < aggregates.length; i ++) {
+            res.put(aggregates[i].toString(), result(i));
+        }
+        return res;
+    }
+
+    private void accumulate(Map<String, Object> entry) {
+        count ++;
+        for(int i = 0; i < aggregates.length; i ++) {
+            Field fd = fields.get(i);
+            switch(aggregates[i].func) {
+                case "sum":
+                case "avg":
+                    sums[i] += ((Number)entry.get(fd.fieldName)).longValue();
+                    break;
+                case "min":
+                case "max":
+                    Object v = entry.get(fd.fieldName);
+                    int c = values[i] == null ? 0 : fd.compare(v, values[i]);
+                    if(values[i] == null || ("min".equals(aggregates[i].func) ? c < 0 : c > 0)) {
+                        values[i] = v;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private Object result(int i) {
+        switch(aggregates[i].func) {
+            case "count":
+                return count;
+            case "sum":
+                return sums[i];
+            case "avg":
+                return count == 0 ? null : (Object)((double)sums[i] / count);
+            default:
+                return values[i];
+        }
+    }
+
+    /**
+     * 在索引中求出所有的 min 和 max，有一个不能回答时返回 false
+     * @return
+     * @throws Exception
+     */
+    private boolean fromIndex() throws Exception {
+        for(int i = 0; i < aggregates.length; i ++) {
+            boolean max = "max".equals(aggregates[i].func);
+            Field fd = fields.get(i);
+            long left = Long.MIN_VALUE;
+            if(max) {
+                Long last = fd.lastKey();
+                if(last == null) {
+                    continue;
+                }
+                left = last;
+            }
+            if(!extreme(fd, left, i)) {
+                if(max) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从 key 为 left 的项开始按 key 的顺序查找，第一个当前有效的 key 上的值就是最小值；
+     * max 时 left 是最大的 key，查找其后所有的项（通常只有 key 为 left 的项）中最大的有效值。
+     * 有效：uid 对事务可见的版本中字段的 key 等于索引项的 key，更新或删除后还没有被 vacuum 清理的旧索引项无效；
+     * key 相同的值（字符串）再按值比较。找到时写入 values[i] 并返回 true
+     * @param fd
+     * @param left
+     * @param i
+     * @return
+     * @throws Exception
+     */
+    private boolean extreme(Field fd, long left, int i) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        RowReader reader = new RowReader(tb.layout);
+        int col = tb.fields.indexOf(fd);
+        boolean max = "max".equals(aggregates[i].func);
+        Cursor cursor = fd.scan(left, Long.MAX_VALUE);
+        Long found = null;
+        while(cursor.next()) {
+            long key = cursor.key();
+            if(!max && found != null && key != found) {
+                break;
+            }
+            Object v;
+            if(fd.isExactKey() && vm.isAllVisible((int)(cursor.uid() >>> 32))) {
+                v = fd.key2Value(key);
+            } else {
+                byte[] raw = vm.read(xid, cursor.uid());
+                if(raw == null) continue;
+                v = reader.reset(raw).get(col);
+                if(fd.value2Uid(v) != key) continue;
+            }
+            found = key;
+            int c = values[i] == null ? 0 : fd.compare(v, values[i]);
+            if(values[i] == null || (max ? c > 0 : c < 0)) {
+                values[i] = v;
+            }
+        }
+        // max 只查找最大的 key，其上没有有效的项时不能回答
+        return found != null || !max;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,277 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.primitives.Bytes;
+
+import cn.tangrl.javadb.backend.im.Cursor;
+import cn.tangrl.javadb.backend.im.KeyCodec;
+import cn.tangrl.javadb.backend.parser.statement.SingleExpression;
+import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
+import cn.tangrl.javadb.backend.utils.Panic;
+import cn.tangrl.javadb.backend.utils.ParseStringRes;
+import cn.tangrl.javadb.backend.utils.Parser;
+
+/**
+ * 组合索引，建立在一张表的多个字段上，由 create index idx on table(a, b, ...) 建立
+ * key 是各字段的值按顺序拼接后的编码（见 KeyCodec.Composite），可以按最左前缀查找：前面的字段是等值条件，下一个字段可以是范围条件。
+ * key 只保留前 8 个字节，查找的范围包含边界值，读出记录后总是要再比较一次字段的值（见 Table.matches()）。
+ *
+ * create index 的 include 子句中的字段追加在 key 的最后，只用于覆盖查询：前面的字段都是定长时，可以从 key 中还原出它们的值，见 keyValue()。
+ *
+ * 表记录的长度是固定的，不能再加入索引的信息，所以组合索引的定义单独以 entry 存储，与表一样使用头插法组成链表，
+ * 链表头保存在 Booter 文件中第一个表的 UID 之后。二进制格式为：
+ * [IndexName][TableName][NextIndex][IndexUid]
+ * [FieldName1][FieldName2]...[FieldNameN]
+ * 定义在索引建好之后才写入，此时 IndexUid 已经确定。
+ */
+public class CompositeIndex {
+    /**
+     * 索引定义（entry）的uid
+     */
+    long uid;
+    String name;
+    String tableName;
+    /**
+     * 下一个组合索引定义的uid
+     */
+    long nextUid;
+    /**
+     * 索引的字段，按 key 中的顺序
+     */
+    List<Field> fields;
+    private Table tb;
+    private IndexTree tree;
+
+    /**
+     * 通过uid从vm中读出索引的定义，并在已加载的表中找到对应的字段，表不存在时返回 null
+     * @param tbm
+     * @param tables 表名到表的映射
+     * @param uid
+     * @return
+     */
+    static CompositeIndex loadIndex(TableManagerImpl tbm, Map<String, Table> tables, long uid) {
+        byte[] raw = null;
+        try {
+            raw = tbm.vm.read(TransactionManagerImpl.SUPER_XID, uid);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        assert raw != null;
+        ParseStringRes res = Parser.parseString(raw);
+        String name = res.str;
+        int position = res.next;
+        res = Parser.parseString(raw, position);
+        position += res.next;
+        Table tb = tables.get(res.str);
+        long nextUid = ByteCodec.getLong(raw, position);
+        position += 8;
+        long index = ByteCodec.getLong(raw, position);
+        position += 8;
+        if(tb == null) {
+            CompositeIndex skipped = new CompositeIndex();
+            skipped.nextUid = nextUid;
+            return skipped;
+        }
+        List<Field> fields = new ArrayList<>();
+        while(position < raw.length) {
+            res = Parser.parseString(raw, position);
+            position += res.next;
+            try {
+                fields.add(tb.getField(res.str));
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+        CompositeIndex ci = new CompositeIndex(tb, name, fields);
+        ci.uid = uid;
+        ci.nextUid = nextUid;
+        try {
+            ci.tree.load(index);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return ci;
+    }
+
+    private CompositeIndex() {
+    }
+
+    /**
+     * 构造函数，索引还未建立
+     * @param tb
+     * @param name
+     * @param fields
+     */
+    CompositeIndex(Table tb, String name, List<Field> fields) {
+        this.tb = tb;
+        this.name = name;
+        this.tableName = tb.name;
+        this.fields = fields;
+        this.tree = new IndexTree(((TableManagerImpl)tb.tbm).dm);
+    }
+
+    /**
+     * 表已不存在时 loadIndex() 返回的占位对象只用于继续遍历链表
+     * @return
+     */
+    boolean isLoaded() {
+        return tb != null;
+    }
+
+    /**
+     * 将索引的定义持久化，以超级事务写入，不随建立索引的事务回滚
+     * @param nextUid
+     * @throws Exception
+     */
+    void persistSelf(long nextUid) throws Exception {
+        this.nextUid = nextUid;
+        byte[] raw = Bytes.concat(Parser.string2Byte(name), Parser.string2Byte(tableName),
+            Parser.long2Byte(nextUid), Parser.long2Byte(tree.uid()));
+        for(Field field : fields) {
+            raw = Bytes.concat(raw, Parser.string2Byte(field.fieldName));
+        }
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(TransactionManagerImpl.SUPER_XID, raw);
+    }
+
+    /**
+     * 一条记录在这个索引中的 key
+     * @param entry
+     * @return
+     */
+    long key(Map<String, Object> entry) {
+        KeyCodec.Composite c = new KeyCodec.Composite();
+        for(Field field : fields) {
+            field.putKey(c, entry.get(field.fieldName));
+        }
+        return c.key();
+    }
+
+    /**
+     * 索引的第 i 个字段
+     * @param i
+     * @return
+     */
+    Field field(int i) {
+        return fields.get(i);
+    }
+
+    /**
+     * 计算 exps 在索引中的 key 范围，exps[i] 是第 i 个字段上的条件
+     * 除最后一个条件外都应该是等值条件；范围包含边界值，由调用方再比较字段的值
+     * @param exps
+     * @return
+     */
+    FieldCalRes calExp(SingleExpression... exps) {
+        KeyCodec.Composite low = new KeyCodec.Composite(), high = new KeyCodec.Composite();
+        for(int i = 0; i < exps.length; i ++) {
+            Field field = fields.get(i);
+            Object v = field.string2Value(exps[i].value);
+            switch(exps[i].compareOp) {
+                case "=":
+                    field.putKey(low, v);
+                    field.putKey(high, v);
+                    break;
+                case "<":
+                    field.putKey(high, v);
+                    break;
+                case ">":
+                    field.putKey(low, v);
+                    break;
+            }
+        }
+        FieldCalRes res = new FieldCalRes();
+        res.left = low.key();
+        res.right = high.keyMax();
+        return res;
+    }
+
+    /**
+     * 第一个字段上的等值条件 e0 编码后是否给第二个字段留有空间
+     * int64 和 7 个字节以上的 string 占满了 key 的 8 个字节，第二个字段上的条件不能再缩小查找的范围
+     * @param e0
+     * @return
+     */
+    boolean leavesRoom(SingleExpression e0) {
+        Field field = fields.get(0);
+        KeyCodec.Composite c = new KeyCodec.Composite();
+        field.putKey(c, field.string2Value(e0.value));
+        return c.size() < 8;
+    }
+
+    /**
+     * 字段 fd 的值在 key 中开始的字节位置，fd 不在索引中、或值没有完整地保存在 key 中时返回 -1
+     * 只有前面的字段都是定长的（int32、int64），位置才是确定的
+     * @param fd
+     * @return
+     */
+    int keyOffset(Field fd) {
+        int offset = 0;
+        for(Field field : fields) {
+            int width = field.keyWidth();
+            if(width < 0 || offset + width > 8) {
+                return -1;
+            }
+            if(field == fd) {
+                return offset;
+            }
+            offset += width;
+        }
+        return -1;
+    }
+
+    /**
+     * 从 key 中还原出字段 fd 的值，调用前用 keyOffset() 确认值完整地保存在 key 中
+     * @param key
+     * @param fd
+     * @return
+     */
+    Object keyValue(long key, Field fd) {
+        long v = KeyCodec.Composite.get(key, keyOffset(fd), fd.keyWidth());
+        return fd.keyWidth() == 4 ? (Object)(int)v : (Object)v;
+    }
+
+    boolean isReady() {
+        return tree.isReady();
+    }
+
+    boolean isMaintained() {
+        return tree.isMaintained();
+    }
+
+    void beginBuild() throws Exception {
+        tree.beginBuild();
+    }
+
+    void abortBuild() {
+        tree.abortBuild();
+    }
+
+    void finishBuild(long index) throws Exception {
+        tree.finishBuild(index);
+    }
+
+    void insert(Map<String, Object> entry, long uid) throws Exception {
+        tree.insert(key(entry), uid);
+    }
+
+    boolean replace(Map<String, Object> entry, long uid, long newUid) throws Exception {
+        return tree.replace(key(entry), uid, newUid);
+    }
+
+    Cursor scan(long left, long right) throws Exception {
+        return tree.scan(left, right);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(").append(name).append(":");
+        for(Field field : fields) {
+            sb.append(" ").append(field.fieldName);
+        }
+        return sb.append(")").toString();
+    }
+}
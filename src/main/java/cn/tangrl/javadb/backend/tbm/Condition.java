@@ -0,0 +1,138 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import cn.tangrl.javadb.backend.parser.statement.SingleExpression;
+import cn.tangrl.javadb.backend.parser.statement.Where;
+import cn.tangrl.javadb.common.Error;
+
+/**
+ * where 条件的处理，供 Table 使用
+ * 1. normalize()：把 not 下推到比较表达式并消去，得到只有与、或和比较的条件树，便于选择索引（见 Table.parseWhere()）；
+ * 2. compile()：每条语句只编译一次，把条件树编译为判断一条记录是否满足条件的函数，
+ *    比较表达式在编译时就找到字段、解析好值（见 Field.compile()），之后每条记录只需要比较，不再解释条件树。
+ */
+class Condition {
+    /**
+     * 把 not 下推到比较表达式：not (a and b) = not a or not b，not (a or b) = not a and not b，
+     * not (x = v) = x < v or x > v，not (x < v) = x = v or x > v，not (x > v) = x = v or x < v
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    static Where normalize(Where where) throws Exception {
+        return normalize(where, false);
+    }
+
+    private static Where normalize(Where where, boolean negate) throws Exception {
+        switch(where.logicOp) {
+            case "not":
+                return normalize(where.left, !negate);
+            case "and":
+            case "or":
+                String op = negate == "and".equals(where.logicOp) ? "or" : "and";
+                return logic(op, normalize(where.left, negate), normalize(where.right, negate));
+            case "":
+                if(!negate) {
+                    return where;
+                }
+                SingleExpression exp = where.singleExp;
+                switch(exp.compareOp) {
+                    case "=":
+                        return logic("or", compare(exp, "<"), compare(exp, ">"));
+                    case "<":
+                        return logic("or", compare(exp, "="), compare(exp, ">"));
+                    case ">":
+                        return logic("or", compare(exp, "="), compare(exp, "<"));
+                }
+        }
+        throw Error.InvalidLogOpException;
+    }
+
+    private static Where logic(String logicOp, Where left, Where right) {
+        Where where = new Where();
+        where.logicOp = logicOp;
+        where.left = left;
+        where.right = right;
+        return where;
+    }
+
+    private static Where compare(SingleExpression exp, String compareOp) {
+        SingleExpression e = new SingleExpression();
+        e.field = exp.field;
+        e.compareOp = compareOp;
+        e.value = exp.value;
+        Where where = new Where();
+        where.logicOp = "";
+        where.singleExp = e;
+        return where;
+    }
+
+    /**
+     * 把用 and 连接的条件展开，比较表达式放入 exps，其他子条件（或）放入 others
+     * @param where
+     * @param exps
+     * @param others
+     */
+    static void conjuncts(Where where, List<SingleExpression> exps, List<Where> others) {
+        switch(where.logicOp) {
+            case "and":
+                conjuncts(where.left, exps, others);
+                conjuncts(where.right, exps, others);
+                break;
+            case "":
+                exps.add(where.singleExp);
+                break;
+            default:
+                others.add(where);
+        }
+    }
+
+    /**
+     * 把条件中用到的字段加入 fields
+     * @param tb
+     * @param where
+     * @param fields
+     * @throws Exception
+     */
+    static void fields(Table tb, Where where, Set<Field> fields) throws Exception {
+        if("".equals(where.logicOp)) {
+            fields.add(tb.getField(where.singleExp.field));
+            return;
+        }
+        fields(tb, where.left, fields);
+        if(where.right != null) {
+            fields(tb, where.right, fields);
+        }
+    }
+
+    /**
+     * 把条件编译为判断记录是否满足条件的函数，where 为 null 时总是满足
+     * @param tb
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    static Predicate<Map<String, Object>> compile(Table tb, Where where) throws Exception {
+        if(where == null) {
+            return entry -> true;
+        }
+        switch(where.logicOp) {
+            case "and":
+                return compile(tb, where.left).and(compile(tb, where.right));
+            case "or":
+                return compile(tb, where.left).or(compile(tb, where.right));
+            case "not":
+                return compile(tb, where.left).negate();
+            case "":
+                Field fd = tb.getField(where.singleExp.field);
+                Predicate<Object> p = fd.compile(where.singleExp);
+                String name = fd.fieldName;
+                return entry -> p.test(entry.get(name));
+        }
+        throw Error.InvalidLogOpException;
+    }
+}
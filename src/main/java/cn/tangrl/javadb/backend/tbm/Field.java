@@ -1,13 +1,18 @@
 package cn.tangrl.javadb.backend.tbm;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.function.Predicate;
 
 import com.google.common.primitives.Bytes;
 
-import cn.tangrl.javadb.backend.im.BPlusTree;
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.im.Cursor;
+import cn.tangrl.javadb.backend.im.HashIndex;
+import cn.tangrl.javadb.backend.im.KeyCodec;
+import cn.tangrl.javadb.backend.im.UniqueCheck;
 import cn.tangrl.javadb.backend.parser.statement.SingleExpression;
 import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Panic;
 import cn.tangrl.javadb.backend.utils.ParseStringRes;
 import cn.tangrl.javadb.backend.utils.Parser;
@@ -16,12 +21,18 @@ import cn.tangrl.javadb.common.Error;
 /**
  * field 表示字段信息，单个字段信息和表信息都是直接保存在 Entry 中。
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][Flags]
  * FieldName 和 TypeName，以及后面的表明，存储的都是字节形式的字符串。这里规定一个字符串的存储方式：[StringLength][StringData]。
  * TypeName 为字段的类型，限定为 int32、int64 和 string 类型。
  * 如果这个字段有索引，那个 IndexUID 指向了索引二叉树的根，否则该字段为 0。
+ * Flags 为 1 个字节，最低位表示索引是唯一索引，第二位表示索引是哈希索引（IndexUid 指向 HashIndex），第三位表示B+树索引启用了布隆过滤器，
+ * 之前创建的字段记录没有这个字节。
  */
 public class Field {
+    private static final byte FLAG_UNIQUE = 1;
+    private static final byte FLAG_HASH = 2;
+    private static final byte FLAG_BLOOM = 4;
+
     /**
      * field（entry）的uid
      */
@@ -39,13 +50,17 @@ public class Field {
      */
     String fieldType;
     /**
-     * IndexUid
+     * 字段的索引，IndexUid 为 0 时没有索引
+     */
+    private IndexTree tree;
+    /**
+     * 索引是否是唯一索引
      */
-    private long index;
+    boolean unique;
     /**
-     * b+树引用
+     * 字段的哈希索引，只能用于等值查找，与B+树索引二选一，只在建表时创建
      */
-    private BPlusTree bt;
+    private HashIndex hash;
 
     /**
      * 通过uid从vm中取并解析字段
@@ -75,6 +90,7 @@ public class Field {
     public Field(long uid, Table tb) {
         this.uid = uid;
         this.tb = tb;
+        this.tree = new IndexTree(((TableManagerImpl)tb.tbm).dm);
     }
 
     /**
@@ -88,7 +104,12 @@ public class Field {
         this.tb = tb;
         this.fieldName = fieldName;
         this.fieldType = fieldType;
-        this.index = index;
+        this.tree = new IndexTree(((TableManagerImpl)tb.tbm).dm);
+        try {
+            tree.load(index);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
     }
 
     /**
@@ -101,17 +122,24 @@ public class Field {
         ParseStringRes res = Parser.parseString(raw);
         fieldName = res.str;
         position += res.next;
-        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        res = Parser.parseString(raw, position);
         fieldType = res.str;
         position += res.next;
-        this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
-        // 如果IndexUid存在，则从b+树中读出对应的b+树对象
-        if(index != 0) {
-            try {
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
-            } catch(Exception e) {
-                Panic.panic(e);
+        byte flags = raw.length > position+8 ? raw[position+8] : 0;
+        unique = (flags & FLAG_UNIQUE) != 0;
+        // 如果IndexUid存在，则从b+树中读出对应的b+树对象，哈希索引则加载 HashIndex
+        try {
+            if((flags & FLAG_HASH) != 0) {
+                hash = HashIndex.load(ByteCodec.getLong(raw, position), ((TableManagerImpl)tb.tbm).dm);
+                return this;
             }
+            tree.load(ByteCodec.getLong(raw, position));
+            // 布隆过滤器不持久化，加载时由B+树重新建立
+            if((flags & FLAG_BLOOM) != 0) {
+                tree.enableFilter();
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
         }
         return this;
     }
@@ -124,21 +152,30 @@ public class Field {
      * @param fieldName
      * @param fieldType
      * @param indexed 是否需要索引
+     * @param unique 是否是唯一索引，唯一索引总是需要索引
+     * @param hashed 是否使用哈希索引代替B+树，不能是唯一索引
+     * @param bloom 是否为B+树索引启用布隆过滤器，启用时总是需要索引，不能是哈希索引
      * @return
      * @throws Exception
      */
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, boolean unique, boolean hashed, boolean bloom) throws Exception {
         // 类型检查，检查是否为int32、int64和string
         typeCheck(fieldType);
+        if(hashed && (unique || bloom)) {
+            throw Error.InvalidCommandException;
+        }
         // 创建field对象
         Field f = new Field(tb, fieldName, fieldType, 0);
-        // 如果这个字段需要索引，创建对应的b+树，并对field对象的属性进行复制
-        if(indexed) {
-            // index是uid
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
-            f.index = index;
-            f.bt = bt;
+        f.unique = unique;
+        // 如果这个字段需要索引，创建对应的b+树或哈希索引
+        if(hashed) {
+            DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+            f.hash = HashIndex.load(HashIndex.create(dm), dm);
+        } else if(indexed || unique || bloom) {
+            f.tree.create();
+            if(bloom) {
+                f.tree.enableFilter();
+            }
         }
         // 将相关的信息通过 VM 持久化
         f.persistSelf(xid);
@@ -154,9 +191,10 @@ public class Field {
     private void persistSelf(long xid) throws Exception {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
-        byte[] indexRaw = Parser.long2Byte(index);
+        byte[] indexRaw = Parser.long2Byte(hash != null ? hash.bootUid() : tree.uid());
+        byte[] flagsRaw = new byte[]{(byte)((unique ? FLAG_UNIQUE : 0) | (hash != null ? FLAG_HASH : 0) | (tree.hasFilter() ? FLAG_BLOOM : 0))};
         // 通过vm将数据持久化
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, flagsRaw));
     }
 
     /**
@@ -171,11 +209,74 @@ public class Field {
     }
 
     /**
-     * 根据indexUID判断这个字段是否被索引
+     * 根据indexUID判断这个字段是否有可以按范围查找的B+树索引
      * @return
      */
     public boolean isIndexed() {
-        return index != 0;
+        return tree.isReady();
+    }
+
+    /**
+     * 这个字段是否有哈希索引，只能用于等值查找，见 lookup()
+     * @return
+     */
+    public boolean isHashed() {
+        return hash != null;
+    }
+
+    /**
+     * 布隆过滤器是否需要重新建立，没有启用时返回 false
+     * @return
+     */
+    boolean filterNeedsRebuild() {
+        return tree.filterNeedsRebuild();
+    }
+
+    /**
+     * 扫描B+树重新建立布隆过滤器，由 vacuum 在删除索引项之后调用
+     * @throws Exception
+     */
+    void rebuildFilter() throws Exception {
+        tree.rebuildFilter();
+    }
+
+    /**
+     * 写入记录时是否需要维护这个字段的索引，索引已建好或正在建立时都需要
+     * @return
+     */
+    public boolean isMaintained() {
+        return hash != null || tree.isMaintained();
+    }
+
+    /**
+     * 开始建立索引，之后对索引的修改都被记录下来
+     * 已有哈希索引的字段不能再建立B+树索引
+     * @throws Exception
+     */
+    void beginBuild() throws Exception {
+        if(hash != null) {
+            throw Error.DuplicatedIndexException;
+        }
+        tree.beginBuild();
+    }
+
+    /**
+     * 放弃建立索引
+     */
+    void abortBuild() {
+        tree.abortBuild();
+    }
+
+    /**
+     * 索引已批量建好，启用索引（见 IndexTree.finishBuild()），并将 IndexUid 写回字段记录
+     * @param index 批量建立的B+树的 bootUid
+     * @throws Exception
+     */
+    void finishBuild(long index) throws Exception {
+        tree.finishBuild(index);
+        // IndexUid 在字段记录的最后 8 个字节
+        int offset = Parser.string2Byte(fieldName).length + Parser.string2Byte(fieldType).length;
+        ((TableManagerImpl)tb.tbm).vm.updateInPlace(uid, offset, Parser.long2Byte(index));
     }
 
     /**
@@ -189,18 +290,96 @@ public class Field {
         // 获取key的ukey
         long uKey = value2Uid(key);
         // 将ukey和uid插入到节点中
-        bt.insert(uKey, uid);
+        if(hash != null) {
+            hash.insert(uKey, uid);
+            return;
+        }
+        tree.insert(uKey, uid);
+    }
+
+    /**
+     * 唯一索引的插入，已有值相同的记录时不插入，返回 false
+     * @param key 字段的值
+     * @param uid
+     * @param check 判断 key 相同的记录的值是否相同且仍然存在
+     * @return
+     * @throws Exception
+     */
+    public boolean insertUnique(Object key, long uid, UniqueCheck check) throws Exception {
+        return tree.insertUnique(value2Uid(key), uid, check);
+    }
+
+    /**
+     * 将key：uid从b+树中删除，返回是否找到
+     * @param key
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public boolean delete(Object key, long uid) throws Exception {
+        if(hash != null) {
+            return hash.delete(value2Uid(key), uid);
+        }
+        return tree.delete(value2Uid(key), uid);
+    }
+
+    /**
+     * 将b+树中的key：uid替换为key：newUid，返回是否找到
+     * @param key
+     * @param uid
+     * @param newUid
+     * @return
+     * @throws Exception
+     */
+    public boolean replace(Object key, long uid, long newUid) throws Exception {
+        if(hash != null) {
+            return hash.replace(value2Uid(key), uid, newUid);
+        }
+        return tree.replace(value2Uid(key), uid, newUid);
     }
 
     /**
-     * 从b+树中搜索范围内的uids
+     * 从b+树中搜索范围内的uids，等值查找时先检查布隆过滤器
      * @param left
      * @param right
      * @return
      * @throws Exception
      */
     public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+        if(hash != null && left == right) {
+            return hash.search(left);
+        }
+        return tree.search(left, right);
+    }
+
+    /**
+     * 返回索引中 [left, right] 范围的游标
+     * @param left
+     * @param right
+     * @return
+     * @throws Exception
+     */
+    public Cursor scan(long left, long right) throws Exception {
+        return tree.scan(left, right);
+    }
+
+    /**
+     * 索引中最大的 key，索引为空时返回 null，见 BPlusTree.lastKey()
+     * @return
+     * @throws Exception
+     */
+    Long lastKey() throws Exception {
+        return tree.lastKey();
+    }
+
+    /**
+     * 在哈希索引中等值查找 key 的游标
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public Cursor lookup(long key) throws Exception {
+        return hash.cursor(key);
     }
 
     /**
@@ -222,7 +401,7 @@ public class Field {
     }
 
     /**
-     * 根据key和fieldType，输出key的uid
+     * 根据key和fieldType，输出key在索引中的编码，保持值的顺序，见 KeyCodec
      * key应该是这个字段的值
      * @param key
      * @return
@@ -231,92 +410,125 @@ public class Field {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = KeyCodec.ofString((String)key);
                 break;
             case "int32":
-                int uint = (int)key;
-                return (long)uint;
+                uid = KeyCodec.ofInt((int)key);
+                break;
             case "int64":
-                uid = (long)key;
+                uid = KeyCodec.ofLong((long)key);
                 break;
         }
         return uid;
     }
 
     /**
-     * 将value转化为byte数组
+     * 将字段的值加入组合索引的 key
+     * @param c
      * @param v
-     * @return
      */
-    public byte[] value2Raw(Object v) {
-        byte[] raw = null;
+    public void putKey(KeyCodec.Composite c, Object v) {
         switch(fieldType) {
             case "int32":
-                raw = Parser.int2Byte((int)v);
+                c.putInt((int)v);
                 break;
             case "int64":
-                raw = Parser.long2Byte((long)v);
+                c.putLong((long)v);
                 break;
             case "string":
-                raw = Parser.string2Byte((String)v);
+                c.putString((String)v);
                 break;
         }
-        return raw;
     }
 
     /**
-     * 字段的值结果类
+     * 字段的值在组合索引的 key 中占的字节数，string 是变长的，返回 -1，见 KeyCodec.Composite
+     * @return
+     */
+    public int keyWidth() {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 由单个字段的索引中的 key 还原出字段的值，只用于 isExactKey() 的字段
+     * @param key
+     * @return
      */
-    class ParseValueRes {
-        Object v;
-        // 占用字节大小
-        int shift;
+    public Object key2Value(long key) {
+        return "int32".equals(fieldType) ? (Object)(int)key : (Object)key;
     }
 
     /**
-     * 将byte数组解析为ParseValueRes对象
-     * @param raw
+     * 索引中的 key 是否能区分这个字段所有的值，string 字段的 key 只是前缀，按索引查找后需要再比较字段的值
+     * @return
+     */
+    public boolean isExactKey() {
+        return !"string".equals(fieldType);
+    }
+
+    /**
+     * 按字段的类型比较两个值
+     * @param v1
+     * @param v2
      * @return
      */
-    public ParseValueRes parserValue(byte[] raw) {
-        ParseValueRes res = new ParseValueRes();
+    public int compare(Object v1, Object v2) {
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
-                break;
+                return Integer.compare((int)v1, (int)v2);
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
-                res.shift = 8;
-                break;
-            case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
-                break;
+                return Long.compare((long)v1, (long)v2);
+            default:
+                return KeyCodec.compareString((String)v1, (String)v2);
         }
-        return res;
     }
 
     /**
-     * 打印出字段的值
-     * @param v
+     * 将表达式编译为判断字段的值是否满足表达式的函数
+     * 表达式中的值只解析一次，按字段类型和比较操作选择对应的比较，每条记录只做一次比较
+     * @param exp
      * @return
+     * @throws Exception
      */
-    public String printValue(Object v) {
-        String str = null;
+    public Predicate<Object> compile(SingleExpression exp) throws Exception {
+        Object c = string2Value(exp.value);
         switch(fieldType) {
-            case "int32":
-                str = String.valueOf((int)v);
+            case "int32": {
+                int k = (int)c;
+                switch(exp.compareOp) {
+                    case "<": return v -> (int)v < k;
+                    case "=": return v -> (int)v == k;
+                    case ">": return v -> (int)v > k;
+                }
                 break;
-            case "int64":
-                str = String.valueOf((long)v);
+            }
+            case "int64": {
+                long k = (long)c;
+                switch(exp.compareOp) {
+                    case "<": return v -> (long)v < k;
+                    case "=": return v -> (long)v == k;
+                    case ">": return v -> (long)v > k;
+                }
                 break;
-            case "string":
-                str = (String)v;
+            }
+            case "string": {
+                String k = (String)c;
+                switch(exp.compareOp) {
+                    case "<": return v -> KeyCodec.compareString((String)v, k) < 0;
+                    case "=": return v -> k.equals(v);
+                    case ">": return v -> KeyCodec.compareString((String)v, k) > 0;
+                }
                 break;
+            }
         }
-        return str;
+        throw Error.InvalidLogOpException;
     }
 
     /**
@@ -329,39 +541,51 @@ public class Field {
             .append(fieldName)
             .append(", ")
             .append(fieldType)
-            .append(index!=0?", Index":", NoIndex")
+            .append(hash != null ? ", Hash" : tree.isReady()?(unique?", Unique":", Index"):", NoIndex")
+            .append(tree.hasFilter() ? ", Bloom" : "")
             .append(")")
             .toString();
     }
 
     /**
-     * 根据传入的SingleExpression对象（例如id > 5），计算出FieldCalRes对象（即表达式的结果）
+     * 根据传入的SingleExpression对象（例如id > 5），计算出FieldCalRes对象（即表达式在索引中的 key 范围）
+     * key 不能区分所有的值时（见 isExactKey()），范围包含与边界值 key 相同的部分，由调用方再比较字段的值
+     * 范围为空时 left 大于 right
      * @param exp
      * @return
      * @throws Exception
      */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        Object v = string2Value(exp.value);
+        long key = value2Uid(v);
+        boolean exact = isExactKey();
         FieldCalRes res = new FieldCalRes();
         switch(exp.compareOp) {
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                // value2Uid返回的是数值
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
+                res.left = Long.MIN_VALUE;
+                res.right = key;
+                if(exact) {
+                    if(key == Long.MIN_VALUE) {
+                        res.left = Long.MAX_VALUE;
+                    } else {
+                        res.right --;
+                    }
                 }
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = key;
+                res.right = key;
                 break;
             case ">":
+                res.left = key;
                 res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                if(exact) {
+                    if(key == Long.MAX_VALUE) {
+                        res.right = Long.MIN_VALUE;
+                    } else {
+                        res.left ++;
+                    }
+                }
                 break;
         }
         return res;
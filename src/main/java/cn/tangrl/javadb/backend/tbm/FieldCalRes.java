@@ -3,7 +3,8 @@ package cn.tangrl.javadb.backend.tbm;
 /**
  * 这个对象存放SingleExpression进一步解析的结果，存放比较表达式
  * = 操作时，left=rigt
- * < 操作时，left=0，right=value
+ * < 操作时，left=Long.MIN_VALUE，right=value 的 key 减一
+ * 范围为空时 left 大于 right
  */
 public class FieldCalRes {
     public long left;
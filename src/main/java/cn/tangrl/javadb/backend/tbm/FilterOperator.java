@@ -0,0 +1,38 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 过滤算子，只返回满足条件的记录，条件由 Condition.compile() 编译
+ */
+class FilterOperator implements Operator {
+    private final Operator child;
+    private final Predicate<Map<String, Object>> cond;
+
+    FilterOperator(Operator child, Predicate<Map<String, Object>> cond) {
+        this.child = child;
+        this.cond = cond;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        Map<String, Object> entry;
+        while((entry = child.next()) != null) {
+            if(cond.test(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,92 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.List;
+
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.vm.ReadPageRes;
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * 表的顺序扫描，按页号顺序读出表的数据页中对事务可见的记录，用于没有可用索引的条件，以及没有条件的全表读取
+ * 每次处理一个页面（见 VersionManager.readPage()），同时预读之后 READ_AHEAD 个页面（见 DataManager.prefetch()）。
+ * 扫描的页面在开始时确定，之后新分配给表的页面不会被扫描到。
+ * 返回的 uid 是 HOT 版本链的链首，与索引中的 uid 相同；记录的数据已经读出，通过 raw() 获取，不需要再读一次。
+ * 顺序扫描没有索引的 key，所以不是 Cursor，由 IndexScan 包装后与索引扫描一起使用
+ */
+class HeapScan {
+    static final int READ_AHEAD = 4;
+
+    private final VersionManager vm;
+    private final DataManager dm;
+    private final long xid;
+    private final List<Integer> pages;
+    /**
+     * 下一个要读的页面在 pages 中的下标
+     */
+    private int nextPage;
+    private ReadPageRes page;
+    private int pos;
+
+    HeapScan(Table tb, long xid) {
+        TableManagerImpl tbm = (TableManagerImpl)tb.tbm;
+        this.vm = tbm.vm;
+        this.dm = tbm.dm;
+        this.xid = xid;
+        this.pages = dm.getPages(tb.uid);
+        for(int i = 0; i < READ_AHEAD && i < pages.size(); i ++) {
+            dm.prefetch(pages.get(i));
+        }
+    }
+
+    /**
+     * 移到下一条可见的记录，没有更多的记录时返回 false
+     * @return
+     * @throws Exception
+     */
+    boolean next() throws Exception {
+        pos ++;
+        while(page == null || pos >= page.uids.size()) {
+            if(nextPage == pages.size()) {
+                return false;
+            }
+            int pgno = pages.get(nextPage);
+            if(nextPage + READ_AHEAD < pages.size()) {
+                dm.prefetch(pages.get(nextPage + READ_AHEAD));
+            }
+            try {
+                page = vm.readPage(xid, pgno);
+            } finally {
+                dm.unpin(pgno);
+            }
+            nextPage ++;
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 当前记录的 uid，在 next() 返回 true 之后调用
+     * @return
+     */
+    long uid() {
+        return page.uids.get(pos);
+    }
+
+    /**
+     * 当前记录对事务可见的版本的数据
+     * @return
+     */
+    byte[] raw() {
+        return page.raws.get(pos);
+    }
+
+    /**
+     * 结束扫描，释放已经预读、但还没有读到的页面，扫描提前结束（例如 limit）时页面才不会一直被引用
+     */
+    void close() {
+        for(int i = nextPage; i < nextPage + READ_AHEAD && i < pages.size(); i ++) {
+            dm.unpin(pages.get(i));
+        }
+        nextPage = pages.size();
+    }
+}
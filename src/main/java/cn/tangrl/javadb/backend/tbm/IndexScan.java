@@ -0,0 +1,128 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.tangrl.javadb.backend.im.Cursor;
+
+/**
+ * 索引上的一次扫描，即 Table.parseWhere() 选出的索引和它的游标，没有可用的索引时是表的顺序扫描（见 HeapScan）
+ * 除了逐个返回 uid，还能判断索引的 key 是否包含了查询需要的所有字段（覆盖索引），是时可以直接从 key 还原出这些字段的值：
+ * 1. 单个字段的索引（B+树或哈希索引）：字段的 key 能区分所有的值（int32、int64），key 就是字段的值；
+ * 2. 组合索引：字段的值完整地保存在 key 的前 8 个字节中，见 CompositeIndex.keyOffset()。
+ * 记录所在的页面全部可见时（见 VersionManager.isAllVisible()），覆盖索引上的扫描可以不读取记录，见 ScanOperator
+ */
+class IndexScan implements Cursor {
+    private final Cursor cursor;
+    /**
+     * 扫描的单个字段的索引或组合索引，只有一个不为 null，顺序扫描时都为 null
+     */
+    private final Field field;
+    private final CompositeIndex index;
+    /**
+     * 顺序扫描，此时 cursor 为 null；索引扫描时为 null
+     */
+    private final HeapScan heap;
+
+    IndexScan(Cursor cursor, Field field) {
+        this.cursor = cursor;
+        this.field = field;
+        this.index = null;
+        this.heap = null;
+    }
+
+    IndexScan(Cursor cursor, CompositeIndex index) {
+        this.cursor = cursor;
+        this.field = null;
+        this.index = index;
+        this.heap = null;
+    }
+
+    IndexScan(HeapScan heap) {
+        this.cursor = null;
+        this.field = null;
+        this.index = null;
+        this.heap = heap;
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        return heap != null ? heap.next() : cursor.next();
+    }
+
+    @Override
+    public long uid() {
+        return heap != null ? heap.uid() : cursor.uid();
+    }
+
+    /**
+     * 当前 uid 在索引中的 key，顺序扫描没有 key，不能调用
+     * @return
+     */
+    @Override
+    public long key() {
+        if(heap != null) {
+            throw new IllegalStateException();
+        }
+        return cursor.key();
+    }
+
+    /**
+     * 顺序扫描时返回已读出的当前记录的数据，索引扫描时返回 null，需要调用方读取记录
+     * @return
+     */
+    byte[] raw() {
+        return heap != null ? heap.raw() : null;
+    }
+
+    /**
+     * 结束扫描，顺序扫描释放预读的页面
+     */
+    void close() {
+        if(heap != null) {
+            heap.close();
+        }
+    }
+
+    /**
+     * 返回的记录是否按 fd 的值升序排列：单个字段的索引按 key 的顺序返回，key 能区分所有的值时就是值的顺序；
+     * 哈希索引的等值查找返回的记录中 fd 的值都相同，同样有序
+     * @param fd
+     * @return
+     */
+    boolean orderedBy(Field fd) {
+        return field != null && field == fd && fd.isExactKey();
+    }
+
+    /**
+     * 能否从 key 中还原出 needed 中所有字段的值，顺序扫描没有 key
+     * @param needed
+     * @return
+     */
+    boolean covers(Collection<Field> needed) {
+        if(heap != null) {
+            return false;
+        }
+        for(Field fd : needed) {
+            if(field != null ? fd != field || !fd.isExactKey() : index.keyOffset(fd) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从当前的 key 中还原出 needed 中字段的值，调用前用 covers() 确认
+     * @param needed
+     * @return
+     */
+    Map<String, Object> entry(Collection<Field> needed) {
+        Map<String, Object> entry = new HashMap<>();
+        long key = cursor.key();
+        for(Field fd : needed) {
+            entry.put(fd.fieldName, field != null ? fd.key2Value(key) : index.keyValue(key, fd));
+        }
+        return entry;
+    }
+}
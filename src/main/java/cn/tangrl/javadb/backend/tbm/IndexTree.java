@@ -0,0 +1,345 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.im.BPlusTree;
+import cn.tangrl.javadb.backend.im.BloomFilter;
+import cn.tangrl.javadb.backend.im.Cursor;
+import cn.tangrl.javadb.backend.im.UniqueCheck;
+import cn.tangrl.javadb.common.Error;
+
+/**
+ * 一个索引的B+树，单字段索引（Field）和组合索引（CompositeIndex）共用
+ * 除了对B+树的读写，还负责在已有数据上建立索引（见 Table.createIndex）期间记录对索引的修改：
+ * 建立期间的修改先记在 captured 中，按 [key][uid][newUid] 存放，插入时 uid 为 0，删除时 newUid 为 0，建好后再应用到新的B+树上
+ * 可以为索引启用布隆过滤器（见 enableFilter()），等值查找的 key 一定不存在时直接返回，不访问B+树。
+ * 布隆过滤器只在内存中，启动时和 vacuum 时扫描整棵B+树重新建立（见 rebuildFilter()）
+ */
+class IndexTree {
+    private static final Cursor EMPTY = new Cursor() {
+        @Override
+        public boolean next() {
+            return false;
+        }
+
+        @Override
+        public long uid() {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public long key() {
+            throw new IllegalStateException();
+        }
+    };
+
+    private DataManager dm;
+    /**
+     * B+树的 bootUid，没有索引时为 0
+     */
+    private volatile long index;
+    private volatile BPlusTree bt;
+    /**
+     * 是否正在建立索引
+     */
+    private volatile boolean building;
+    private long[] captured;
+    private int noCaptured;
+    private Lock lock = new ReentrantLock();
+    /**
+     * 布隆过滤器，没有启用时为 null
+     * 重新建立期间，新的过滤器放在 rebuilding 中，插入同时加入两者
+     */
+    private volatile BloomFilter filter;
+    private volatile BloomFilter rebuilding;
+
+    IndexTree(DataManager dm) {
+        this.dm = dm;
+    }
+
+    /**
+     * 加载已有的B+树，index 为 0 时表示没有索引
+     * @param index
+     * @throws Exception
+     */
+    void load(long index) throws Exception {
+        if(index != 0) {
+            bt = BPlusTree.load(index, dm);
+        }
+        this.index = index;
+    }
+
+    /**
+     * 创建一棵空的B+树，返回 bootUid
+     * @return
+     * @throws Exception
+     */
+    long create() throws Exception {
+        load(BPlusTree.create(dm));
+        return index;
+    }
+
+    long uid() {
+        return index;
+    }
+
+    /**
+     * 索引是否已建好，可以用于查找
+     * @return
+     */
+    boolean isReady() {
+        return index != 0;
+    }
+
+    /**
+     * 写入记录时是否需要维护这个索引，索引已建好或正在建立时都需要
+     * @return
+     */
+    boolean isMaintained() {
+        return index != 0 || building;
+    }
+
+    /**
+     * 开始建立索引，之后对索引的修改都被记录下来
+     * @throws Exception
+     */
+    void beginBuild() throws Exception {
+        lock.lock();
+        try {
+            if(isMaintained()) {
+                throw Error.DuplicatedIndexException;
+            }
+            captured = new long[3*64];
+            noCaptured = 0;
+            building = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放弃建立索引
+     */
+    void abortBuild() {
+        lock.lock();
+        try {
+            building = false;
+            captured = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 索引已批量建好，应用建立期间记录的修改后启用索引
+     * 先在不持有锁的情况下分批应用，剩余不多时再持锁应用最后一批并启用，减少阻塞写入的时间
+     * @param index 批量建立的B+树的 bootUid
+     * @throws Exception
+     */
+    void finishBuild(long index) throws Exception {
+        BPlusTree tree = BPlusTree.load(index, dm);
+        while(true) {
+            long[] ops;
+            int n;
+            lock.lock();
+            try {
+                if(noCaptured <= 64) {
+                    apply(tree, captured, noCaptured);
+                    this.bt = tree;
+                    this.index = index;
+                    building = false;
+                    captured = null;
+                    return;
+                }
+                ops = captured;
+                n = noCaptured;
+                captured = new long[3*64];
+                noCaptured = 0;
+            } finally {
+                lock.unlock();
+            }
+            apply(tree, ops, n);
+        }
+    }
+
+    /**
+     * 将记录下来的修改应用到B+树上
+     * 扫描时可能已经读到了这些修改，所以插入前先检查是否已存在
+     * @param tree
+     * @param ops
+     * @param n
+     * @throws Exception
+     */
+    private static void apply(BPlusTree tree, long[] ops, int n) throws Exception {
+        for(int i = 0; i < n; i ++) {
+            long key = ops[3*i], uid = ops[3*i+1], newUid = ops[3*i+2];
+            if(uid != 0 && tree.replace(key, uid, newUid)) continue;
+            if(newUid != 0 && !tree.search(key).contains(newUid)) {
+                tree.insert(key, newUid);
+            }
+        }
+    }
+
+    /**
+     * 正在建立索引时记录一次修改，返回是否已记录
+     * @param key
+     * @param uid
+     * @param newUid
+     * @return
+     */
+    private boolean capture(long key, long uid, long newUid) {
+        if(!building) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if(!building) {
+                return false;
+            }
+            if(3*noCaptured == captured.length) {
+                captured = Arrays.copyOf(captured, captured.length*2);
+            }
+            captured[3*noCaptured] = key;
+            captured[3*noCaptured+1] = uid;
+            captured[3*noCaptured+2] = newUid;
+            noCaptured ++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 启用布隆过滤器，由已有的B+树建立，只用于已建好的索引
+     * @throws Exception
+     */
+    void enableFilter() throws Exception {
+        rebuildFilter();
+    }
+
+    boolean hasFilter() {
+        return filter != null;
+    }
+
+    /**
+     * 布隆过滤器是否需要重新建立，见 BloomFilter.needsRebuild()
+     * @return
+     */
+    boolean filterNeedsRebuild() {
+        BloomFilter f = filter;
+        return f != null && f.needsRebuild();
+    }
+
+    /**
+     * 扫描整棵B+树，重新建立布隆过滤器，容量为当前 key 数的两倍
+     * 先设置 rebuilding 再扫描：扫描开始前已插入B+树的 key 会被扫描到，之后插入的 key 由 putFilter() 加入 rebuilding
+     * @throws Exception
+     */
+    synchronized void rebuildFilter() throws Exception {
+        BloomFilter old = filter;
+        BloomFilter f = new BloomFilter(old == null ? 0 : 2*old.size());
+        rebuilding = f;
+        try {
+            Cursor cursor = bt.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            while(cursor.next()) {
+                f.put(cursor.key());
+            }
+            filter = f;
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    /**
+     * key 已插入B+树之后加入布隆过滤器
+     * 先加入 rebuilding 再读 filter：读到 rebuilding 为 null 时，要么扫描还没开始，要么新的过滤器已经换上
+     * @param key
+     */
+    private void putFilter(long key) {
+        BloomFilter r = rebuilding;
+        if(r != null) {
+            r.put(key);
+        }
+        BloomFilter f = filter;
+        if(f != null && f != r) {
+            f.put(key);
+        }
+    }
+
+    /**
+     * key 是否可能在索引中，没有启用布隆过滤器时总是返回 true
+     * @param key
+     * @return
+     */
+    boolean mightContain(long key) {
+        BloomFilter f = filter;
+        return f == null || f.mightContain(key);
+    }
+
+    void insert(long key, long uid) throws Exception {
+        if(capture(key, 0, uid)) {
+            return;
+        }
+        bt.insert(key, uid);
+        putFilter(key);
+    }
+
+    /**
+     * 唯一索引的插入，有冲突时返回 false，见 BPlusTree.insertUnique()
+     * 唯一索引只在建表时创建，不会处于建立期间
+     * @param key
+     * @param uid
+     * @param check
+     * @return
+     * @throws Exception
+     */
+    boolean insertUnique(long key, long uid, UniqueCheck check) throws Exception {
+        if(!bt.insertUnique(key, uid, check)) {
+            return false;
+        }
+        putFilter(key);
+        return true;
+    }
+
+    boolean delete(long key, long uid) throws Exception {
+        if(capture(key, uid, 0)) {
+            return true;
+        }
+        boolean found = bt.delete(key, uid);
+        BloomFilter f = filter;
+        if(found && f != null) {
+            f.remove();
+        }
+        return found;
+    }
+
+    boolean replace(long key, long uid, long newUid) throws Exception {
+        if(capture(key, uid, newUid)) {
+            return true;
+        }
+        return bt.replace(key, uid, newUid);
+    }
+
+    List<Long> search(long left, long right) throws Exception {
+        if(left == right && !mightContain(left)) {
+            return new ArrayList<>();
+        }
+        return bt.searchRange(left, right);
+    }
+
+    Long lastKey() throws Exception {
+        return bt.lastKey();
+    }
+
+    Cursor scan(long left, long right) throws Exception {
+        if(left == right && !mightContain(left)) {
+            return EMPTY;
+        }
+        return bt.cursor(left, right);
+    }
+}
@@ -0,0 +1,48 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Map;
+
+/**
+ * limit 算子，先跳过 offset 条记录，返回 limit 条记录后不再向下层拉取，扫描提前结束
+ */
+class LimitOperator implements Operator {
+    private final Operator child;
+    private final long limit;
+    private final long offset;
+    private long count;
+
+    LimitOperator(Operator child, long limit, long offset) {
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    @Override
+    public void open() throws Exception {
+        count = 0;
+        child.open();
+        for(long i = 0; i < offset && limit > 0; i ++) {
+            if(child.next() == null) {
+                count = limit;
+                break;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        if(count == limit) {
+            return null;
+        }
+        Map<String, Object> entry = child.next();
+        if(entry != null) {
+            count ++;
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
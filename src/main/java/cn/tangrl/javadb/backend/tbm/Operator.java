@@ -0,0 +1,30 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Map;
+
+/**
+ * select 的执行算子（Volcano 模型），由 Table.select() 组装成 扫描 -> 过滤 -> limit -> 投影 的流水线
+ * 上层算子每次调用 next() 向下层拉取一条记录，记录逐条流过流水线，不会把整个结果放在内存中。
+ * 用法：
+ * op.open();
+ * try { Map<String, Object> entry; while((entry = op.next()) != null) { ... } } finally { op.close(); }
+ */
+interface Operator {
+    /**
+     * 开始执行，分配需要的资源（例如索引上的游标）
+     * @throws Exception
+     */
+    void open() throws Exception;
+
+    /**
+     * 返回下一条记录，字段名 -> 值，没有更多的记录时返回 null
+     * @return
+     * @throws Exception
+     */
+    Map<String, Object> next() throws Exception;
+
+    /**
+     * 结束执行，释放资源，没有读完所有记录时也要调用
+     */
+    void close();
+}
@@ -0,0 +1,41 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 投影算子，只保留输出的字段
+ */
+class ProjectOperator implements Operator {
+    private final Operator child;
+    private final List<Field> fields;
+
+    ProjectOperator(Operator child, List<Field> fields) {
+        this.child = child;
+        this.fields = fields;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        Map<String, Object> entry = child.next();
+        if(entry == null || entry.size() == fields.size()) {
+            return entry;
+        }
+        Map<String, Object> projected = new HashMap<>();
+        for(Field fd : fields) {
+            projected.put(fd.fieldName, entry.get(fd.fieldName));
+        }
+        return projected;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,60 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * select 的结果，由 TableManager.select() 返回，包装了算子流水线的顶层算子，columns 是输出的列名
+ * 结果按批次拉取，每批是若干条记录的文本，每条一行，与 TableManager.read() 的格式相同，
+ * 服务器每拉取一批就发送给客户端（见 Executor），内存中只保存一批记录。
+ * 用法：
+ * rs.open();
+ * try { byte[] batch; while((batch = rs.next(size)) != null) { ... } } finally { rs.close(); }
+ */
+public class ResultSet {
+    private final Operator root;
+    private final List<String> columns;
+
+    ResultSet(Operator root, List<String> columns) {
+        this.root = root;
+        this.columns = columns;
+    }
+
+    public void open() throws Exception {
+        root.open();
+    }
+
+    /**
+     * 拉取下一批记录，一批记录的长度达到 batchSize 字节后返回，没有更多的记录时返回 null
+     * @param batchSize
+     * @return
+     * @throws Exception
+     */
+    public byte[] next(int batchSize) throws Exception {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        Map<String, Object> entry;
+        while(batch.size() < batchSize && (entry = root.next()) != null) {
+            byte[] line = printEntry(entry).getBytes();
+            batch.write(line, 0, line.length);
+        }
+        return batch.size() == 0 ? null : batch.toByteArray();
+    }
+
+    public void close() {
+        root.close();
+    }
+
+    private String printEntry(Map<String, Object> entry) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < columns.size(); i++) {
+            sb.append(entry.get(columns.get(i)));
+            if(i == columns.size()-1) {
+                sb.append("]");
+            } else {
+                sb.append(", ");
+            }
+        }
+        return sb.append("\n").toString();
+    }
+}
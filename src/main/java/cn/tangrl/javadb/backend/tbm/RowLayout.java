@@ -0,0 +1,148 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import cn.tangrl.javadb.backend.utils.ByteCodec;
+
+/**
+ * 记录的二进制格式，由表的字段决定，每个表一个，见 Table.layout
+ * [NullBitmap][FixedSlots][VarOffsets][VarData]
+ * NullBitmap：每个字段一位，第 i 个字段为 null 时第 i 位为 1；
+ * FixedSlots：定长字段（int32 占 4 字节、int64 占 8 字节）按字段顺序依次存放，每个字段的位置是固定的；
+ * VarOffsets：变长字段（string）各占 4 字节，保存字段数据在记录中的结束位置，开始位置是前一个变长字段的结束位置（第一个是 VarData 的开始）；
+ * VarData：变长字段的数据，按字段顺序依次存放。
+ * 读取任意一个字段只需要一到两次查找偏移，不需要解析它前面的字段，见 RowReader
+ */
+class RowLayout {
+    final List<Field> fields;
+    /**
+     * 定长字段：值在记录中的位置；变长字段：结束位置在记录中的位置
+     */
+    private final int[] slots;
+    private final boolean[] var;
+    /**
+     * 变长字段：前一个变长字段的结束位置在记录中的位置，没有前一个时为 -1
+     */
+    private final int[] prevSlots;
+    /**
+     * 变长字段数据的开始位置，也是记录的最小长度
+     */
+    final int varStart;
+    /**
+     * 所有字段的下标
+     */
+    final int[] all;
+
+    RowLayout(List<Field> fields) {
+        this.fields = fields;
+        int n = fields.size();
+        this.slots = new int[n];
+        this.var = new boolean[n];
+        this.prevSlots = new int[n];
+        int pos = (n + 7) / 8;
+        for(int i = 0; i < n; i ++) {
+            int width = width(fields.get(i));
+            if(width < 0) {
+                var[i] = true;
+            } else {
+                slots[i] = pos;
+                pos += width;
+            }
+        }
+        int prev = -1;
+        for(int i = 0; i < n; i ++) {
+            if(var[i]) {
+                prevSlots[i] = prev;
+                slots[i] = prev = pos;
+                pos += 4;
+            }
+        }
+        this.varStart = pos;
+        this.all = new int[n];
+        for(int i = 0; i < n; i ++) {
+            all[i] = i;
+        }
+    }
+
+    /**
+     * 定长字段的宽度，变长字段返回 -1
+     * @param fd
+     * @return
+     */
+    private static int width(Field fd) {
+        switch(fd.fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    int slot(int i) {
+        return slots[i];
+    }
+
+    int prevSlot(int i) {
+        return prevSlots[i];
+    }
+
+    /**
+     * needed 中的字段在表中的下标，按字段顺序
+     * @param needed
+     * @return
+     */
+    int[] columns(Collection<Field> needed) {
+        int[] cols = new int[needed.size()];
+        int size = 0;
+        for(int i = 0; i < fields.size(); i ++) {
+            if(needed.contains(fields.get(i))) {
+                cols[size ++] = i;
+            }
+        }
+        return cols;
+    }
+
+    /**
+     * 将记录（字段名 -> 值）编码为二进制，先计算长度，只分配一次数组
+     * @param entry
+     * @return
+     */
+    byte[] encode(Map<String, Object> entry) {
+        int n = fields.size();
+        byte[][] strs = new byte[n][];
+        int size = varStart;
+        for(int i = 0; i < n; i ++) {
+            Object v = entry.get(fields.get(i).fieldName);
+            if(var[i] && v != null) {
+                strs[i] = ((String)v).getBytes();
+                size += strs[i].length;
+            }
+        }
+        byte[] raw = new byte[size];
+        int end = varStart;
+        for(int i = 0; i < n; i ++) {
+            Object v = entry.get(fields.get(i).fieldName);
+            if(v == null) {
+                raw[i >>> 3] |= 1 << (i & 7);
+            }
+            if(var[i]) {
+                if(strs[i] != null) {
+                    System.arraycopy(strs[i], 0, raw, end, strs[i].length);
+                    end += strs[i].length;
+                }
+                ByteCodec.putInt(raw, slots[i], end);
+            } else if(v != null) {
+                if("int32".equals(fields.get(i).fieldType)) {
+                    ByteCodec.putInt(raw, slots[i], (int)v);
+                } else {
+                    ByteCodec.putLong(raw, slots[i], (long)v);
+                }
+            }
+        }
+        return raw;
+    }
+}
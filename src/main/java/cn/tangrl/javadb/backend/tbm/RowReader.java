@@ -0,0 +1,86 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.tangrl.javadb.backend.utils.ByteCodec;
+
+/**
+ * 按 RowLayout 读取一条记录的字段，可以重复使用：每条记录调用一次 reset()，不分配对象
+ * 字段按下标访问，下标是字段在表中的顺序
+ * 用法：
+ * RowReader r = new RowReader(tb.layout);
+ * r.reset(raw); int age = r.getInt(2);
+ */
+class RowReader {
+    private final RowLayout layout;
+    private byte[] raw;
+
+    RowReader(RowLayout layout) {
+        this.layout = layout;
+    }
+
+    RowReader reset(byte[] raw) {
+        this.raw = raw;
+        return this;
+    }
+
+    boolean isNull(int i) {
+        return (raw[i >>> 3] & (1 << (i & 7))) != 0;
+    }
+
+    int getInt(int i) {
+        return ByteCodec.getInt(raw, layout.slot(i));
+    }
+
+    long getLong(int i) {
+        return ByteCodec.getLong(raw, layout.slot(i));
+    }
+
+    String getString(int i) {
+        int start = start(i);
+        return new String(raw, start, ByteCodec.getInt(raw, layout.slot(i)) - start);
+    }
+
+    /**
+     * 变长字段的开始位置，即前一个变长字段的结束位置
+     * @param i
+     * @return
+     */
+    private int start(int i) {
+        int prev = layout.prevSlot(i);
+        return prev < 0 ? layout.varStart : ByteCodec.getInt(raw, prev);
+    }
+
+    /**
+     * 第 i 个字段的值，为 null 时返回 null
+     * @param i
+     * @return
+     */
+    Object get(int i) {
+        if(isNull(i)) {
+            return null;
+        }
+        switch(layout.fields.get(i).fieldType) {
+            case "int32":
+                return getInt(i);
+            case "int64":
+                return getLong(i);
+            default:
+                return getString(i);
+        }
+    }
+
+    /**
+     * 读出 cols 中的字段，字段名 -> 值
+     * @param cols 字段的下标，见 RowLayout.columns()
+     * @return
+     */
+    Map<String, Object> entry(int[] cols) {
+        Map<String, Object> entry = new HashMap<>();
+        for(int i : cols) {
+            entry.put(layout.fields.get(i).fieldName, get(i));
+        }
+        return entry;
+    }
+}
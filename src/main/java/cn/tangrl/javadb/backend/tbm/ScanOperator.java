@@ -0,0 +1,105 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cn.tangrl.javadb.backend.parser.statement.Where;
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * 扫描算子，按 where 选择的索引（见 Table.parseWhere()）依次读出记录，有多个游标时去掉重复的记录
+ * 索引能覆盖 needed 中所有字段、且记录所在页面全部可见时，直接从索引的 key 中还原记录（index-only scan）；
+ * 页面全部可见时其中每个版本都对所有事务可见、且没有被删除，所以不需要判断可见性。
+ * 顺序扫描已经读出了可见的版本，不再读取记录。
+ * 读取记录时只读出 needed 中的字段（见 RowReader），返回的记录也只包含这些字段；
+ * needed 为空时（例如 count(*)）只判断记录是否存在，返回共用的空记录，不分配对象。
+ * 只保证返回的记录可能满足条件，需要由 FilterOperator 判断。
+ * 有 order 时，没有条件的扫描优先使用 order 上的B+树索引，使 SortOperator 不必排序（见 orderedBy()）
+ */
+class ScanOperator implements Operator {
+    private final Table tb;
+    private final long xid;
+    private final Where where;
+    private final Collection<Field> needed;
+    private final Field order;
+
+    private RowReader reader;
+    private int[] cols;
+
+    private List<IndexScan> cursors;
+    private int current;
+    private boolean covering;
+    private Set<Long> seen;
+
+    ScanOperator(Table tb, long xid, Where where, Collection<Field> needed) {
+        this(tb, xid, where, needed, null);
+    }
+
+    ScanOperator(Table tb, long xid, Where where, Collection<Field> needed, Field order) {
+        this.tb = tb;
+        this.xid = xid;
+        this.where = where;
+        this.needed = needed;
+        this.order = order;
+    }
+
+    @Override
+    public void open() throws Exception {
+        reader = new RowReader(tb.layout);
+        cols = tb.layout.columns(needed);
+        cursors = tb.parseWhere(xid, where, needed, order);
+        seen = cursors.size() > 1 ? new HashSet<>() : null;
+        current = 0;
+        covering = cursors.get(0).covers(needed);
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        while(current < cursors.size()) {
+            IndexScan cursor = cursors.get(current);
+            if(!cursor.next()) {
+                cursor.close();
+                if(++ current < cursors.size()) {
+                    covering = cursors.get(current).covers(needed);
+                }
+                continue;
+            }
+            if(seen != null && !seen.add(cursor.uid())) continue;
+            if(covering && vm.isAllVisible((int)(cursor.uid() >>> 32))) {
+                return cols.length == 0 ? Collections.emptyMap() : cursor.entry(needed);
+            }
+            byte[] raw = cursor.raw();
+            if(raw == null) {
+                raw = vm.read(xid, cursor.uid());
+            }
+            if(raw != null) {
+                return cols.length == 0 ? Collections.emptyMap() : reader.reset(raw).entry(cols);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 记录是否按 fd 的值升序返回：只有一个游标、且是 fd 上的索引（见 IndexScan.orderedBy()），open() 之后调用
+     * @param fd
+     * @return
+     */
+    boolean orderedBy(Field fd) {
+        return cursors.size() == 1 && cursors.get(0).orderedBy(fd);
+    }
+
+    @Override
+    public void close() {
+        if(cursors == null) {
+            return;
+        }
+        for(; current < cursors.size(); current ++) {
+            cursors.get(current).close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 排序算子，按 order by 的字段排序，null 排在最前
+ * 1. 扫描使用的是这个字段上的B+树索引时（见 ScanOperator.orderedBy()），记录已经按升序返回，不再排序，
+ *    直接向上层返回，limit 满足后扫描提前结束；
+ * 2. 只需要前 k 条记录时（limit + offset）用大小为 k 的堆保留当前最前的 k 条，堆顶是其中最后的一条，
+ *    新记录排在堆顶之前时替换堆顶，代价为 O(n log k)，只占用 k 条记录的内存；
+ * 3. 没有 limit 时读出所有记录后排序。
+ */
+class SortOperator implements Operator {
+    private final Operator child;
+    private final ScanOperator scan;
+    private final Field field;
+    private final boolean desc;
+    /**
+     * 需要的记录数，-1 表示全部
+     */
+    private final long k;
+
+    private boolean streaming;
+    private List<Map<String, Object>> sorted;
+    private int pos;
+
+    SortOperator(Operator child, ScanOperator scan, Field field, boolean desc, long k) {
+        this.child = child;
+        this.scan = scan;
+        this.field = field;
+        this.desc = desc;
+        this.k = k;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        streaming = !desc && scan.orderedBy(field);
+        if(streaming) {
+            return;
+        }
+        String name = field.fieldName;
+        Comparator<Object> values = Comparator.nullsFirst(field::compare);
+        Comparator<Map<String, Object>> cmp = (e1, e2) -> values.compare(e1.get(name), e2.get(name));
+        if(desc) {
+            cmp = cmp.reversed();
+        }
+        pos = 0;
+        if(k < 0) {
+            sorted = new ArrayList<>();
+            Map<String, Object> entry;
+            while((entry = child.next()) != null) {
+                sorted.add(entry);
+            }
+            sorted.sort(cmp);
+            return;
+        }
+        sorted = new ArrayList<>();
+        if(k == 0) {
+            return;
+        }
+        PriorityQueue<Map<String, Object>> heap = new PriorityQueue<>(cmp.reversed());
+        Map<String, Object> entry;
+        while((entry = child.next()) != null) {
+            if(heap.size() < k) {
+                heap.add(entry);
+            } else if(cmp.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        while(!heap.isEmpty()) {
+            sorted.add(heap.poll());
+        }
+        Collections.reverse(sorted);
+    }
+
+    @Override
+    public Map<String, Object> next() throws Exception {
+        if(streaming) {
+            return child.next();
+        }
+        return pos < sorted.size() ? sorted.get(pos ++) : null;
+    }
+
+    @Override
+    public void close() {
+        sorted = null;
+        child.close();
+    }
+}
@@ -2,23 +2,35 @@ package cn.tangrl.javadb.backend.tbm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 import com.google.common.primitives.Bytes;
 
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.im.BulkLoader;
+import cn.tangrl.javadb.backend.im.Cursor;
+import cn.tangrl.javadb.backend.parser.statement.Aggregate;
 import cn.tangrl.javadb.backend.parser.statement.Create;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
 import cn.tangrl.javadb.backend.parser.statement.Select;
+import cn.tangrl.javadb.backend.parser.statement.SingleExpression;
 import cn.tangrl.javadb.backend.parser.statement.Update;
 import cn.tangrl.javadb.backend.parser.statement.Where;
-import cn.tangrl.javadb.backend.tbm.Field.ParseValueRes;
 import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Panic;
 import cn.tangrl.javadb.backend.utils.ParseStringRes;
 import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.backend.vm.VersionManager;
 import cn.tangrl.javadb.common.Error;
 
 /**
@@ -29,10 +41,15 @@ import cn.tangrl.javadb.common.Error;
  * [Field1Uid][Field2Uid]...[FieldNUid]
  * 与field一样，以entry的形式存储
  *
- * 记录是以字段的顺序，作为一个entry存储的。
+ * 记录按 RowLayout 的格式编码，作为一个entry存储的，用 RowReader 读取字段。
  * TODO id一定有索引吗？查找是以id为索引进行的吗？
  */
 public class Table {
+    /**
+     * 建立索引时，等待其他事务结束的轮询间隔，单位毫秒
+     */
+    private static final long BUILD_WAIT = 10;
+
     /**
      * tbm模块 表管理器，用于管理数据库表
      */
@@ -57,6 +74,14 @@ public class Table {
      * 表的字段对象列表
      */
     List<Field> fields = new ArrayList<>();
+    /**
+     * 表上的组合索引，包括正在建立的，见 CompositeIndex
+     */
+    List<CompositeIndex> indexes = new CopyOnWriteArrayList<>();
+    /**
+     * 记录的二进制格式，字段确定后建立，见 RowLayout
+     */
+    RowLayout layout;
 
     /**
      * 从数据库中加载一个表，即通过uid读取对应entry
@@ -99,16 +124,13 @@ public class Table {
             // 获取字段名和字段类型
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
-            // 判断该字段是否需要建立索引
-            boolean indexed = false;
-            for(int j = 0; j < create.index.length; j ++) {
-                if(fieldName.equals(create.index[j])) {
-                    indexed = true;
-                    break;
-                }
-            }
+            // 判断该字段是否需要建立索引，以及是否是唯一索引、哈希索引，是否启用布隆过滤器
+            boolean indexed = Arrays.asList(create.index).contains(fieldName);
+            boolean unique = create.unique != null && Arrays.asList(create.unique).contains(fieldName);
+            boolean hashed = create.hash != null && Arrays.asList(create.hash).contains(fieldName);
+            boolean bloom = create.bloom != null && Arrays.asList(create.bloom).contains(fieldName);
             // 创建字段对象，并添加到表对象中
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, unique, hashed, bloom));
         }
         // 将表对象的状态持久化到存储系统中，并返回表对象
         return tb.persistSelf(xid);
@@ -151,19 +173,20 @@ public class Table {
         // 更新位置变量
         position += res.next;
         // 使用Parser.parseLong方法解析原始数据中的长整数，并赋值给下一个uid
-        nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        nextUid = ByteCodec.getLong(raw, position);
         // 更新位置变量
         position += 8;
 
         // 当位置变量小于原始数据的长度时，继续循环
         while(position < raw.length) {
             // 使用Parser.parseLong方法解析原始数据中的长整数，并赋值给uid
-            long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+            long uid = ByteCodec.getLong(raw, position);
             // 更新位置变量
             position += 8;
             // 使用Field.loadField方法加载字段，并添加到表的字段对象列表中
             fields.add(Field.loadField(this, uid));
         }
+        layout = new RowLayout(fields);
         // 返回当前表对象
         return this;
     }
@@ -175,6 +198,7 @@ public class Table {
      * @throws Exception
      */
     private Table persistSelf(long xid) throws Exception {
+        layout = new RowLayout(fields);
         // 将表名转换为字节数组
         byte[] nameRaw = Parser.string2Byte(name);
         // 将下一个uid转换为字节数组
@@ -200,11 +224,26 @@ public class Table {
      * @throws Exception
      */
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
+        // 索引给出的范围不能精确对应条件时，需要读出记录再比较一次
+        boolean filter = delete.where != null && !isExact(delete.where);
+        Predicate<Map<String, Object>> cond = Condition.compile(this, delete.where);
+        List<IndexScan> cursors = parseWhere(xid, delete.where);
+        Set<Long> seen = cursors.size() > 1 ? new HashSet<>() : null;
+        // 删除不修改索引，可以边扫描边删除
+        for (IndexScan cursor : cursors) {
+            while(cursor.next()) {
+                if(seen != null && !seen.add(cursor.uid())) continue;
+                if(filter) {
+                    byte[] raw = cursor.raw();
+                    if(raw == null) {
+                        raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.uid());
+                    }
+                    if(raw == null || !cond.test(parseEntry(raw))) continue;
+                }
+                if(((TableManagerImpl)tbm).vm.delete(xid, cursor.uid())) {
+                    count ++;
+                }
             }
         }
         return count;
@@ -219,7 +258,8 @@ public class Table {
      * @throws Exception
      */
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
+        // 更新会向索引中插入新版本，边扫描边更新可能再次扫描到新版本，所以先读出所有的uid
+        long[] uids = collect(parseWhere(xid, update.where));
         Field fd = null;
         for (Field f : fields) {
             if(f.fieldName.equals(update.fieldName)) {
@@ -231,48 +271,170 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        Predicate<Map<String, Object>> cond = Condition.compile(this, update.where);
         int count = 0;
-        for (Long uid : uids) {
+        for (long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
-
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
             Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
+            if(!cond.test(entry)) continue;
+            Map<String, Object> updated = new HashMap<>(entry);
+            updated.put(fd.fieldName, value);
+            // 所有索引的 key 都没有变化时，可以进行 HOT 更新，无需改动任何索引
+            boolean hot = sameKeys(entry, updated);
+            entry = updated;
             raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-            
+            if(!((TableManagerImpl)tbm).vm.delete(xid, uid)) continue;
             count ++;
+            if(hot && ((TableManagerImpl)tbm).vm.insertHot(xid, uid, raw) != 0) continue;
+            // 页面放不下新版本时，退化为普通更新
+            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
+            insertIndex(xid, entry, uuid);
+        }
+        return count;
+    }
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
-                }
+    /**
+     * 两个版本在所有需要维护的索引中的 key 是否都相同
+     * 唯一索引的字段要求值相同：HOT 更新不经过索引，不会检查唯一性
+     * @param e1
+     * @param e2
+     * @return
+     */
+    private boolean sameKeys(Map<String, Object> e1, Map<String, Object> e2) {
+        for (Field field : fields) {
+            Object v1 = e1.get(field.fieldName), v2 = e2.get(field.fieldName);
+            if(field.unique ? field.compare(v1, v2) != 0 : field.isMaintained() && field.value2Uid(v1) != field.value2Uid(v2)) {
+                return false;
             }
         }
-        return count;
+        for (CompositeIndex ci : indexes) {
+            if(ci.isMaintained() && ci.key(e1) != ci.key(e2)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * select读取表中的记录
+     * select读取表中的记录，返回结果的文本，每条记录一行
      * @param xid
      * @param read
      * @return
      * @throws Exception
      */
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        ResultSet rs = select(xid, read);
+        rs.open();
+        try {
+            byte[] batch;
+            while((batch = rs.next(Integer.MAX_VALUE)) != null) {
+                sb.append(new String(batch));
+            }
+        } finally {
+            rs.close();
         }
         return sb.toString();
     }
 
+    /**
+     * 为select组装算子流水线：扫描 -> 过滤 -> 排序 -> 投影或聚合 -> limit，见 Operator
+     * 扫描按条件选择索引（见 ScanOperator），过滤判断读出的记录是否满足整个条件，排序按 order by 的字段排序（见 SortOperator），
+     * 投影只输出语句中列出的字段，聚合逐条累计记录、只输出一条结果（见 AggregateOperator），limit 满足后扫描提前结束
+     * @param xid
+     * @param read
+     * @return
+     * @throws Exception
+     */
+    public ResultSet select(long xid, Select read) throws Exception {
+        List<Field> projected = read.aggregates == null ? project(read.fields) : aggregated(read.aggregates);
+        // 查询需要的字段：输出或聚合的字段和条件中的字段，扫描只解析这些字段，索引覆盖这些字段时只读索引
+        Set<Field> needed = new HashSet<>();
+        for (Field fd : projected) {
+            if(fd != null) {
+                needed.add(fd);
+            }
+        }
+        if(read.where != null) {
+            Condition.fields(this, read.where, needed);
+        }
+        // 聚合只输出一条结果，不需要排序
+        Field order = read.orderBy == null || read.aggregates != null ? null : getField(read.orderBy);
+        if(order != null) {
+            needed.add(order);
+        }
+        // 只取前几条升序的记录时才为排序选择索引，否则按索引的顺序随机读取所有记录不如顺序扫描后排序
+        ScanOperator scan = new ScanOperator(this, xid, read.where, needed, read.limit >= 0 && !read.desc ? order : null);
+        Operator op = scan;
+        if(read.where != null) {
+            op = new FilterOperator(op, Condition.compile(this, read.where));
+        }
+        if(order != null) {
+            long k = read.limit < 0 ? -1 : read.limit + Math.min(read.offset, Long.MAX_VALUE - read.limit);
+            op = new SortOperator(op, scan, order, read.desc, k);
+        }
+        List<String> columns = new ArrayList<>();
+        if(read.aggregates == null) {
+            op = new ProjectOperator(op, projected);
+            for (Field fd : projected) {
+                columns.add(fd.fieldName);
+            }
+        } else {
+            // 没有条件时，B+树索引字段上的 min 和 max 可以直接在索引中查找
+            boolean indexed = read.where == null;
+            for (int i = 0; i < read.aggregates.length; i++) {
+                String func = read.aggregates[i].func;
+                indexed &= ("min".equals(func) || "max".equals(func)) && projected.get(i).isIndexed();
+                columns.add(read.aggregates[i].toString());
+            }
+            op = new AggregateOperator(this, xid, op, read.aggregates, projected, indexed);
+        }
+        if(read.limit >= 0) {
+            op = new LimitOperator(op, read.limit, read.offset);
+        }
+        return new ResultSet(op, columns);
+    }
+
+    /**
+     * 聚合函数的字段，count(*) 为 null，sum 和 avg 只能用于整数字段
+     * @param aggregates
+     * @return
+     * @throws Exception
+     */
+    private List<Field> aggregated(Aggregate[] aggregates) throws Exception {
+        List<Field> res = new ArrayList<>();
+        for (Aggregate aggregate : aggregates) {
+            if("*".equals(aggregate.field)) {
+                res.add(null);
+                continue;
+            }
+            Field fd = getField(aggregate.field);
+            if(("sum".equals(aggregate.func) || "avg".equals(aggregate.func)) && "string".equals(fd.fieldType)) {
+                throw Error.InvalidFieldException;
+            }
+            res.add(fd);
+        }
+        return res;
+    }
+
+    /**
+     * select 输出的字段，按语句中的顺序，* 表示表的所有字段
+     * @param names
+     * @return
+     * @throws Exception
+     */
+    private List<Field> project(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> projected = new ArrayList<>();
+        for (String name : names) {
+            projected.add(getField(name));
+        }
+        return projected;
+    }
+
     /**
      * 插入记录
       * @param xid
@@ -284,13 +446,170 @@ public class Table {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
         // 将 raw 以entry插入到数据库中，获取对应dataitem的uid
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
         // 将uid索引到对应的需要索引的字段上
+        insertIndex(xid, entry, uid);
+    }
+
+    /**
+     * 将事务 xid 写入的一条记录插入所有需要维护的索引
+     * 先插入唯一索引：已有值相同、仍然存在的记录时（见 conflicts()），自动回滚事务并抛出异常，与并发更新冲突时相同，
+     * 事务写入的版本都随之失效，已插入索引的项由 vacuum 清理
+     * @param xid
+     * @param entry
+     * @param uid
+     * @throws Exception
+     */
+    private void insertIndex(long xid, Map<String, Object> entry, long uid) throws Exception {
+        for (Field field : fields) {
+            if(!field.unique) continue;
+            Object value = entry.get(field.fieldName);
+            if(!field.insertUnique(value, uid, u -> conflicts(xid, field, value, u))) {
+                ((TableManagerImpl)tbm).vm.abort(xid, Error.DuplicatedEntryException);
+                throw Error.DuplicatedEntryException;
+            }
+        }
         for (Field field : fields) {
-            if(field.isIndexed()) {
+            if(field.isMaintained() && !field.unique) {
                 field.insert(entry.get(field.fieldName), uid);
             }
         }
+        for (CompositeIndex ci : indexes) {
+            if(ci.isMaintained()) {
+                ci.insert(entry, uid);
+            }
+        }
+    }
+
+    /**
+     * 唯一索引中 key 相同的项 uid 是否与事务 xid 要写入的值 value 冲突：
+     * HOT 版本链上有值相同、且仍然存在的版本（不论对 xid 是否可见），包括其他事务未提交的写入
+     * @param xid
+     * @param fd
+     * @param value
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    private boolean conflicts(long xid, Field fd, Object value, long uid) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        RowReader reader = new RowReader(layout);
+        int col = fields.indexOf(fd);
+        for(long u = uid; u != 0; u = vm.nextVersion(u)) {
+            byte[] raw = vm.readCurrent(xid, u);
+            if(raw != null && fd.compare(reader.reset(raw).get(col), value) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将一条已死亡记录在所有索引中的项指向 newUid，newUid 为 0 时删除，由 vacuum 调用
+     * HOT 版本链中后续版本的索引字段都相同，所以链首死亡时可以直接把索引项转给第一个存活的版本
+     * @param uid 记录的uid
+     * @param raw 记录的数据
+     * @param newUid
+     * @throws Exception
+     */
+    void replaceIndex(long uid, byte[] raw, long newUid) throws Exception {
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isMaintained()) {
+                field.replace(entry.get(field.fieldName), uid, newUid);
+            }
+        }
+        for (CompositeIndex ci : indexes) {
+            if(ci.isMaintained()) {
+                ci.replace(entry, uid, newUid);
+            }
+        }
+    }
+
+    /**
+     * 在已有数据的字段上建立索引，建立期间表可以正常读写
+     * 1. 开始记录对这个字段索引的修改，此后的插入和更新都会被记录，修改这个字段的更新也不再是 HOT 更新；
+     * 2. 等待此刻活跃的其他事务（及包含它们的快照）结束。之前的 HOT 更新可能修改过这个字段，
+     *    等待之后，每条版本链上未死亡的版本中这个字段的值都相同，可以用链上第一个未死亡的版本代表整条链；
+     * 3. 扫描表的数据页，与 vacuum 一样找到每条版本链上第一个未死亡的版本，批量建立B+树；
+     * 4. 应用第 1 步以来记录的修改，启用索引，并将 IndexUid 写回字段记录。
+     * @param xid
+     * @param fieldName
+     * @throws Exception
+     */
+    public void createIndex(long xid, String fieldName) throws Exception {
+        Field fd = getField(fieldName);
+        fd.beginBuild();
+        boolean built = false;
+        try {
+            fd.finishBuild(buildIndex(xid, entry -> fd.value2Uid(entry.get(fd.fieldName))));
+            built = true;
+        } finally {
+            if(!built) {
+                fd.abortBuild();
+            }
+        }
+    }
+
+    /**
+     * 在已有数据上建立组合索引，过程与单个字段的索引相同
+     * @param xid
+     * @param ci
+     * @throws Exception
+     */
+    void createIndex(long xid, CompositeIndex ci) throws Exception {
+        ci.beginBuild();
+        indexes.add(ci);
+        boolean built = false;
+        try {
+            ci.finishBuild(buildIndex(xid, ci::key));
+            built = true;
+        } finally {
+            if(!built) {
+                indexes.remove(ci);
+                ci.abortBuild();
+            }
+        }
+    }
+
+    /**
+     * 建立索引的第 2、3 步：等待此刻活跃的其他事务结束，扫描表的数据页批量建立B+树，返回 bootUid
+     * @param xid
+     * @param keyOf 记录在索引中的 key
+     * @return
+     * @throws Exception
+     */
+    private long buildIndex(long xid, ToLongFunction<Map<String, Object>> keyOf) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        long marker = vm.lastActive();
+        while(vm.horizon(xid) <= marker) {
+            Thread.sleep(BUILD_WAIT);
+        }
+        long horizon = vm.horizon(xid);
+        BulkLoader loader = BulkLoader.create(dm);
+        for(int pgno : dm.getPages(uid)) {
+            List<Long> uids = dm.scanPage(pgno);
+            Map<Long, Long> next = new HashMap<>();
+            Set<Long> pointed = new HashSet<>();
+            for(long u : uids) {
+                long n = vm.nextVersion(u);
+                if(n != 0) {
+                    next.put(u, n);
+                    pointed.add(n);
+                }
+            }
+            for(long u : uids) {
+                if(pointed.contains(u)) continue;
+                byte[] raw = vm.readLive(u, horizon);
+                while(raw == null && (u = next.getOrDefault(u, 0L)) != 0) {
+                    raw = vm.readLive(u, horizon);
+                }
+                if(raw == null) continue;
+                loader.add(keyOf.applyAsLong(parseEntry(raw)), u);
+            }
+        }
+        return loader.build();
     }
 
     /**
@@ -314,133 +633,291 @@ public class Table {
     }
 
     /**
-     * 解析 Where，返回存储记录的 uids，即 DataItem
-     * 目前 Where 只支持两个条件的与和或。
+     * 解析 Where，返回索引上的游标，按顺序读出存储记录的 uids，即 DataItem
+     * 先把 not 下推到比较表达式（见 Condition.normalize()），再按 plan() 选择索引，条件不能使用索引时使用表的顺序扫描（见 HeapScan）。
+     * 索引只用来缩小范围，给出的记录可能多于满足条件的记录：字符串的 key 只是前缀，HOT 更新也可能修改了字符串字段中前缀之后的部分，
+     * 条件中其他的部分也没有用到索引，所以读出记录后用编译好的条件（见 Condition.compile()）再判断一次。
+     * 有多个游标时同一条记录可能出现多次，由调用方去重。
+     * @param xid
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private List<IndexScan> parseWhere(long xid, Where where) throws Exception {
+        return parseWhere(xid, where, null);
+    }
+
+    /**
+     * 与 parseWhere(xid, where) 相同，没有条件时优先选择能覆盖 needed 中所有字段的索引
+     * @param xid
      * @param where
+     * @param needed 查询需要的字段，为 null 时不考虑
      * @return
      * @throws Exception
      */
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
-        Field fd = null;
-        if(where == null) {
+    List<IndexScan> parseWhere(long xid, Where where, Collection<Field> needed) throws Exception {
+        return parseWhere(xid, where, needed, null);
+    }
+
+    /**
+     * 与 parseWhere(xid, where, needed) 相同，没有条件、且 order 有B+树索引时使用这个索引，按 order 的值升序读出记录
+     * @param xid
+     * @param where
+     * @param needed 查询需要的字段，为 null 时不考虑
+     * @param order 希望结果按它排序的字段，为 null 时不考虑
+     * @return
+     * @throws Exception
+     */
+    List<IndexScan> parseWhere(long xid, Where where, Collection<Field> needed, Field order) throws Exception {
+        List<IndexScan> cursors = where == null ? null : plan(Condition.normalize(where));
+        if(cursors == null) {
+            cursors = new ArrayList<>();
+            if(where == null && order != null && order.isIndexed() && order.isExactKey()) {
+                cursors.add(new IndexScan(order.scan(Long.MIN_VALUE, Long.MAX_VALUE), order));
+            } else {
+                cursors.add(where == null ? scanAll(xid, needed) : new IndexScan(new HeapScan(this, xid)));
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * 为只有与、或和比较的条件选择索引，返回索引上的游标，条件不能使用索引时返回 null
+     * 1. 或：每个子条件各自选择索引，结果是所有游标的并集；有一个子条件不能使用索引时整个条件都不能使用；
+     * 2. 与：先按 scan() 为其中的比较表达式选择索引，都不能使用时，使用第一个能使用索引的子条件（或）；
+     *    满足整个条件的记录一定满足其中每个子条件，没有用到的部分在读出记录后判断。
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private List<IndexScan> plan(Where where) throws Exception {
+        if("or".equals(where.logicOp)) {
+            List<IndexScan> left = plan(where.left);
+            if(left == null) {
+                return null;
+            }
+            List<IndexScan> right = plan(where.right);
+            if(right == null) {
+                return null;
+            }
+            left.addAll(right);
+            return left;
+        }
+        List<SingleExpression> exps = new ArrayList<>();
+        List<Where> others = new ArrayList<>();
+        Condition.conjuncts(where, exps, others);
+        IndexScan scan = scan(exps);
+        if(scan != null) {
+            List<IndexScan> cursors = new ArrayList<>();
+            cursors.add(scan);
+            return cursors;
+        }
+        for (Where w : others) {
+            List<IndexScan> cursors = plan(w);
+            if(cursors != null) {
+                return cursors;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 全表扫描，有能覆盖 needed 中所有字段的B+树索引时使用索引（见 IndexScan.covers()），可以只读索引；
+     * 否则按页面顺序扫描表，避免按索引的顺序随机读取记录
+     * @param xid
+     * @param needed 查询需要的字段，为 null 时不考虑
+     * @return
+     * @throws Exception
+     */
+    private IndexScan scanAll(long xid, Collection<Field> needed) throws Exception {
+        if(needed != null) {
             for (Field field : fields) {
                 if(field.isIndexed()) {
-                    fd = field;
-                    break;
+                    IndexScan scan = new IndexScan(field.scan(Long.MIN_VALUE, Long.MAX_VALUE), field);
+                    if(scan.covers(needed)) {
+                        return scan;
+                    }
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
+            for (CompositeIndex ci : indexes) {
+                if(ci.isReady()) {
+                    IndexScan scan = new IndexScan(ci.scan(Long.MIN_VALUE, Long.MAX_VALUE), ci);
+                    if(scan.covers(needed)) {
+                        return scan;
                     }
-                    fd = field;
-                    break;
                 }
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
+        }
+        return new IndexScan(new HeapScan(this, xid));
+    }
+
+    /**
+     * 为用与连接的比较表达式选择索引，返回索引上的游标，都不能使用索引时返回 null，按以下顺序选择：
+     * 1. 前两列都有条件、且第一列是等值条件的组合索引，第二列上的条件的范围取交集；
+     *    第一列的值占满了 key 时（见 CompositeIndex.leavesRoom()）第二列的条件不起作用，不使用这条规则；
+     * 2. 有哈希索引的字段上的等值条件，在哈希索引中查找；
+     * 3. 第一个有B+树索引的字段，这个字段上所有条件的范围取交集；
+     * 4. 第一个有组合索引以它为第一列的字段，同样取交集。
+     * @param exps
+     * @return
+     * @throws Exception
+     */
+    private IndexScan scan(List<SingleExpression> exps) throws Exception {
+        for (CompositeIndex ci : indexes) {
+            if(!ci.isReady() || ci.fields.size() < 2) continue;
+            for (SingleExpression e0 : exps) {
+                if(!"=".equals(e0.compareOp) || !ci.field(0).fieldName.equals(e0.field) || !ci.leavesRoom(e0)) continue;
+                FieldCalRes r = null;
+                for (SingleExpression e1 : exps) {
+                    if(!ci.field(1).fieldName.equals(e1.field)) continue;
+                    FieldCalRes r1 = ci.calExp(e0, e1);
+                    r = r == null ? r1 : intersect(r, r1);
+                }
+                if(r != null) {
+                    return new IndexScan(ci.scan(r.left, r.right), ci);
+                }
             }
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
         }
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        for (SingleExpression e : exps) {
+            if(isHashLookup(e)) {
+                Field fd = getField(e.field);
+                return new IndexScan(fd.lookup(fd.calExp(e).left), fd);
+            }
         }
-        return uids;
+        for (SingleExpression e : exps) {
+            Field fd = getField(e.field);
+            if(fd.isIndexed()) {
+                FieldCalRes r = null;
+                for (SingleExpression e1 : exps) {
+                    if(!e1.field.equals(e.field)) continue;
+                    r = r == null ? fd.calExp(e1) : intersect(r, fd.calExp(e1));
+                }
+                return new IndexScan(fd.scan(r.left, r.right), fd);
+            }
+        }
+        for (SingleExpression e : exps) {
+            CompositeIndex ci = leadingIndex(getField(e.field));
+            if(ci != null) {
+                FieldCalRes r = null;
+                for (SingleExpression e1 : exps) {
+                    if(!e1.field.equals(e.field)) continue;
+                    r = r == null ? ci.calExp(e1) : intersect(r, ci.calExp(e1));
+                }
+                return new IndexScan(ci.scan(r.left, r.right), ci);
+            }
+        }
+        return null;
     }
 
     /**
-     * where的范围对象
+     * 条件是否是有哈希索引的字段上的等值条件
+     * @param exp
+     * @return
+     * @throws Exception
      */
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
+    private boolean isHashLookup(SingleExpression exp) throws Exception {
+        return "=".equals(exp.compareOp) && getField(exp.field).isHashed();
     }
 
     /**
-     * 计算where的范围，返回CalWhereRes对象
+     * 第一列是 fd 的已建好的组合索引，没有时返回 null
      * @param fd
+     * @return
+     */
+    private CompositeIndex leadingIndex(Field fd) {
+        for (CompositeIndex ci : indexes) {
+            if(ci.isReady() && ci.field(0) == fd) {
+                return ci;
+            }
+        }
+        return null;
+    }
+
+    private static FieldCalRes intersect(FieldCalRes r1, FieldCalRes r2) {
+        if(r2.left > r1.left) r1.left = r2.left;
+        if(r2.right < r1.right) r1.right = r2.right;
+        return r1;
+    }
+
+    /**
+     * parseWhere() 给出的范围是否恰好是满足条件的记录：条件是同一个有索引的字段上的比较表达式的与，且索引的 key 能区分字段所有的值
+     * 哈希索引只在单个等值条件时是精确的
      * @param where
      * @return
      * @throws Exception
      */
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
-        switch(where.logicOp) {
-            case "":
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
-            case "and":
-                res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
-                break;
-            default:
-                throw Error.InvalidLogOpException;
+    private boolean isExact(Where where) throws Exception {
+        List<SingleExpression> exps = new ArrayList<>();
+        List<Where> others = new ArrayList<>();
+        Condition.conjuncts(where, exps, others);
+        if(!others.isEmpty()) {
+            return false;
         }
-        return res;
+        Field fd = getField(exps.get(0).field);
+        for (SingleExpression e : exps) {
+            if(!e.field.equals(fd.fieldName)) {
+                return false;
+            }
+        }
+        if(fd.isHashed()) {
+            return fd.isExactKey() && exps.size() == 1 && isHashLookup(exps.get(0));
+        }
+        return fd.isIndexed() && fd.isExactKey();
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
+    /**
+     * 按字段名找到字段
+     * @param fieldName
+     * @return
+     * @throws Exception
+     */
+    Field getField(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if(field.fieldName.equals(fieldName)) {
+                return field;
             }
         }
-        return sb.toString();
+        throw Error.FieldNotFoundException;
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+    /**
+     * 读出游标中所有的uid，有多个游标时去掉重复的 uid
+     * @param cursors
+     * @return
+     * @throws Exception
+     */
+    private long[] collect(List<IndexScan> cursors) throws Exception {
+        long[] uids = new long[16];
+        int size = 0;
+        Set<Long> seen = cursors.size() > 1 ? new HashSet<>() : null;
+        for (Cursor cursor : cursors) {
+            while(cursor.next()) {
+                if(seen != null && !seen.add(cursor.uid())) continue;
+                if(size == uids.length) {
+                    uids = Arrays.copyOf(uids, size*2);
+                }
+                uids[size ++] = cursor.uid();
+            }
         }
-        return entry;
+        return Arrays.copyOf(uids, size);
+    }
+
+    /**
+     * 解析记录的所有字段，字段名 -> 值
+     * @param raw
+     * @return
+     */
+    Map<String, Object> parseEntry(byte[] raw) {
+        return new RowReader(layout).reset(raw).entry(layout.all);
     }
 
     /**
-     * 将Map<fieldname,value>中的value拼接成一个byte数组
+     * 将Map<fieldname,value>编码为记录，见 RowLayout
      * @param entry
      * @return
      */
     private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
-        }
-        return raw;
+        return layout.encode(entry);
     }
 
     @Override
@@ -449,12 +926,16 @@ public class Table {
         sb.append(name).append(": ");
         for(Field field : fields) {
             sb.append(field.toString());
-            if(field == fields.get(fields.size()-1)) {
+            if(field == fields.get(fields.size()-1) && indexes.isEmpty()) {
                 sb.append("}");
             } else {
                 sb.append(", ");
             }
         }
+        for(CompositeIndex ci : indexes) {
+            sb.append(ci.toString());
+            sb.append(ci == indexes.get(indexes.size()-1) ? "}" : ", ");
+        }
         return sb.toString();
     }
 }
@@ -3,6 +3,7 @@ package cn.tangrl.javadb.backend.tbm;
 import cn.tangrl.javadb.backend.dm.DataManager;
 import cn.tangrl.javadb.backend.parser.statement.Begin;
 import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
 import cn.tangrl.javadb.backend.parser.statement.Select;
@@ -30,9 +31,11 @@ public interface TableManager {
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
+    ResultSet select(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
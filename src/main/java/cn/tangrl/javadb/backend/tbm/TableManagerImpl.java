@@ -1,19 +1,24 @@
 package cn.tangrl.javadb.backend.tbm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.common.primitives.Bytes;
+
 import cn.tangrl.javadb.backend.dm.DataManager;
 import cn.tangrl.javadb.backend.parser.statement.Begin;
 import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
 import cn.tangrl.javadb.backend.parser.statement.Select;
 import cn.tangrl.javadb.backend.parser.statement.Update;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 import cn.tangrl.javadb.backend.utils.Parser;
 import cn.tangrl.javadb.backend.vm.VersionManager;
 import cn.tangrl.javadb.common.Error;
@@ -27,12 +32,17 @@ public class TableManagerImpl implements TableManager {
     /**
      * booter对象对应一个文件，存放了第一个表的 UID，并提供了针对这个文件的一些操作方法。
      * 由于 TBM 的表管理，使用的是链表串起的 Table 结构，所以就必须保存一个链表的头节点，即第一个表的 UID，这样在 MYDB 启动时，才能快速找到表信息。
+     * 之后的 8 个字节是组合索引定义链表的头节点，即第一个组合索引的 UID，没有这 8 个字节时表示没有组合索引。
      */
     private Booter booter;
     /**
      * 加载表的时候，把表的信息加载到 tableCache map 中，key 为 表名，value 为 Table 对象
      */
     private Map<String, Table> tableCache;
+    /**
+     * 组合索引名到组合索引的映射，包括正在建立的，用于检查重名
+     */
+    private Map<String, CompositeIndex> indexCache;
     /**
      * 创建表的时候，把事务的加载到 xidTableCache map 中，key 为 xid，value 为 List<Table>，表示 xid 事务下，操作的表有哪些
      */
@@ -51,8 +61,10 @@ public class TableManagerImpl implements TableManager {
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
+        this.indexCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        loadIndexes();
     }
 
     /**
@@ -68,6 +80,34 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /**
+     * 加载组合索引，挂到对应的表上
+     */
+    private void loadIndexes() {
+        long uid = firstIndexUid();
+        while(uid != 0) {
+            CompositeIndex ci = CompositeIndex.loadIndex(this, tableCache, uid);
+            uid = ci.nextUid;
+            if(ci.isLoaded()) {
+                tableCache.get(ci.tableName).indexes.add(ci);
+                indexCache.put(ci.name, ci);
+            }
+        }
+    }
+
+    /**
+     * 获取所有已加载的表，供 vacuum 遍历
+     * @return
+     */
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 获取第一个表的uid
      * @return
@@ -77,13 +117,29 @@ public class TableManagerImpl implements TableManager {
         return Parser.parseLong(raw);
     }
 
+    /**
+     * 获取第一个组合索引的uid
+     * @return
+     */
+    private long firstIndexUid() {
+        byte[] raw = booter.load();
+        return raw.length < 16 ? 0 : ByteCodec.getLong(raw, 8);
+    }
+
     /**
      * 更新第一个表的uid
      * @param uid
      */
     private void updateFirstTableUid(long uid) {
-        byte[] raw = Parser.long2Byte(uid);
-        booter.update(raw);
+        booter.update(Bytes.concat(Parser.long2Byte(uid), Parser.long2Byte(firstIndexUid())));
+    }
+
+    /**
+     * 更新第一个组合索引的uid
+     * @param uid
+     */
+    private void updateFirstIndexUid(long uid) {
+        booter.update(Bytes.concat(Parser.long2Byte(firstTableUid()), Parser.long2Byte(uid)));
     }
 
     /**
@@ -177,6 +233,66 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /**
+     * 执行create index语句，在已有的表上建立索引，多个字段时建立组合索引
+     * 建立索引可能要等待其他事务结束，所以不持有 tbm 的锁
+     * 组合索引建好后才写入定义，头插到组合索引的链表中
+     * @param xid
+     * @param createIndex
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(createIndex.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        // include 的字段追加在 key 的最后，与组合索引相同，见 CompositeIndex
+        List<String> names = new ArrayList<>(Arrays.asList(createIndex.fieldName));
+        if(createIndex.include != null) {
+            names.addAll(Arrays.asList(createIndex.include));
+        }
+        if(names.size() == 1) {
+            table.createIndex(xid, names.get(0));
+            return ("create index " + createIndex.indexName).getBytes();
+        }
+        List<Field> fields = new ArrayList<>();
+        for(String fieldName : names) {
+            fields.add(table.getField(fieldName));
+        }
+        CompositeIndex ci = new CompositeIndex(table, createIndex.indexName, fields);
+        lock.lock();
+        try {
+            if(indexCache.containsKey(ci.name)) {
+                throw Error.DuplicatedIndexException;
+            }
+            indexCache.put(ci.name, ci);
+        } finally {
+            lock.unlock();
+        }
+        boolean built = false;
+        try {
+            table.createIndex(xid, ci);
+            built = true;
+        } finally {
+            lock.lock();
+            try {
+                if(built) {
+                    ci.persistSelf(firstIndexUid());
+                    updateFirstIndexUid(ci.uid);
+                } else {
+                    indexCache.remove(ci.name);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return ("create index " + createIndex.indexName).getBytes();
+    }
+
     /**
      * 执行insert语句
      * @param xid
@@ -214,6 +330,24 @@ public class TableManagerImpl implements TableManager {
         return table.read(xid, read).getBytes();
     }
 
+    /**
+     * 执行select语句，返回按批次拉取的结果，见 ResultSet
+     * @param xid
+     * @param read
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public ResultSet select(long xid, Select read) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(read.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        return table.select(xid, read);
+    }
+
     /**
      * 执行update语句
      * @param xid
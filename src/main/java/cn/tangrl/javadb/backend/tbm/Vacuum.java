@@ -0,0 +1,227 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.utils.Panic;
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * Vacuum 类，在后台回收已死亡的记录版本
+ * delete 只设置 XMAX，update 会留下旧版本，这些版本对所有事务都不可见后（见 VersionManager.horizon），由 vacuum 回收：
+ * 1. 第一阶段：扫描每张表的数据页，从每条 HOT 版本链的链首开始，找出链首起连续的死亡版本。
+ *    链上还有存活版本时，把链首的索引项转给第一个存活版本，否则删除链首的索引项；
+ *    然后把这些死亡版本记入待回收表，同时记下此刻最大的活跃事务 xid 作为标记。
+ * 2. 第二阶段：之后某一轮中，标记之前的事务都已结束（horizon 大于标记），此时不会再有事务持有这些版本的 uid，
+ *    也不会再有事务沿版本链经过它们，将其 DataItem 设置为非法，合并为空洞、截断页尾，并把空间还给 PageIndex。
+ * 第一阶段中没有死亡版本的页面，如果其中的版本都对所有事务可见，在可见性映射中标记页面（见 VersionManager.markAllVisible()），
+ * 之后查询这些页面上的记录时可以只读索引。
+ * 第一阶段删除了索引项之后，删除过多或已超过容量的布隆过滤器会被重新建立（见 Field.rebuildFilter()）。
+ * 扫描按代价限流：访问页面和修改页面都会累计代价，累计达到上限后休眠一段时间，避免影响前台请求的延迟。
+ */
+public class Vacuum implements Runnable {
+    /**
+     * 每轮 vacuum 之间的休眠时间，单位毫秒
+     */
+    private static final long NAP_TIME = 1000;
+    /**
+     * 扫描一个页面的代价
+     */
+    private static final int COST_PAGE = 1;
+    /**
+     * 修改一个页面（回收一条记录或回收一个页面）的代价
+     */
+    private static final int COST_DIRTY = 20;
+    /**
+     * 代价上限，累计达到后休眠 COST_DELAY 毫秒
+     */
+    private static final int COST_LIMIT = 200;
+    private static final long COST_DELAY = 10;
+
+    TableManagerImpl tbm;
+    VersionManager vm;
+    DataManager dm;
+    /**
+     * 待回收的页面，页号 -> 待回收的版本和标记
+     */
+    private Map<Integer, Pending> pending;
+    /**
+     * 所有待回收版本的 uid，第一阶段跳过它们
+     */
+    private Set<Long> pendingUids;
+    /**
+     * 当前累计的代价
+     */
+    private int cost;
+    private volatile boolean stopped;
+
+    /**
+     * 构造函数
+     * 启动时所有数据页都记为待回收：崩溃恢复时被撤销的 DataItem 也是非法的，需要回收
+     * @param tbm
+     */
+    Vacuum(TableManager tbm) {
+        this.tbm = (TableManagerImpl)tbm;
+        this.vm = this.tbm.vm;
+        this.dm = this.tbm.dm;
+        this.pending = new HashMap<>();
+        this.pendingUids = new HashSet<>();
+        for(Table tb : this.tbm.tables()) {
+            for(int pgno : dm.getPages(tb.uid)) {
+                pending.put(pgno, new Pending());
+            }
+        }
+    }
+
+    /**
+     * 一个页面中待回收的版本，以及可以回收时 horizon 需要超过的标记
+     */
+    static class Pending {
+        long marker;
+        List<Long> uids = new ArrayList<>();
+    }
+
+    /**
+     * 创建 vacuum 并在后台线程中运行，返回 Vacuum 对象
+     * @param tbm
+     * @return
+     */
+    public static Vacuum start(TableManager tbm) {
+        Vacuum vacuum = new Vacuum(tbm);
+        Thread t = new Thread(vacuum, "vacuum");
+        t.setDaemon(true);
+        t.start();
+        return vacuum;
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            try {
+                runOnce();
+                Thread.sleep(NAP_TIME);
+            } catch(InterruptedException e) {
+                return;
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程，当前这一轮结束后生效
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 执行一轮 vacuum
+     * 先回收上一轮已安全的页面，再扫描新的死亡版本
+     * @throws Exception
+     */
+    public void runOnce() throws Exception {
+        long horizon = vm.horizon();
+        // 第二阶段
+        Iterator<Map.Entry<Integer, Pending>> it = pending.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Integer, Pending> e = it.next();
+            Pending p = e.getValue();
+            if(p.marker >= horizon) continue;
+            for(long uid : p.uids) {
+                dm.free(uid);
+                pendingUids.remove(uid);
+            }
+            p.uids.clear();
+            // 页面正在被插入占用时留到下一轮
+            if(dm.reclaim(e.getKey())) {
+                it.remove();
+                charge(COST_DIRTY);
+            }
+        }
+        // 第一阶段
+        for(Table tb : tbm.tables()) {
+            for(int pgno : dm.getPages(tb.uid)) {
+                charge(COST_PAGE);
+                List<Long> dead = vacuumPage(tb, pgno, horizon);
+                if(dead.isEmpty()) {
+                    if(!vm.isAllVisible(pgno)) {
+                        vm.markAllVisible(pgno, horizon);
+                    }
+                    continue;
+                }
+                Pending p = pending.get(pgno);
+                if(p == null) {
+                    p = new Pending();
+                    pending.put(pgno, p);
+                }
+                p.uids.addAll(dead);
+                pendingUids.addAll(dead);
+                p.marker = vm.lastActive();
+            }
+            for(Field f : tb.fields) {
+                if(f.filterNeedsRebuild()) {
+                    f.rebuildFilter();
+                    charge(COST_DIRTY);
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理一个页面中的死亡版本，返回需要回收的版本
+     * HOT 版本链总在同一页面内，不被页中其他版本指向的就是链首（没有 HOT 更新过的记录自身就是链首）
+     * @param tb
+     * @param pgno
+     * @param horizon
+     * @return
+     * @throws Exception
+     */
+    private List<Long> vacuumPage(Table tb, int pgno, long horizon) throws Exception {
+        List<Long> uids = dm.scanPage(pgno);
+        Map<Long, Long> next = new HashMap<>();
+        Set<Long> pointed = new HashSet<>();
+        for(long uid : uids) {
+            long n = vm.nextVersion(uid);
+            if(n != 0) {
+                next.put(uid, n);
+                pointed.add(n);
+            }
+        }
+        List<Long> dead = new ArrayList<>();
+        for(long root : uids) {
+            if(pointed.contains(root) || pendingUids.contains(root)) continue;
+            byte[] raw = vm.readDead(root, horizon);
+            if(raw == null) continue;
+            // 链首起连续的死亡版本，以及其后第一个存活版本
+            dead.add(root);
+            long live = next.getOrDefault(root, 0L);
+            while(live != 0 && vm.readDead(live, horizon) != null) {
+                dead.add(live);
+                live = next.getOrDefault(live, 0L);
+            }
+            tb.replaceIndex(root, raw, live);
+            charge(COST_DIRTY);
+        }
+        return dead;
+    }
+
+    /**
+     * 累计代价，达到上限后休眠
+     * @param c
+     * @throws InterruptedException
+     */
+    private void charge(int c) throws InterruptedException {
+        cost += c;
+        if(cost >= COST_LIMIT) {
+            cost = 0;
+            Thread.sleep(COST_DELAY);
+        }
+    }
+}
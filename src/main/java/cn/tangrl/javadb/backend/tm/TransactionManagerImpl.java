@@ -127,8 +127,7 @@ public class TransactionManagerImpl implements TransactionManager {
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -204,8 +203,8 @@ public class TransactionManagerImpl implements TransactionManager {
         long offset = getXidPosition(xid);
         ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            // 使用带位置的读，避免和其他线程（如 vacuum 线程）共用 channel 的 position
+            fc.read(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
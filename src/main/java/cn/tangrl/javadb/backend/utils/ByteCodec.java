@@ -0,0 +1,76 @@
+package cn.tangrl.javadb.backend.utils;
+
+/**
+ * 大端序的二进制编解码 工具类
+ * 直接在传入的byte数组的offset处读写，不分配任何对象，用于节点、记录、页面头部等热点路径
+ * Parser中short、int、long的编解码也委托给这里
+ */
+public class ByteCodec {
+    /**
+     * 从buf的offset处读出short类型的数据
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static short getShort(byte[] buf, int offset) {
+        return (short)(((buf[offset] & 0xFF) << 8) | (buf[offset+1] & 0xFF));
+    }
+
+    /**
+     * 将short类型的数据写入buf的offset处
+     * @param buf
+     * @param offset
+     * @param value
+     */
+    public static void putShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte)(value >>> 8);
+        buf[offset+1] = (byte)value;
+    }
+
+    /**
+     * 从buf的offset处读出int类型的数据
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24)
+            | ((buf[offset+1] & 0xFF) << 16)
+            | ((buf[offset+2] & 0xFF) << 8)
+            | (buf[offset+3] & 0xFF);
+    }
+
+    /**
+     * 将int类型的数据写入buf的offset处
+     * @param buf
+     * @param offset
+     * @param value
+     */
+    public static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte)(value >>> 24);
+        buf[offset+1] = (byte)(value >>> 16);
+        buf[offset+2] = (byte)(value >>> 8);
+        buf[offset+3] = (byte)value;
+    }
+
+    /**
+     * 从buf的offset处读出long类型的数据
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static long getLong(byte[] buf, int offset) {
+        return ((long)getInt(buf, offset) << 32) | (getInt(buf, offset+4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 将long类型的数据写入buf的offset处
+     * @param buf
+     * @param offset
+     * @param value
+     */
+    public static void putLong(byte[] buf, int offset, long value) {
+        putInt(buf, offset, (int)(value >>> 32));
+        putInt(buf, offset+4, (int)value);
+    }
+}
@@ -1,12 +1,10 @@
 package cn.tangrl.javadb.backend.utils;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
 import com.google.common.primitives.Bytes;
 
 /**
  * 解析数据 工具类
+ * 基本类型的编解码委托给 ByteCodec，热点路径应直接用 ByteCodec 原地读写，避免分配数组
  */
 public class Parser {
     /**
@@ -15,7 +13,9 @@ public class Parser {
      * @return
      */
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[2];
+        ByteCodec.putShort(buf, 0, value);
+        return buf;
     }
 
     /**
@@ -24,8 +24,7 @@ public class Parser {
      * @return
      */
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return ByteCodec.getShort(buf, 0);
     }
 
     /**
@@ -34,7 +33,9 @@ public class Parser {
      * @return
      */
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[4];
+        ByteCodec.putInt(buf, 0, value);
+        return buf;
     }
 
     /**
@@ -43,8 +44,7 @@ public class Parser {
      * @return
      */
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return ByteCodec.getInt(buf, 0);
     }
 
     /**
@@ -53,8 +53,7 @@ public class Parser {
      * @return
      */
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return ByteCodec.getLong(buf, 0);
     }
 
     /**
@@ -63,7 +62,9 @@ public class Parser {
      * @return
      */
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[8];
+        ByteCodec.putLong(buf, 0, value);
+        return buf;
     }
 
     /**
@@ -72,8 +73,18 @@ public class Parser {
      * @return
      */
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
+        return parseString(raw, 0);
+    }
+
+    /**
+     * 从raw的offset处解析出字符串，返回ParseStringRes对象，next为相对offset占用的字节数
+     * @param raw
+     * @param offset
+     * @return
+     */
+    public static ParseStringRes parseString(byte[] raw, int offset) {
+        int length = ByteCodec.getInt(raw, offset);
+        String str = new String(raw, offset+4, length);
         return new ParseStringRes(str, length+4);
     }
 
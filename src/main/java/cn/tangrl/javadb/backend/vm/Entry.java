@@ -1,20 +1,17 @@
 package cn.tangrl.javadb.backend.vm;
 
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
-
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.dataItem.DataItem;
-import cn.tangrl.javadb.backend.utils.Parser;
+import cn.tangrl.javadb.backend.tm.TransactionManagerImpl;
+import cn.tangrl.javadb.backend.utils.ByteCodec;
 
 /**
  * Entry类
  * 作用：VM向上层抽象出entry
  * 虽然理论上，MVCC 实现了多版本，但是在实现中，VM 并没有提供 Update 操作，对于字段的更新操作由后面的表和字段管理（TBM）实现。
- * 所以在 VM 的实现中，一条记录只有一个版本。
+ * 一般情况下一条记录只有一个版本；只有不修改索引字段的更新（HOT 更新）会在同一页面中插入新版本，并通过 NEXT 串成版本链。
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [NEXT] [data]
  */
 public class Entry {
     /**
@@ -25,10 +22,15 @@ public class Entry {
      * XMAX数据的起始位置，占8byte，表示删除该条记录（版本）的事务编号
      */
     private static final int OF_XMAX = OF_XMIN+8;
+    /**
+     * NEXT数据的起始位置，占8byte，表示 HOT 更新产生的下一个版本的 uid，没有时为 0
+     * 下一个版本的 XMIN 一定等于这个版本的 XMAX，不相等说明链接已经失效
+     */
+    private static final int OF_NEXT = OF_XMAX+8;
     /**
      * data数据的起始位置
      */
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_DATA = OF_NEXT+8;
     /**
      * DataItem在cache中的key，根据pgno和offset生成的，也可以表示在硬盘文件中的位置
      */
@@ -37,6 +39,10 @@ public class Entry {
      * DataItem引用
      */
     private DataItem dataItem;
+    /**
+     * dataItem.data() 的引用，加载时取一次，读取时在其中原地解析，不再拷贝
+     */
+    private SubArray raw;
     /**
      * VM引用
      */
@@ -56,6 +62,7 @@ public class Entry {
         Entry entry = new Entry();
         entry.uid = uid;
         entry.dataItem = dataItem;
+        entry.raw = dataItem.data();
         entry.vm = vm;
         return entry;
     }
@@ -80,9 +87,10 @@ public class Entry {
      * @return
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] raw = new byte[OF_DATA + data.length];
+        ByteCodec.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
     }
 
     /**
@@ -103,15 +111,20 @@ public class Entry {
     /**
      * 以拷贝的形式返回data
      * dataitem就是entry，取出entry中的data
+     * 先乐观读，期间有写者时再加读锁重读
      * @return
      */
     public byte[] data() {
+        byte[] data = new byte[raw.end - raw.start - OF_DATA];
+        long stamp = dataItem.tryOptimisticRead();
+        System.arraycopy(raw.raw, raw.start+OF_DATA, data, 0, data.length);
+        if(dataItem.validate(stamp)) {
+            return data;
+        }
         // 对dataItem上读锁
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
+            System.arraycopy(raw.raw, raw.start+OF_DATA, data, 0, data.length);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -124,14 +137,7 @@ public class Entry {
      * @return
      */
     public long getXmin() {
-        // 对dataItem上读锁
-        dataItem.rLock();
-        try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
-        } finally {
-            dataItem.rUnLock();
-        }
+        return readLong(OF_XMIN);
     }
 
     /**
@@ -140,11 +146,34 @@ public class Entry {
      * @return
      */
     public long getXmax() {
+        return readLong(OF_XMAX);
+    }
+
+    /**
+     * 获取Next
+     * 从dataItem中读出
+     * @return
+     */
+    public long getNext() {
+        return readLong(OF_NEXT);
+    }
+
+    /**
+     * 读出entry头部offset处的long
+     * 没有写者时只做一次乐观读和校验，不加锁也不分配内存；校验失败再加读锁重读
+     * @param offset
+     * @return
+     */
+    private long readLong(int offset) {
+        long stamp = dataItem.tryOptimisticRead();
+        long value = ByteCodec.getLong(raw.raw, raw.start+offset);
+        if(dataItem.validate(stamp)) {
+            return value;
+        }
         // 对dataItem上读锁
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return ByteCodec.getLong(raw.raw, raw.start+offset);
         } finally {
             dataItem.rUnLock();
         }
@@ -153,20 +182,51 @@ public class Entry {
     /**
      * 设置Xmax
      * 设置dataItem
+     * 同时清空Next：旧的Next只可能指向被回滚事务产生的版本，已经没有意义
      * @param xid
      */
     public void setXmax(long xid) {
         // 调用修改dataItem的before()
         dataItem.before();
         try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            ByteCodec.putLong(raw.raw, raw.start+OF_XMAX, xid);
+            ByteCodec.putLong(raw.raw, raw.start+OF_NEXT, 0);
         } finally {
             // 调用修改dataItem的after()
             dataItem.after(xid);
         }
     }
 
+    /**
+     * 设置Next，由删除这个版本的事务 xid 在 HOT 更新时调用
+     * @param next
+     * @param xid
+     */
+    public void setNext(long next, long xid) {
+        dataItem.before();
+        try {
+            ByteCodec.putLong(raw.raw, raw.start+OF_NEXT, next);
+        } finally {
+            // 调用修改dataItem的after()
+            dataItem.after(xid);
+        }
+    }
+
+    /**
+     * 原地修改data中从offset开始的部分，只对修改的字节落日志
+     * 以超级事务记日志，修改立即生效且不会被回滚
+     * @param offset
+     * @param data
+     */
+    public void update(int offset, byte[] data) {
+        dataItem.before();
+        try {
+            System.arraycopy(data, 0, raw.raw, raw.start+OF_DATA+offset, data.length);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID, OF_DATA+offset, OF_DATA+offset+data.length);
+        }
+    }
+
     /**
      * 获取uid
      * @return
@@ -0,0 +1,13 @@
+package cn.tangrl.javadb.backend.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VersionManager.readPage() 的结果，页面中对事务可见的记录
+ * uids 是记录所在 HOT 版本链链首的 uid（即索引中的 uid），raws 是对应的可见版本的数据
+ */
+public class ReadPageRes {
+    public List<Long> uids = new ArrayList<>();
+    public List<byte[]> raws = new ArrayList<>();
+}
@@ -13,12 +13,61 @@ import cn.tangrl.javadb.backend.tm.TransactionManager;
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long insert(long xid, long owner, byte[] data) throws Exception;
+    long insertHot(long xid, long uid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    /**
+     * 以下方法供唯一索引使用
+     * readCurrent：uid 对应的版本可能仍然存在时返回其数据，不考虑 xid 的快照：创建它的事务未回滚，删除它的事务未提交、也不是 xid
+     * abort(xid, err)：写入违反约束时自动回滚事务 xid，之后的操作（包括 commit）都抛出 err
+     */
+    byte[] readCurrent(long xid, long uid) throws Exception;
+    void abort(long xid, Exception err);
+
+    /**
+     * 以下方法供 vacuum 使用
+     * horizon：所有活跃事务（及其快照）中最小的 xid，没有活跃事务时为 Long.MAX_VALUE
+     * lastActive：活跃事务中最大的 xid，没有活跃事务时为 0
+     * readDead：uid 对应的版本对所有活跃事务都已不可见时返回其数据，否则返回 null
+     * nextVersion：uid 对应的版本在 HOT 版本链上的下一个版本，没有时返回 0
+     * 建立索引时还会用到：
+     * horizon(xid)：不计入事务 xid 自身的水位线
+     * readLive：uid 对应的版本未死亡时返回其数据，否则返回 null
+     */
+    long horizon();
+    long horizon(long xid);
+    long lastActive();
+    byte[] readDead(long uid, long horizon) throws Exception;
+    byte[] readLive(long uid, long horizon) throws Exception;
+    long nextVersion(long uid) throws Exception;
+
+    /**
+     * 以下方法实现可见性映射（visibility map），记录哪些页面中的所有版本都对所有事务可见，这些页面上的记录不需要逐条判断可见性，
+     * 可以只读索引，不读取记录，见 ScanOperator
+     * markAllVisible：由 vacuum 调用，检查页面中的所有版本，都满足 Visibility.isAllVisible() 时标记页面，返回是否标记
+     * isAllVisible：页面是否已标记，插入、删除和 HOT 更新写入页面后都会清除标记
+     * 映射只保存在内存中，启动时所有页面都未标记，由 vacuum 重新标记
+     */
+    boolean markAllVisible(int pgno, long horizon) throws Exception;
+    boolean isAllVisible(int pgno);
+
+    /**
+     * 顺序扫描表的数据页时使用，见 Table 的顺序扫描
+     * readPage：一次读出页面中对事务 xid 可见的所有记录，每条 HOT 版本链只返回链首和其中的可见版本，见 ReadPageRes
+     */
+    ReadPageRes readPage(long xid, int pgno) throws Exception;
+
+    /**
+     * 原地修改记录的数据，不产生新版本，以超级事务记日志
+     * 只用于不参与 MVCC 的目录信息，例如字段记录中的索引 uid
+     */
+    void updateInPlace(long uid, int offset, byte[] data) throws Exception;
+
     /**
      * 创建VM对象的工厂方法，返回 VersionManagerImpl 对象
      * @param tm
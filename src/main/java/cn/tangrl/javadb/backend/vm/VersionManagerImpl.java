@@ -1,7 +1,11 @@
 package cn.tangrl.javadb.backend.vm;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,6 +43,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * 用于检测死锁的依赖等待图
      */
     LockTable lt;
+    /**
+     * 可见性映射，页号 -> 是否全部可见，false 表示 vacuum 正在检查，见 markAllVisible()
+     */
+    private final Map<Integer, Boolean> visibilityMap = new ConcurrentHashMap<>();
 
     /**
      * 构造函数
@@ -69,32 +77,56 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
-
         if(t.err != null) {
             throw t.err;
         }
-
-        Entry entry = null;
+        // 沿版本链找到对t可见的版本，返回数据，找不到则返回null
+        Entry entry = getVisible(t, uid);
+        if(entry == null) {
+            return null;
+        }
         try {
-            // 调用AbstratCache的get，cache没有的话会调用getforcache从硬盘文件中取
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 从 uid 开始沿 HOT 版本链查找对事务 t 可见的版本，返回时持有其缓存引用，找不到返回 null
+     * 同一时刻链上至多只有一个版本对 t 可见
+     * @param t
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    private Entry getVisible(Transaction t, long uid) throws Exception {
+        long prevXmax = 0;
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                // 调用AbstratCache的get，cache没有的话会调用getforcache从硬盘文件中取
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
+            // 链接失效，版本链到此结束
+            if(prevXmax != 0 && entry.getXmin() != prevXmax) {
+                entry.release();
                 return null;
-            } else {
-                throw e;
             }
-        }
-        try {
-            // 如果enrty对t是可见的，返回数据，否则返回null
             if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
+                return entry;
             }
-        } finally {
+            prevXmax = entry.getXmax();
+            uid = entry.getNext();
             entry.release();
         }
+        return null;
     }
 
     /**
@@ -106,6 +138,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    /**
+     * 将数据包裹成 Entry，插入到属于 owner 的页中，返回 DataItem 的 uid
+     * 表的记录以表的 uid 为 owner，vacuum 据此找到表的数据页
+     * @param xid
+     * @param owner
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -115,7 +161,58 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, owner, raw);
+        clearAllVisible(uid);
+        return uid;
+    }
+
+    /**
+     * HOT 更新：在 uid 的版本链上，为事务 xid 刚删除的版本插入新版本，并将其链接到这个版本之后
+     * 新版本只会放在旧版本所在的页面中，这样索引无需改动，读取时沿版本链即可找到新版本。
+     * 页面空间不足时返回 0，调用方需要改为普通插入并更新索引。
+     * 调用前需要先对 uid 成功执行 delete。
+     * @param xid
+     * @param uid 索引中的 uid，即版本链的起点
+     * @param data
+     * @return 新版本的 uid，无法进行 HOT 更新时返回 0
+     * @throws Exception
+     */
+    @Override
+    public long insertHot(long xid, long uid, byte[] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if(t.err != null) {
+            throw t.err;
+        }
+        // 找到版本链上被xid删除的那个版本，删除时已清空它的Next
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return 0;
+                } else {
+                    throw e;
+                }
+            }
+            try {
+                if(entry.getXmax() == xid && entry.getNext() == 0) {
+                    byte[] raw = Entry.wrapEntryRaw(xid, data);
+                    long newUid = dm.insertNear(xid, uid, raw);
+                    if(newUid != 0) {
+                        entry.setNext(newUid, xid);
+                        clearAllVisible(newUid);
+                    }
+                    return newUid;
+                }
+                uid = entry.getNext();
+            } finally {
+                entry.release();
+            }
+        }
+        return 0;
     }
 
     /**
@@ -135,25 +232,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
-
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
-        try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return false;
-            } else {
-                throw e;
-            }
+        // 沿版本链找到对t可见的版本，如果不可见，返回false
+        Entry entry = getVisible(t, uid);
+        if(entry == null) {
+            return false;
         }
+        // 之后操作的都是可见的这个版本
+        uid = entry.getUid();
         try {
-            // 如果不可见，返回false
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
-            }
             // 获取资源的锁
             Lock l = null;
             try {
@@ -190,8 +279,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 t.autoAborted = true;
                 throw t.err;
             }
+            // 读已提交下，等待期间这个版本已被其他事务删除并提交，不再覆盖它的xmax
+            long xmax = entry.getXmax();
+            if(xmax != 0 && tm.isCommitted(xmax)) {
+                return false;
+            }
             // 设置这条记录的xmax字段为xid
             entry.setXmax(xid);
+            clearAllVisible(uid);
             return true;
 
         } finally {
@@ -263,6 +358,25 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid, false);
     }
 
+    /**
+     * 自动回滚，与出现死锁、版本跳跃时相同，事务之后的操作都抛出 err
+     * 用于写入违反唯一约束时
+     * @param xid
+     * @param err
+     */
+    @Override
+    public void abort(long xid, Exception err) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if(t.err != null) {
+            return;
+        }
+        t.err = err;
+        internAbort(xid, true);
+        t.autoAborted = true;
+    }
+
     /**
      * 回滚操作的具体实现
      * 手动回滚，传入false
@@ -287,6 +401,297 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);
     }
 
+    /**
+     * 计算 vacuum 的水位线：活跃事务的 xid 和其快照中的 xid 的最小值
+     * 被小于水位线的已提交事务删除的版本，对所有活跃事务以及之后开始的事务都不可见
+     * 超级事务和已自动回滚（不会再读取数据）的事务不参与计算
+     * @return
+     */
+    @Override
+    public long horizon() {
+        return horizon(TransactionManagerImpl.SUPER_XID);
+    }
+
+    /**
+     * 不计入事务 xid 自身及其快照的水位线，供事务中执行的建立索引等待其他事务结束
+     * @param xid
+     * @return
+     */
+    @Override
+    public long horizon(long xid) {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID || t.xid == xid || t.autoAborted) continue;
+                horizon = Math.min(horizon, t.xid);
+                if(t.snapshot == null) continue;
+                for(Long x : t.snapshot.keySet()) {
+                    if(x != TransactionManagerImpl.SUPER_XID) {
+                        horizon = Math.min(horizon, x);
+                    }
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 活跃事务中最大的 xid
+     * 当 horizon() 超过这个值时，现在活跃的事务都已经结束
+     * @return
+     */
+    @Override
+    public long lastActive() {
+        lock.lock();
+        try {
+            long last = 0;
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID || t.autoAborted) continue;
+                last = Math.max(last, t.xid);
+            }
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取一个已死亡的版本，不是死亡版本时返回 null
+     * @param uid
+     * @param horizon
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(Visibility.isDead(tm, entry, horizon)) {
+                return entry.data();
+            } else {
+                return null;
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 读取一个未死亡的版本，已死亡或不存在时返回 null
+     * @param uid
+     * @param horizon
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] readLive(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(Visibility.isDead(tm, entry, horizon)) {
+                return null;
+            } else {
+                return entry.data();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * uid 版本可能仍然存在时返回其数据（见 Visibility.isCurrent()），否则返回 null
+     * @param xid
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] readCurrent(long xid, long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return Visibility.isCurrent(tm, xid, entry) ? entry.data() : null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 原地修改记录 uid 的数据中从 offset 开始的部分，不产生新版本
+     * @param uid
+     * @param offset
+     * @param data
+     * @throws Exception
+     */
+    @Override
+    public void updateInPlace(long uid, int offset, byte[] data) throws Exception {
+        Entry entry = super.get(uid);
+        try {
+            entry.update(offset, data);
+        } finally {
+            entry.release();
+        }
+        clearAllVisible(uid);
+    }
+
+    /**
+     * 检查页面 pgno 中的所有版本，都对所有事务可见时标记页面
+     * 检查前先标记为 false（检查中），检查期间有写入时标记被清除，最后的替换失败，不会标记修改过的页面
+     * @param pgno
+     * @param horizon
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean markAllVisible(int pgno, long horizon) throws Exception {
+        visibilityMap.put(pgno, false);
+        for(long uid : dm.scanPage(pgno)) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    continue;
+                }
+                throw e;
+            }
+            try {
+                if(!Visibility.isAllVisible(tm, entry, horizon)) {
+                    visibilityMap.remove(pgno, false);
+                    return false;
+                }
+            } finally {
+                entry.release();
+            }
+        }
+        return visibilityMap.replace(pgno, false, true);
+    }
+
+    @Override
+    public boolean isAllVisible(int pgno) {
+        return Boolean.TRUE.equals(visibilityMap.get(pgno));
+    }
+
+    /**
+     * 读出页面 pgno 中对事务 xid 可见的所有记录
+     * 只查找一次事务，扫描一次页面：先找出所有 HOT 版本链的链首（不被页中其他版本指向的版本），再从链首沿版本链找到可见的版本，
+     * 同一条链上至多只有一个版本可见，所以每条记录只返回一次
+     * @param xid
+     * @param pgno
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public ReadPageRes readPage(long xid, int pgno) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if(t.err != null) {
+            throw t.err;
+        }
+        List<Long> uids = dm.scanPage(pgno);
+        Set<Long> pointed = new HashSet<>();
+        for(long uid : uids) {
+            long next = nextVersion(uid);
+            if(next != 0) {
+                pointed.add(next);
+            }
+        }
+        ReadPageRes res = new ReadPageRes();
+        for(long uid : uids) {
+            if(pointed.contains(uid)) continue;
+            Entry entry = getVisible(t, uid);
+            if(entry == null) continue;
+            try {
+                res.uids.add(uid);
+                res.raws.add(entry.data());
+            } finally {
+                entry.release();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 写入 uid 所在的页面后清除页面的标记，在写入完成之后调用
+     * @param uid
+     */
+    private void clearAllVisible(long uid) {
+        visibilityMap.remove((int)(uid >>> 32));
+    }
+
+    /**
+     * 获取 uid 版本在 HOT 版本链上的下一个版本，没有或链接已失效时返回 0
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long nextVersion(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return 0;
+            } else {
+                throw e;
+            }
+        }
+        long xmax, next;
+        try {
+            xmax = entry.getXmax();
+            next = entry.getNext();
+        } finally {
+            entry.release();
+        }
+        if(next == 0) {
+            return 0;
+        }
+        try {
+            entry = super.get(next);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return 0;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.getXmin() == xmax ? next : 0;
+        } finally {
+            entry.release();
+        }
+    }
+
     /**
      * 强行释放一个缓存，调用AbstractCache中的release
      * @param entry
@@ -116,4 +116,49 @@ public class Visibility {
         return false;
     }
 
+
+    /**
+     * 版本记录 e 是否可能仍然存在，用于唯一性检查，与事务 xid 的快照无关：
+     * 创建它的事务没有回滚，并且没有被删除，或删除它的事务既未提交、也不是 xid 自己
+     * 创建或删除它的事务还在进行时也算作存在，唯一性检查不等待它们结束
+     * @param tm
+     * @param xid
+     * @param e
+     * @return
+     */
+    public static boolean isCurrent(TransactionManager tm, long xid, Entry e) {
+        if(tm.isAborted(e.getXmin())) return false;
+        long xmax = e.getXmax();
+        return xmax == 0 || (xmax != xid && !tm.isCommitted(xmax));
+    }
+
+    /**
+     * 版本记录 e 是否对所有活跃事务和之后开始的事务都可见：创建它的事务已提交、在水位线 horizon 之前，且没有被删除
+     * 页面中所有版本都满足时，页面可以在可见性映射中标记为全部可见，见 VersionManager.markAllVisible()
+     * @param tm
+     * @param e
+     * @param horizon
+     * @return
+     */
+    public static boolean isAllVisible(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        return e.getXmax() == 0 && xmin < horizon && tm.isCommitted(xmin);
+    }
+
+    /**
+     * 版本记录 e 是否已经死亡，即对所有活跃事务和之后开始的事务都不可见，可以被 vacuum 回收
+     * 1. 创建它的事务已回滚
+     * 2. 删除它的事务已提交，且在水位线 horizon 之前（见 VersionManager.horizon）
+     * @param tm
+     * @param e
+     * @param horizon
+     * @return
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        if(tm.isAborted(xmin)) return true;
+        long xmax = e.getXmax();
+        if(xmax == 0) return false;
+        return xmax < horizon && tm.isCommitted(xmax);
+    }
 }
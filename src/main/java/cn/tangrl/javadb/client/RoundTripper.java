@@ -1,5 +1,7 @@
 package cn.tangrl.javadb.client;
 
+import java.io.ByteArrayOutputStream;
+
 import cn.tangrl.javadb.transport.Package;
 import cn.tangrl.javadb.transport.Packager;
 
@@ -22,13 +24,27 @@ public class RoundTripper {
 
     /**
      * 发送并接收包，返回接收的package对象
+     * 结果分成多个 Package 发送时（见 Package.partial()），接收所有的部分，拼接成一个 Package 返回
      * @param pkg
      * @return
      * @throws Exception
      */
     public Package roundTrip(Package pkg) throws Exception {
         packager.send(pkg);
-        return packager.receive();
+        Package res = packager.receive();
+        if(!res.hasMore()) {
+            return res;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while(res.hasMore()) {
+            data.write(res.getData());
+            res = packager.receive();
+        }
+        if(res.getErr() != null) {
+            return res;
+        }
+        data.write(res.getData());
+        return new Package(data.toByteArray(), null);
     }
 
     /**
@@ -13,10 +13,14 @@ public class Error {
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception BadDataFormatException = new RuntimeException("Data file format mismatch, recreate the database!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
 
+    // im
+    public static final Exception InvalidBalanceException = new RuntimeException("Invalid index node balance!");
+
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
 
@@ -33,6 +37,8 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception DuplicatedIndexException = new RuntimeException("Duplicated index!");
+    public static final Exception DuplicatedEntryException = new RuntimeException("Duplicated entry!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -44,6 +50,7 @@ public class Error {
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception PreparedNotFoundException = new RuntimeException("Prepared statement not found!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
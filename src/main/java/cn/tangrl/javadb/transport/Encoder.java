@@ -14,6 +14,7 @@ import cn.tangrl.javadb.common.Error;
  * 每个 Package 在发送前，由 Encoder 编码为字节数组，在对方收到后同样会由 Encoder 解码成 Package 对象。
  * 编码和解码的规则如下：[Flag][data]
  * 若 flag 为 0，表示发送的是数据，那么 data 即为这份数据本身；如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息。
+ * flag 为 2 时同样是数据，但只是结果的一部分，后面还有数据，见 Package.partial()。
  */
 public class Encoder {
     /**
@@ -32,8 +33,8 @@ public class Encoder {
             }
             return Bytes.concat(new byte[]{1}, msg.getBytes());
         } else {
-            // 如果err为空，编码成[0][data]
-            return Bytes.concat(new byte[]{0}, pkg.getData());
+            // 如果err为空，编码成[0][data]，后面还有数据时编码成[2][data]
+            return Bytes.concat(new byte[]{(byte)(pkg.hasMore() ? 2 : 0)}, pkg.getData());
         }
     }
 
@@ -54,6 +55,8 @@ public class Encoder {
         } else if(data[0] == 1) {
             // 如果flage==1，则利用err包裹成package对象
             return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+        } else if(data[0] == 2) {
+            return Package.partial(Arrays.copyOfRange(data, 1, data.length));
         } else {
             // 否则，抛出异常
             throw Error.InvalidPkgDataException;
@@ -7,16 +7,33 @@ package cn.tangrl.javadb.transport;
  * 每个 Package 在发送前，由 Encoder 编码为字节数组，在对方收到后同样会由 Encoder 解码成 Package 对象。
  * 编码和解码的规则如下：[Flag][data]
  * 若 flag 为 0，表示发送的是数据，那么 data 即为这份数据本身；如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息。
+ * flag 为 2 时同样是数据，但只是结果的一部分，后面还有数据，见 partial()。
  */
 public class Package {
     byte[] data;
     Exception err;
+    /**
+     * 是否是一个结果的其中一部分、后面还有数据，见 partial()
+     */
+    boolean more;
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    /**
+     * 一个结果中的一部分数据，接收方继续接收，直到收到 more 为 false 的 Package，所有数据拼接起来才是完整的结果
+     * 用于按批次发送 select 的结果
+     * @param data
+     * @return
+     */
+    public static Package partial(byte[] data) {
+        Package pkg = new Package(data, null);
+        pkg.more = true;
+        return pkg;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -24,4 +41,8 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public boolean hasMore() {
+        return more;
+    }
 }
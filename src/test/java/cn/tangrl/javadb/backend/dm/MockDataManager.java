@@ -1,6 +1,8 @@
 package cn.tangrl.javadb.backend.dm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
@@ -57,6 +59,47 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public long insertNear(long xid, long uid, byte[] data) throws Exception {
+        return 0;
+    }
+
+    @Override
+    public List<Integer> getPages(long owner) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<Long> scanPage(int pgno) throws Exception {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean reclaim(int pgno) throws Exception {
+        return true;
+    }
+
+    @Override
+    public void prefetch(int pgno) {}
+
+    @Override
+    public void unpin(int pgno) {}
+
     @Override
     public void close() {}
     
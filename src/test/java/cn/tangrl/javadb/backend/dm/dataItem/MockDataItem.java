@@ -1,8 +1,7 @@
 package cn.tangrl.javadb.backend.dm.dataItem;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import cn.tangrl.javadb.backend.common.SubArray;
 import cn.tangrl.javadb.backend.dm.page.Page;
@@ -15,6 +14,7 @@ public class MockDataItem implements DataItem {
     private SubArray data;
     private byte[] oldData;
     private long uid;
+    private StampedLock lock;
     private Lock rLock;
     private Lock wLock;
 
@@ -23,9 +23,9 @@ public class MockDataItem implements DataItem {
         di.data = data;
         di.oldData = new byte[data.end - data.start];
         di.uid = uid;
-        ReadWriteLock l = new ReentrantReadWriteLock();
-        di.rLock = l.readLock();
-        di.wLock = l.writeLock();
+        di.lock = new StampedLock();
+        di.rLock = di.lock.asReadLock();
+        di.wLock = di.lock.asWriteLock();
         return di;
     }
 
@@ -51,6 +51,11 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void after(long xid, int from, int to) {
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
@@ -74,6 +79,16 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return null;
@@ -1,7 +1,17 @@
 package cn.tangrl.javadb.backend.im;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -40,4 +50,463 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeBalance() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeBalance", PageCache.PAGE_SIZE*10, tm);
+        // 平衡因子超出范围
+        try {
+            BPlusTree.create(dm, Node.MAX_BALANCE+1);
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Invalid index node balance!");
+        }
+        // 最小的平衡因子，节点频繁分裂
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        // 乱序插入，每个 key 插入两次
+        int lim = 2000;
+        List<Integer> keys = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(1));
+        for(int k : keys) {
+            tree.insert(k, k+1);
+            tree.insert(k, k+lim+1);
+        }
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 2;
+            assert uids.contains((long)i+1) && uids.contains((long)i+lim+1);
+        }
+        assert tree.searchRange(100, 199).size() == 200;
+        // 删除每个 key 的一个值
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i, i+1);
+        }
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 1 && uids.get(0) == i+lim+1;
+        }
+        // 重新加载后平衡因子不变
+        assert BPlusTree.load(tree.bootUid, dm).balance == Node.MIN_BALANCE;
+        dm.close();
+        assert new File("/tmp/TestTreeBalance.db").delete();
+        assert new File("/tmp/TestTreeBalance.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+        // 小的平衡因子使根节点频繁分裂，多个线程会同时分裂根节点那一层
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        int writers = 4, per = 500;
+        // 先插入的 key 在并发插入期间必须一直能被读到
+        for(int i = 0; i < 100; i ++) {
+            tree.insert(-i-1, i+1);
+        }
+        AtomicBoolean error = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        CountDownLatch cdl = new CountDownLatch(writers);
+        for(int w = 0; w < writers; w ++) {
+            final int id = w;
+            new Thread(() -> {
+                try {
+                    Random random = new Random(id);
+                    for(int i = 0; i < per; i ++) {
+                        long key = random.nextInt(1 << 20) * writers + id;
+                        tree.insert(key, key+1);
+                    }
+                } catch(Exception e) {
+                    error.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while(!done.get()) {
+                    if(tree.searchRange(-100, -1).size() != 100) {
+                        error.set(true);
+                    }
+                }
+            } catch(Exception e) {
+                error.set(true);
+            }
+        });
+        reader.start();
+        cdl.await();
+        done.set(true);
+        reader.join();
+        assert !error.get();
+        for(int w = 0; w < writers; w ++) {
+            Random random = new Random(w);
+            for(int i = 0; i < per; i ++) {
+                long key = random.nextInt(1 << 20) * writers + w;
+                assert tree.search(key).contains(key+1);
+            }
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == 100 + writers*per;
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+    }
+
+    /**
+     * 沿兄弟链数出叶子节点的个数
+     */
+    private int countLeaves(BPlusTree tree) throws Exception {
+        int count = 0;
+        long uid = tree.searchLeaf(tree.rootUid(), Long.MIN_VALUE);
+        while(uid != 0) {
+            Node node = Node.loadNode(tree, uid);
+            uid = node.sibling();
+            node.release();
+            count ++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testTreeRebalance() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeRebalance", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+        int lim = 1500;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i+1);
+        }
+        int leaves = countLeaves(tree);
+        // 乱序删除 key 不是 10 的倍数的键值对，删除期间 key 为 10 的倍数的键值对一直能被读到
+        List<Integer> keys = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                keys.add(i);
+            }
+        }
+        Collections.shuffle(keys, new Random(1));
+        AtomicBoolean error = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread reader = new Thread(() -> {
+            try {
+                while(!done.get()) {
+                    Cursor cursor = tree.cursor(0, lim);
+                    long last = 0;
+                    int count = 0;
+                    while(cursor.next()) {
+                        long uid = cursor.uid();
+                        if(uid <= last) {
+                            error.set(true);
+                        }
+                        last = uid;
+                        if(uid % 10 == 1) {
+                            count ++;
+                        }
+                    }
+                    if(count != lim/10) {
+                        error.set(true);
+                    }
+                }
+            } catch(Exception e) {
+                error.set(true);
+            }
+        });
+        reader.start();
+        for(int k : keys) {
+            assert tree.delete(k, k+1);
+        }
+        done.set(true);
+        reader.join();
+        assert !error.get();
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert i % 10 == 0 ? uids.size() == 1 && uids.get(0) == i+1 : uids.isEmpty();
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim/10;
+        // 过空的节点被合并，叶子节点的个数随数据减少
+        assert countLeaves(tree) * 5 < leaves;
+        // 全部删除后树高降为 0，之后可以正常地插入
+        for(int i = 0; i < lim; i += 10) {
+            assert tree.delete(i, i+1);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assert root.isLeaf();
+        root.release();
+        for(int i = 0; i < 500; i ++) {
+            tree.insert(i, i+1);
+        }
+        assert tree.searchRange(100, 199).size() == 100;
+        // 重新加载后结构不变
+        BPlusTree reload = BPlusTree.load(tree.bootUid, dm);
+        assert reload.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == 500;
+        reload.close();
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeRebalance.db").delete();
+        assert new File("/tmp/TestTreeRebalance.log").delete();
+    }
+
+    @Test
+    public void testInnerCache() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestInnerCache", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        // 插入时不断查找，缓存的内部节点随后又被分裂
+        int lim = 600;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i+1);
+            assert tree.search(i/2).size() == 1;
+        }
+        assert !tree.innerCache.isEmpty() && tree.innerCache.size() <= BPlusTree.INNER_CACHE_SIZE;
+        assertInnerCache(tree);
+        // 删除引起内部节点的合并和树高的降低
+        for(int i = 0; i < lim; i ++) {
+            if(i % 3 != 0) {
+                assert tree.delete(i, i+1);
+                assert tree.search(i).isEmpty();
+            }
+        }
+        assertInnerCache(tree);
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).size() == (i % 3 == 0 ? 1 : 0);
+        }
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestInnerCache.db").delete();
+        assert new File("/tmp/TestInnerCache.log").delete();
+    }
+
+    /**
+     * 缓存中每个内部节点的解码结果都与 DM 中的节点相同
+     */
+    private void assertInnerCache(BPlusTree tree) throws Exception {
+        for(Map.Entry<Long, BPlusTree.InnerNode> e : tree.innerCache.entrySet()) {
+            Node node = Node.loadNode(tree, e.getKey());
+            BPlusTree.InnerNode fresh = node.decodeInner();
+            node.release();
+            assert fresh != null && fresh.sibling == e.getValue().sibling;
+            assert Arrays.equals(fresh.keys, e.getValue().keys) && Arrays.equals(fresh.sons, e.getValue().sons);
+        }
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestCursor", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        for(int i = 0; i < 500; i ++) {
+            tree.insert(i, i+1);
+        }
+        // 跨越多个叶子节点，按 key 的顺序返回
+        Cursor cursor = tree.cursor(100, 299);
+        long expect = 101;
+        while(cursor.next()) {
+            assert cursor.uid() == expect;
+            expect ++;
+        }
+        assert expect == 301;
+        assert !cursor.next();
+        // 空范围
+        assert !tree.cursor(1000, 2000).next();
+        // 中途停止后插入，分裂过的叶子节点中的 uid 不会重复返回
+        cursor = tree.cursor(0, Long.MAX_VALUE);
+        for(int i = 0; i < 10; i ++) {
+            assert cursor.next() && cursor.uid() == i+1;
+        }
+        for(int i = 0; i < 10; i ++) {
+            tree.insert(5, 1000+i);
+        }
+        int count = 0;
+        long last = 10;
+        while(cursor.next()) {
+            assert cursor.uid() > last;
+            last = cursor.uid();
+            count ++;
+        }
+        assert count == 490;
+        dm.close();
+        assert new File("/tmp/TestCursor.db").delete();
+        assert new File("/tmp/TestCursor.log").delete();
+    }
+
+    @Test
+    public void testCursorDuplicates() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestCursorDuplicates", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        // 同一个 key 的大量 uid 乱序插入，跨越很多叶子节点，按 uid 的顺序返回
+        int lim = 5000;
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            uids.add((long)i*2+1);
+        }
+        Collections.shuffle(uids, new Random(2));
+        tree.insert(6, 1);
+        tree.insert(8, 1);
+        for(long uid : uids) {
+            tree.insert(7, uid);
+        }
+        assertAscending(tree.cursor(7, 7), lim);
+        assert tree.searchRange(6, 8).size() == lim+2;
+        // 替换为更小或更大的 uid 后移到按顺序的位置，删除一部分后叶子节点合并
+        for(int i = 0; i < lim; i += 10) {
+            assert tree.replace(7, i*2+1, i % 20 == 0 ? i*2+2 : lim*4+i);
+        }
+        for(int i = 5; i < lim; i += 10) {
+            assert tree.delete(7, i*2+1);
+        }
+        assertAscending(tree.cursor(7, 7), lim - lim/10);
+        // 中途停止后删除和插入，已返回过的 uid 不会再返回，之后插入的更大的 uid 能读到
+        Cursor cursor = tree.cursor(7, 7);
+        long last = 0;
+        for(int i = 0; i < lim/4; i ++) {
+            assert cursor.next() && cursor.uid() > last;
+            last = cursor.uid();
+        }
+        for(int i = 1; i < lim/2; i += 4) {
+            tree.delete(7, i*2+1);
+        }
+        tree.insert(7, Long.MAX_VALUE);
+        while(cursor.next()) {
+            assert cursor.uid() > last;
+            last = cursor.uid();
+        }
+        assert last == Long.MAX_VALUE;
+
+        // 默认的平衡因子，同一个 key 的两万个 uid 跨越几十个叶子节点，游标只占常数的内存
+        BPlusTree big = BPlusTree.load(BPlusTree.create(dm), dm);
+        int n = 20000;
+        for(int i = 0; i < n; i ++) {
+            big.insert(3, i+1);
+        }
+        assertAscending(big.cursor(3, 3), n);
+        big.close();
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestCursorDuplicates.db").delete();
+        assert new File("/tmp/TestCursorDuplicates.log").delete();
+    }
+
+    private void assertAscending(Cursor cursor, int count) throws Exception {
+        long last = 0;
+        int n = 0;
+        while(cursor.next()) {
+            assert cursor.uid() > last;
+            last = cursor.uid();
+            n ++;
+        }
+        assert n == count;
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+        // 空的输入得到一棵空树
+        BPlusTree empty = BPlusTree.load(BulkLoader.create(dm).build(), dm);
+        assert empty.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        empty.close();
+        // 乱序加入，每个 key 两个 uid；顺串很小，走外部排序
+        int lim = 3000;
+        BulkLoader loader = new BulkLoader(dm, Node.MIN_BALANCE, 500);
+        Random random = new Random(1);
+        List<Integer> keys = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, random);
+        for(int k : keys) {
+            loader.add(k, k+lim+1);
+            loader.add(k, k+1);
+        }
+        BPlusTree tree = BPlusTree.load(loader.build(), dm);
+        assert tree.balance == Node.MIN_BALANCE;
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 2;
+            assert uids.contains((long)i+1) && uids.contains((long)i+lim+1);
+        }
+        Cursor cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        while(cursor.next()) {
+            long key = cursor.uid() > lim ? cursor.uid()-lim-1 : cursor.uid()-1;
+            assert key >= last;
+            last = key;
+            count ++;
+        }
+        assert count == 2*lim;
+        // 之后可以正常地插入和删除
+        for(int i = 0; i < lim; i += 3) {
+            tree.insert(i, -i-1);
+            assert tree.delete(i, i+1);
+        }
+        assert tree.search(0).size() == 2 && tree.search(0).contains(-1L);
+        assert tree.searchRange(0, lim-1).size() == 2*lim;
+        tree.close();
+        // 内存中排序的路径，默认平衡因子
+        loader = BulkLoader.create(dm);
+        for(int i = lim-1; i >= 0; i --) {
+            loader.add(i, i);
+        }
+        tree = BPlusTree.load(loader.build(), dm);
+        assert tree.searchRange(100, 199).size() == 100;
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestBulkLoad.db").delete();
+        assert new File("/tmp/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testInsertUnique() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestInsertUnique", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        Set<Long> live = ConcurrentHashMap.newKeySet();
+        for(int i = 0; i < 200; i ++) {
+            tree.insert(i, i+1);
+            live.add((long)i+1);
+        }
+        // 已删除（不再存在）的旧版本留在索引中，key 7 的项跨越多个叶子节点
+        for(int i = 0; i < 40; i ++) {
+            tree.insert(7, 1000+i);
+        }
+        live.remove(8L);
+        assert !tree.insertUnique(50, 2000, live::contains);
+        assert tree.insertUnique(500, 2001, live::contains);
+        assert tree.insertUnique(7, 2002, live::contains);
+        live.add(2002L);
+        assert !tree.insertUnique(7, 2003, live::contains);
+        assert tree.search(7).size() == 42;
+
+        // 并发插入同一个 key，只有一个成功；记录先于索引项存在，冲突检查跳过自己
+        AtomicInteger success = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(8);
+        for(int t = 0; t < 8; t ++) {
+            long uid = 3000+t;
+            new Thread(() -> {
+                try {
+                    live.add(uid);
+                    if(tree.insertUnique(300, uid, u -> u != uid && live.contains(u))) {
+                        success.incrementAndGet();
+                    } else {
+                        live.remove(uid);
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assert success.get() == 1;
+        dm.close();
+        assert new File("/tmp/TestInsertUnique.db").delete();
+        assert new File("/tmp/TestInsertUnique.log").delete();
+    }
 }
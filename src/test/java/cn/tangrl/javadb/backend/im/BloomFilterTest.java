@@ -0,0 +1,40 @@
+package cn.tangrl.javadb.backend.im;
+
+import org.junit.Test;
+
+/**
+ * 布隆过滤器的测试类
+ */
+public class BloomFilterTest {
+    @Test
+    public void testBloomFilter() {
+        int lim = 10000;
+        BloomFilter f = new BloomFilter(lim);
+        for(int i = 0; i < lim; i ++) {
+            f.put(i*3);
+        }
+        // 加入过的 key 一定返回 true
+        for(int i = 0; i < lim; i ++) {
+            assert f.mightContain(i*3);
+        }
+        // 误判率约为 1%，这里留出余量
+        int falsePositive = 0;
+        for(int i = 0; i < lim; i ++) {
+            if(f.mightContain(i*3+1)) falsePositive ++;
+        }
+        assert falsePositive < lim/50;
+        assert !f.needsRebuild();
+        // 超过容量或删除过多后需要重新建立
+        f.put(-1);
+        assert f.needsRebuild();
+        f = new BloomFilter(0);
+        for(int i = 0; i < 8; i ++) {
+            f.put(i);
+        }
+        f.remove();
+        f.remove();
+        assert !f.needsRebuild();
+        f.remove();
+        assert f.needsRebuild();
+    }
+}
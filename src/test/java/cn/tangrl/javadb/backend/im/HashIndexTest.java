@@ -0,0 +1,114 @@
+package cn.tangrl.javadb.backend.im;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.dm.pageCache.PageCache;
+import cn.tangrl.javadb.backend.tm.MockTransactionManager;
+import cn.tangrl.javadb.backend.tm.TransactionManager;
+
+/**
+ * 哈希索引的测试类
+ */
+public class HashIndexTest {
+    @Test
+    public void testHashIndex() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndex", PageCache.PAGE_SIZE*10, tm);
+        long boot = HashIndex.create(dm);
+        HashIndex h = HashIndex.load(boot, dm);
+        // 插入的项远多于初始的桶，会多次分裂
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            h.insert(i, i+1);
+        }
+        // 重复的 key
+        h.insert(7, 100000);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = h.search(i);
+            assert uids.size() == (i == 7 ? 2 : 1);
+            assert uids.contains((long)i+1);
+        }
+        assert h.search(lim).isEmpty();
+        // 删除和替换
+        assert h.delete(7, 100000);
+        assert !h.delete(7, 100000);
+        assert h.replace(8, 9, 200000);
+        assert h.search(8).get(0) == 200000;
+        for(int i = 100; i < 200; i ++) {
+            assert h.delete(i, i+1);
+        }
+        // 重新加载，分裂后的目录应该已经持久化
+        HashIndex reloaded = HashIndex.load(boot, dm);
+        assert reloaded.search(7).size() == 1;
+        for(int i = 0; i < lim; i ++) {
+            assert reloaded.search(i).size() == (i >= 100 && i < 200 ? 0 : 1);
+        }
+        dm.close();
+        assert new File("/tmp/TestHashIndex.db").delete();
+        assert new File("/tmp/TestHashIndex.log").delete();
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexDuplicates", PageCache.PAGE_SIZE*10, tm);
+        long boot = HashIndex.create(dm);
+        HashIndex h = HashIndex.load(boot, dm);
+        // 同一个 key 的项都在一个桶链中，分裂不能缩短它，桶数只随项数增长
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            h.insert(42, i+1);
+        }
+        assert h.noBuckets() <= lim/HashIndex.MAX_LOAD + 1;
+        assert h.search(42).size() == lim;
+        // 重新加载后项数仍在，其他 key 照常插入和查找
+        HashIndex reloaded = HashIndex.load(boot, dm);
+        for(int i = 0; i < lim; i ++) {
+            reloaded.insert(i, i+1);
+        }
+        assert reloaded.noBuckets() <= 2*lim/HashIndex.MAX_LOAD + 1;
+        assert reloaded.noBuckets() > HashIndex.INITIAL_BUCKETS;
+        assert reloaded.search(42).size() == lim + (42 < lim ? 1 : 0);
+        assert reloaded.search(7).size() == 1;
+        dm.close();
+        assert new File("/tmp/TestHashIndexDuplicates.db").delete();
+        assert new File("/tmp/TestHashIndexDuplicates.log").delete();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexConcurrent", PageCache.PAGE_SIZE*10, tm);
+        HashIndex h = HashIndex.load(HashIndex.create(dm), dm);
+        int noThreads = 4, lim = 300;
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int t = 0; t < noThreads; t ++) {
+            final int base = t*lim;
+            new Thread(() -> {
+                try {
+                    for(int i = base; i < base+lim; i ++) {
+                        h.insert(i, i+1);
+                        assert h.search(i).contains((long)i+1);
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        for(int i = 0; i < noThreads*lim; i ++) {
+            List<Long> uids = h.search(i);
+            assert uids.size() == 1 && uids.get(0) == i+1;
+        }
+        dm.close();
+        assert new File("/tmp/TestHashIndexConcurrent.db").delete();
+        assert new File("/tmp/TestHashIndexConcurrent.log").delete();
+    }
+}
@@ -0,0 +1,87 @@
+package cn.tangrl.javadb.backend.im;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 索引 key 编码的测试类
+ */
+public class KeyCodecTest {
+    @Test
+    public void testIntOrder() {
+        long[] values = {Long.MIN_VALUE, Integer.MIN_VALUE, -2, -1, 0, 1, Integer.MAX_VALUE, Long.MAX_VALUE};
+        for(int i = 1; i < values.length; i ++) {
+            assert KeyCodec.ofLong(values[i-1]) < KeyCodec.ofLong(values[i]);
+        }
+        assert KeyCodec.ofInt(-5) < KeyCodec.ofInt(3);
+    }
+
+    @Test
+    public void testStringOrder() {
+        // 空串最小，短的前缀在前，多字节字符和辅助平面的字符按码点排序
+        String[] values = {"", "a", "a\u0001", "ab", "abcdefgh", "abcdefgi", "b", "é", "￿", "😀"};
+        for(int i = 1; i < values.length; i ++) {
+            assert KeyCodec.compareString(values[i-1], values[i]) < 0;
+            assert KeyCodec.ofString(values[i-1]) < KeyCodec.ofString(values[i]);
+        }
+        // 前 8 个字节相同时 key 相同
+        assert KeyCodec.ofString("abcdefgh1") == KeyCodec.ofString("abcdefgh2");
+        // 与 UTF-8 编码的前 8 个字节一致
+        String s = "中文abc";
+        byte[] raw = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        long expect = 0;
+        for(int i = 0; i < 8; i ++) {
+            expect = (expect << 8) | (raw[i] & 0xFF);
+        }
+        assert KeyCodec.ofString(s) == (expect ^ Long.MIN_VALUE);
+        // 随机的字符串，key 的顺序与字符串的顺序一致
+        Random random = new Random(1);
+        for(int i = 0; i < 10000; i ++) {
+            String a = randomString(random), b = randomString(random);
+            int c = KeyCodec.compareString(a, b);
+            long ka = KeyCodec.ofString(a), kb = KeyCodec.ofString(b);
+            assert c < 0 ? ka <= kb : c > 0 ? ka >= kb : ka == kb;
+        }
+    }
+
+    @Test
+    public void testCompositeOrder() {
+        // 单个 string 列与 ofString() 相同
+        assert new KeyCodec.Composite().putString("abc").key() == KeyCodec.ofString("abc");
+        assert new KeyCodec.Composite().putLong(-3).key() == KeyCodec.ofLong(-3);
+        // 按列的字典序：第一列相同时比较第二列，较短的字符串在以它为前缀的字符串之前
+        Random random = new Random(2);
+        for(int i = 0; i < 10000; i ++) {
+            String a = randomString(random), b = random.nextInt(2) == 0 ? a : randomString(random);
+            int x = random.nextInt(7) - 3, y = random.nextInt(7) - 3;
+            int c = KeyCodec.compareString(a, b);
+            if(c == 0) c = Integer.compare(x, y);
+            long ka = new KeyCodec.Composite().putString(a).putInt(x).key();
+            long kb = new KeyCodec.Composite().putString(b).putInt(y).key();
+            assert c < 0 ? ka <= kb : c > 0 ? ka >= kb : ka == kb;
+        }
+        assert new KeyCodec.Composite().putString("a").putInt(Integer.MAX_VALUE).key() < new KeyCodec.Composite().putString("a\u0001").key();
+        // 前几列确定后，补 0 和补 0xFF 得到的范围包含所有后续列的值
+        long low = new KeyCodec.Composite().putInt(7).key(), high = new KeyCodec.Composite().putInt(7).keyMax();
+        for(int v : new int[]{Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE}) {
+            long k = new KeyCodec.Composite().putInt(7).putInt(v).key();
+            assert low <= k && k <= high;
+        }
+        assert high < new KeyCodec.Composite().putInt(8).key();
+    }
+
+    private String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int len = random.nextInt(12);
+        for(int i = 0; i < len; i ++) {
+            switch(random.nextInt(4)) {
+                case 0: sb.append((char)('a' + random.nextInt(3))); break;
+                case 1: sb.append((char)(0x80 + random.nextInt(0x780))); break;
+                case 2: sb.append((char)(0x4e00 + random.nextInt(3))); break;
+                default: sb.appendCodePoint(0x1f600 + random.nextInt(3)); break;
+            }
+        }
+        return sb.toString();
+    }
+}
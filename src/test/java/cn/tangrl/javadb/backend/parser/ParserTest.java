@@ -8,11 +8,15 @@ import org.junit.Test;
 
 import cn.tangrl.javadb.backend.parser.statement.Begin;
 import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
 import cn.tangrl.javadb.backend.parser.statement.Delete;
+import cn.tangrl.javadb.backend.parser.statement.Execute;
 import cn.tangrl.javadb.backend.parser.statement.Insert;
+import cn.tangrl.javadb.backend.parser.statement.Prepare;
 import cn.tangrl.javadb.backend.parser.statement.Select;
 import cn.tangrl.javadb.backend.parser.statement.Show;
 import cn.tangrl.javadb.backend.parser.statement.Update;
+import cn.tangrl.javadb.backend.parser.statement.Where;
 
 public class ParserTest {
     @Test
@@ -29,6 +33,57 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateUnique() throws Exception {
+        Create create = (Create)Parser.Parse("create table student id int32, name string (index id) (unique name)".getBytes());
+        assert create.index.length == 1 && "id".equals(create.index[0]);
+        assert create.unique.length == 1 && "name".equals(create.unique[0]);
+        create = (Create)Parser.Parse("create table student id int32 (index id)".getBytes());
+        assert create.unique.length == 0;
+        try {
+            Parser.Parse("create table student id int32 (index id) (name)".getBytes());
+            assert false;
+        } catch(Exception e) {
+        }
+    }
+
+    @Test
+    public void testCreateHash() throws Exception {
+        Create create = (Create)Parser.Parse("create table student id int32, name string (index name) (hash id) (unique name)".getBytes());
+        assert create.hash.length == 1 && "id".equals(create.hash[0]);
+        assert create.unique.length == 1 && "name".equals(create.unique[0]);
+        create = (Create)Parser.Parse("create table student id int32 (index id)".getBytes());
+        assert create.hash.length == 0;
+        assert create.bloom.length == 0;
+        create = (Create)Parser.Parse("create table student id int32 (index id) (bloom id)".getBytes());
+        assert create.bloom.length == 1 && "id".equals(create.bloom[0]);
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        String stat = "create index idx_name on student(name)";
+        CreateIndex create = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert "idx_name".equals(create.indexName);
+        assert "student".equals(create.tableName);
+        assert create.fieldName.length == 1 && "name".equals(create.fieldName[0]);
+
+        create = (CreateIndex)Parser.Parse("create index idx_class_name on student(class, name)".getBytes());
+        assert create.fieldName.length == 2;
+        assert "class".equals(create.fieldName[0]) && "name".equals(create.fieldName[1]);
+        assert create.include.length == 0;
+
+        create = (CreateIndex)Parser.Parse("create index idx_cover on student(id) include (age, score)".getBytes());
+        assert create.fieldName.length == 1 && "id".equals(create.fieldName[0]);
+        assert create.include.length == 2;
+        assert "age".equals(create.include[0]) && "score".equals(create.include[1]);
+
+        try {
+            Parser.Parse("create index idx_name on student name".getBytes());
+            assert false;
+        } catch(Exception e) {
+        }
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -60,6 +115,79 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testWhere() throws Exception {
+        Select select = (Select)Parser.Parse("select * from student where not (id < 4 or name = a) and age > 1 or id = 9".getBytes());
+        // or 的优先级最低，and 其次，not 只作用于紧跟的条件
+        Where where = select.where;
+        assert "or".equals(where.logicOp);
+        assert "".equals(where.right.logicOp) && "id".equals(where.right.singleExp.field) && "9".equals(where.right.singleExp.value);
+        Where and = where.left;
+        assert "and".equals(and.logicOp);
+        assert "not".equals(and.left.logicOp) && and.left.right == null;
+        assert "or".equals(and.left.left.logicOp);
+        assert "<".equals(and.left.left.left.singleExp.compareOp);
+        assert "age".equals(and.right.singleExp.field) && ">".equals(and.right.singleExp.compareOp);
+        select = (Select)Parser.Parse("select count, max from student".getBytes());
+        assert select.aggregates == null && "max".equals(select.fields[1]);
+        select = (Select)Parser.Parse("select count(*), max(age) from student".getBytes());
+        assert select.aggregates.length == 2 && select.fields.length == 0;
+        assert "count(*)".equals(select.aggregates[0].toString()) && "max".equals(select.aggregates[1].func);
+        select = (Select)Parser.Parse("select * from student where id > 1 limit 10".getBytes());
+        assert select.limit == 10 && ">".equals(select.where.singleExp.compareOp);
+        select = (Select)Parser.Parse("select * from student limit 0".getBytes());
+        assert select.limit == 0 && select.where == null;
+        assert ((Select)Parser.Parse("select * from student".getBytes())).limit == -1;
+        select = (Select)Parser.Parse("select * from student where id > 1 order by name desc limit 10 offset 20".getBytes());
+        assert "name".equals(select.orderBy) && select.desc && select.limit == 10 && select.offset == 20;
+        select = (Select)Parser.Parse("select id from student order by id asc".getBytes());
+        assert "id".equals(select.orderBy) && !select.desc && select.limit == -1 && select.offset == 0;
+        select = (Select)Parser.Parse("select id from student order by id".getBytes());
+        assert "id".equals(select.orderBy) && !select.desc;
+        for (String stat : new String[]{"select count(*), max(age), id from student", "select sum(*) from student",
+            "select min(age from student", "select * from student limit -1", "select * from student limit", "select * from student limit 1 2",
+            "select * from student order id", "select * from student order by", "select * from student order by id up",
+            "select * from student limit 1 offset", "select * from student offset 1", "select * from student limit 1 order by id",
+            "delete from student where id = 1 limit 1", "select * from student where (id < 4", "select * from student where id < 4 and",
+            "select * from student where not", "select * from student where id <", "select * from student where id < 4 )"}) {
+            try {
+                Parser.Parse(stat.getBytes());
+                assert false;
+            } catch(Exception e) {
+            }
+        }
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        Prepare prepare = (Prepare)Parser.Parse("prepare p1 update student set age = ? where (id = ? or name = ?) and id < 10".getBytes());
+        assert "p1".equals(prepare.name) && prepare.params.size() == 3;
+        Update update = (Update)prepare.statement;
+        assert update.value == null;
+        // 参数按在语句中出现的顺序填入
+        String[] values = {"20", "3", "tom"};
+        for (int i = 0; i < values.length; i++) {
+            prepare.params.get(i).accept(values[i]);
+        }
+        assert "20".equals(update.value);
+        assert "3".equals(update.where.left.left.singleExp.value);
+        assert "tom".equals(update.where.left.right.singleExp.value);
+        assert "10".equals(update.where.right.singleExp.value);
+        prepare = (Prepare)Parser.Parse("prepare p2 insert into student values ? \"?\" ?".getBytes());
+        assert prepare.params.size() == 2 && "?".equals(((Insert)prepare.statement).values[1]);
+
+        Execute execute = (Execute)Parser.Parse("execute p2 5 'Guo Ziyang'".getBytes());
+        assert "p2".equals(execute.name) && Arrays.equals(execute.values, new String[]{"5", "Guo Ziyang"});
+        for (String stat : new String[]{"select * from student where id = ?", "insert into student values ?",
+            "prepare p3 prepare p4 select * from student", "execute p1 ?", "prepare ? select * from student"}) {
+            try {
+                Parser.Parse(stat.getBytes());
+                assert false;
+            } catch(Exception e) {
+            }
+        }
+    }
+
     @Test
     public void testInsert() throws Exception {
         String stat = "insert into student values 5 \"Guo Ziyang\" 22";
@@ -67,6 +67,39 @@ public class ExecutorTest {
         cdl.await();
     }
 
+    @Test
+    public void testPrepared() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table p id int32, name string, age int64 (index id)".getBytes());
+        assert new String(exe.execute("prepare ins insert into p values ? ? 20".getBytes())).equals("prepare ins");
+        for (int i = 0; i < 10; i++) {
+            exe.execute(("execute ins " + i + " 'n " + i + "'").getBytes());
+        }
+        exe.execute("prepare find select name, age from p where id > ? and not id = ?".getBytes());
+        assert new String(exe.execute("execute find 6 8".getBytes())).equals("[n 7, 20]\n[n 9, 20]\n");
+        assert new String(exe.execute("execute find 0 3".getBytes())).split("\n").length == 8;
+        exe.execute("prepare up update p set age = ? where id < ?".getBytes());
+        assert new String(exe.execute("execute up 30 2".getBytes())).equals("update 2");
+        assert new String(exe.execute("select age from p where id = 1".getBytes())).equals("[30]\n");
+        // 带引号的 ? 是普通的值
+        exe.execute("insert into p values 100 '?' 1".getBytes());
+        assert new String(exe.execute("select name from p where id = 100".getBytes())).equals("[?]\n");
+        for (String stat : new String[]{"execute find 1", "execute find 1 2 3", "execute none 1", "select * from p where id = ?"}) {
+            try {
+                exe.execute(stat.getBytes());
+                assert false;
+            } catch(Exception e) {
+            }
+        }
+        // 错误不影响之后的执行
+        assert new String(exe.execute("execute find 8 0".getBytes())).equals("[n 9, 20]\n[?, 1]\n");
+        exe.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
     @Test
     public void test100000With4() throws Exception {
         testMultiInsert(10000, 4);
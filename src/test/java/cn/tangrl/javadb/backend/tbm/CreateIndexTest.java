@@ -0,0 +1,91 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * 在已有数据的表上建立索引的测试类
+ */
+public class CreateIndexTest extends TableManagerTestBase {
+    public CreateIndexTest() {
+        super("/tmp/TestCreateIndex");
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        open(true);
+        long xid = begin();
+        exec(xid, "create table test_table id int32, value string (index id)");
+        for(int i = 0; i < 1000; i ++) {
+            exec(xid, "insert into test_table values " + i + " value_" + i);
+        }
+        tbm.commit(xid);
+        // 没有索引的字段可以 HOT 更新，版本链上这个字段的值各不相同
+        for(int i = 0; i < 5; i ++) {
+            xid = begin();
+            exec(xid, "update test_table set value = hot_" + i + " where id = 3");
+            tbm.commit(xid);
+        }
+        // 没有索引时顺序扫描，HOT 版本链上只有可见的版本被读出
+        assert exec("select * from test_table where value = value_5").equals("[5, value_5]\n");
+        assert exec("select * from test_table where value = hot_4").equals("[3, hot_4]\n");
+        assert exec("select * from test_table where value = hot_3").isEmpty();
+
+        // 建立索引要等待此刻活跃的其他事务结束
+        long old = begin();
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread builder = new Thread(() -> {
+            try {
+                long x = begin();
+                exec(x, "create index idx_value on test_table(value)");
+                tbm.commit(x);
+                done.set(true);
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        builder.start();
+        Thread.sleep(200);
+        assert !done.get();
+        // 建立期间的写入被记录下来，之后应用到新的索引上
+        for(int i = 1000; i < 1200; i ++) {
+            exec(old, "insert into test_table values " + i + " value_" + i);
+        }
+        tbm.commit(old);
+        for(int i = 1200; i < 1400; i ++) {
+            xid = begin();
+            exec(xid, "insert into test_table values " + i + " value_" + i);
+            tbm.commit(xid);
+        }
+        builder.join();
+        assert done.get();
+
+        for(int i = 0; i < 1400; i += 7) {
+            String res = exec("select * from test_table where value = value_" + i);
+            assert res.equals(i == 3 ? "" : "[" + i + ", value_" + i + "]\n");
+        }
+        assert exec("select * from test_table where value = hot_4").equals("[3, hot_4]\n");
+        assert exec("select * from test_table where value = hot_3").isEmpty();
+        // 修改新索引字段的更新不再是 HOT 更新
+        xid = begin();
+        exec(xid, "update test_table set value = moved where id = 10");
+        tbm.commit(xid);
+        assert exec("select * from test_table where value = moved").equals("[10, moved]\n");
+        try {
+            xid = begin();
+            exec(xid, "create index idx_value2 on test_table(value)");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated index!");
+            tbm.abort(xid);
+        }
+        close(false);
+
+        // IndexUid 已写回字段记录，重新打开后索引仍然可用
+        open(false);
+        assert exec("select * from test_table where value = value_1300").equals("[1300, value_1300]\n");
+        assert exec("select * from test_table where value = hot_4").equals("[3, hot_4]\n");
+        close(true);
+    }
+}
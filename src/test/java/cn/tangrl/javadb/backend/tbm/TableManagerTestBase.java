@@ -0,0 +1,125 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.io.File;
+import java.util.function.UnaryOperator;
+
+import cn.tangrl.javadb.backend.dm.DataManager;
+import cn.tangrl.javadb.backend.parser.Parser;
+import cn.tangrl.javadb.backend.parser.statement.Begin;
+import cn.tangrl.javadb.backend.parser.statement.Create;
+import cn.tangrl.javadb.backend.parser.statement.CreateIndex;
+import cn.tangrl.javadb.backend.parser.statement.Delete;
+import cn.tangrl.javadb.backend.parser.statement.Insert;
+import cn.tangrl.javadb.backend.parser.statement.Select;
+import cn.tangrl.javadb.backend.parser.statement.Update;
+import cn.tangrl.javadb.backend.tm.TransactionManager;
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * tbm 包中测试类的公共部分：在 path 上创建或打开 TM、DM、VM 和 TBM，关闭时删除数据文件，开始事务和执行语句
+ */
+abstract class TableManagerTestBase {
+    static final long MEM = (1 << 20) * 64;
+
+    final String path;
+
+    TransactionManager tm;
+    DataManager dm;
+    VersionManager vm;
+    TableManager tbm;
+
+    TableManagerTestBase(String path) {
+        this.path = path;
+    }
+
+    void open() throws Exception {
+        open(true);
+    }
+
+    void open(boolean create) throws Exception {
+        open(create, vm -> vm);
+    }
+
+    /**
+     * 创建或打开数据库，wrap 可以替换 TBM 使用的 VM，例如记下对 VM 的调用
+     * @param create
+     * @param wrap
+     * @throws Exception
+     */
+    void open(boolean create, UnaryOperator<VersionManager> wrap) throws Exception {
+        tm = create ? TransactionManager.create(path) : TransactionManager.open(path);
+        dm = create ? DataManager.create(path, MEM, tm) : DataManager.open(path, MEM, tm);
+        vm = wrap.apply(VersionManager.newVersionManager(tm, dm));
+        tbm = create ? TableManager.create(path, vm, dm) : TableManager.open(path, vm, dm);
+    }
+
+    void close() {
+        close(true);
+    }
+
+    /**
+     * 关闭数据库，delete 为 false 时保留数据文件，之后可以用 open(false) 重新打开
+     * @param delete
+     */
+    void close(boolean delete) {
+        dm.close();
+        tm.close();
+        if(!delete) {
+            return;
+        }
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    long begin() throws Exception {
+        return begin(false);
+    }
+
+    long begin(boolean repeatableRead) throws Exception {
+        Begin begin = (Begin)Parser.Parse((repeatableRead ? "begin isolation level repeatable read" : "begin").getBytes());
+        return tbm.begin(begin).xid;
+    }
+
+    /**
+     * 在事务 xid 中执行一条语句，返回结果的字符串
+     * @param xid
+     * @param stat
+     * @return
+     * @throws Exception
+     */
+    String exec(long xid, String stat) throws Exception {
+        Object res = Parser.Parse(stat.getBytes());
+        byte[] out;
+        if(res instanceof Create) {
+            out = tbm.create(xid, (Create)res);
+        } else if(res instanceof CreateIndex) {
+            out = tbm.createIndex(xid, (CreateIndex)res);
+        } else if(res instanceof Insert) {
+            out = tbm.insert(xid, (Insert)res);
+        } else if(res instanceof Update) {
+            out = tbm.update(xid, (Update)res);
+        } else if(res instanceof Delete) {
+            out = tbm.delete(xid, (Delete)res);
+        } else {
+            out = tbm.read(xid, (Select)res);
+        }
+        return new String(out);
+    }
+
+    /**
+     * 在单独的事务中执行一条语句，结束后提交
+     * @param stat
+     * @return
+     * @throws Exception
+     */
+    String exec(String stat) throws Exception {
+        long xid = begin();
+        try {
+            return exec(xid, stat);
+        } finally {
+            tbm.commit(xid);
+        }
+    }
+}
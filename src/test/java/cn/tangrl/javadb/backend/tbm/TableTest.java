@@ -0,0 +1,607 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+
+import cn.tangrl.javadb.backend.parser.Parser;
+import cn.tangrl.javadb.backend.parser.statement.Delete;
+import cn.tangrl.javadb.backend.parser.statement.Insert;
+import cn.tangrl.javadb.backend.parser.statement.Select;
+
+/**
+ * 表的查询的测试类
+ */
+public class TableTest extends TableManagerTestBase {
+    public TableTest() {
+        super("/tmp/TestTable");
+    }
+
+    @Test
+    public void testKeyOrder() throws Exception {
+        open();
+        exec("create table t id int64, name string (index id name)");
+        for(int i = -50; i < 50; i ++) {
+            exec("insert into t values " + i + " name_" + (char)('a' + (i+50)%26) + "_" + (i+50));
+        }
+        // 负数的 key 也能被范围查找和全表读取找到
+        assert exec("select * from t where id < -45").equals("[-50, name_a_0]\n[-49, name_b_1]\n[-48, name_c_2]\n[-47, name_d_3]\n[-46, name_e_4]\n");
+        assert exec("select * from t where id > -3 and id < 1").equals("[-2, name_w_48]\n[-1, name_x_49]\n[0, name_y_50]\n");
+        assert ((String)exec("select * from t")).split("\n").length == 100;
+        assert exec("select * from t where id < " + Long.MIN_VALUE).equals("");
+        assert exec("select * from t where id > " + Long.MAX_VALUE).equals("");
+        // 字符串按字典序范围查找，结果按字符串的顺序返回
+        assert exec("select * from t where name < name_a_5").equals("[-50, name_a_0]\n[-24, name_a_26]\n");
+        assert exec("select * from t where name > name_z_7").equals("[27, name_z_77]\n");
+        // 前 8 个字节相同、key 相同的字符串，按值精确比较
+        assert exec("select * from t where name = name_c_2").equals("[-48, name_c_2]\n");
+        assert exec("select * from t where name = name_c_3").equals("");
+        assert exec("update t set id = 1000 where name = name_c_28").equals("update 1");
+        assert exec("select * from t where id > 999").equals("[1000, name_c_28]\n");
+        assert exec("delete from t where name = name_c_54").equals("delete 1");
+        assert exec("select * from t where name > name_c_3 and name < name_d_").equals("[30, name_c_80]\n");
+        close();
+    }
+
+    /**
+     * 查询结果的行，检查没有重复的行
+     */
+    private Set<String> rows(Object res) {
+        String[] lines = ((String)res).isEmpty() ? new String[0] : ((String)res).split("\n");
+        Set<String> set = new HashSet<>(Arrays.asList(lines));
+        assert set.size() == lines.length;
+        return set;
+    }
+
+    private static String city(int i) {
+        return i < 200 ? "c" + i%5 : "metropolis_" + (char)('a' + i%2);
+    }
+
+    private static int age(int i) {
+        return i < 200 ? i%40 - 10 : i%3;
+    }
+
+    /**
+     * 满足条件的行：city 为 null 时不限制 city，ageOp 为 0 时不限制 age
+     */
+    private static Set<String> expect(int n, String city, char ageOp, int age) {
+        Set<String> set = new HashSet<>();
+        for(int i = 0; i < n; i ++) {
+            if(city != null && !city.equals(city(i))) continue;
+            int a = age(i);
+            if(ageOp == '=' && a != age || ageOp == '<' && a >= age || ageOp == '>' && a <= age) continue;
+            set.add("[" + i + ", " + city(i) + ", " + a + "]");
+        }
+        return set;
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        open();
+        exec("create table c id int64, city string, age int32 (index id)");
+        for(int i = 0; i < 210; i ++) {
+            exec("insert into c values " + i + " " + city(i) + " " + age(i));
+        }
+        // 没有索引时顺序扫描
+        assert rows(exec("select * from c where city = c1")).equals(expect(210, "c1", (char)0, 0));
+        assert exec("create index idx_city_age on c(city, age)").equals("create index idx_city_age");
+        // 第一列等值、第二列范围，条件的顺序不影响
+        assert rows(exec("select * from c where city = c1 and age > 20")).equals(expect(210, "c1", '>', 20));
+        assert rows(exec("select * from c where age < 0 and city = c2")).equals(expect(210, "c2", '<', 0));
+        assert rows(exec("select * from c where city = c3 and age = -7")).equals(expect(210, "c3", '=', -7));
+        // 只用第一列
+        assert rows(exec("select * from c where city = c4")).equals(expect(210, "c4", (char)0, 0));
+        Set<String> greater = expect(210, "metropolis_a", (char)0, 0);
+        greater.addAll(expect(210, "metropolis_b", (char)0, 0));
+        assert rows(exec("select * from c where city > c4")).equals(greater);
+        // 第一列被截断时 key 相同，按值精确比较
+        assert rows(exec("select * from c where city = metropolis_b and age = 2")).equals(expect(210, "metropolis_b", '=', 2));
+        // 第二列不能单独使用组合索引，顺序扫描
+        assert rows(exec("select * from c where age = 5")).equals(expect(210, null, '=', 5));
+        // 修改组合索引中字段的更新不是 HOT 更新，索引指向新版本
+        assert exec("update c set age = 99 where id = 6").equals("update 1");
+        assert exec("select * from c where city = c1 and age > 98").equals("[6, c1, 99]\n");
+        assert exec("select * from c where city = c1 and age = -4").equals("[46, c1, -4]\n[86, c1, -4]\n[126, c1, -4]\n[166, c1, -4]\n");
+        assert exec("delete from c where city = c0 and age > 25").equals("delete " + expect(210, "c0", '>', 25).size());
+        assert exec("select * from c where city = c0 and age > 25").equals("");
+        try {
+            exec("create index idx_city_age on c(age, id)");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated index!");
+        }
+        close(false);
+
+        // 组合索引的定义已写入，重新打开后仍然可用
+        open(false);
+        assert exec("select * from c where city = c1 and age > 98").equals("[6, c1, 99]\n");
+        assert rows(exec("select * from c where age < 0 and city = c2")).equals(expect(210, "c2", '<', 0));
+        exec("insert into c values 300 c2 -100");
+        assert exec("select * from c where city = c2 and age < -50").equals("[300, c2, -100]\n");
+        close();
+    }
+
+    @Test
+    public void testCompositeFullKey() throws Exception {
+        open();
+        exec("create table f id int64, g int32, h int32 (index g) (hash h)");
+        for(int i = 0; i < 30; i ++) {
+            exec("insert into f values " + (i % 3) + " " + i + " " + (i % 7));
+        }
+        exec("create index idx_id_g on f(id, g)");
+        exec("create index idx_id_h on f(id, h)");
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        Field g = tb.getField("g"), h = tb.getField("h");
+        // int64 的第一列占满了 key，第二列有B+树索引或哈希索引时使用它们，而不是组合索引
+        long xid = begin();
+        Select select = (Select)Parser.Parse("select * from f where id = 1 and g > 20".getBytes());
+        assert tb.parseWhere(xid, select.where, null).get(0).orderedBy(g);
+        select = (Select)Parser.Parse("select * from f where id = 1 and h = 3".getBytes());
+        assert tb.parseWhere(xid, select.where, null).get(0).orderedBy(h);
+        tbm.commit(xid);
+        assert exec("select * from f where id = 1 and g > 20").equals("[1, 22, 1]\n[1, 25, 4]\n[1, 28, 0]\n");
+        assert exec("select * from f where id = 1 and h = 3").equals("[1, 10, 3]\n");
+        close();
+    }
+
+    @Test
+    public void testUnique() throws Exception {
+        open();
+        exec("create table u id int64, email string (index id) (unique email)");
+        exec("insert into u values 1 a_x");
+        // key 相同（前 8 个字节相同）的不同的值不冲突
+        exec("insert into u values 2 someone_1_x");
+        exec("insert into u values 3 someone_2_x");
+        try {
+            exec("insert into u values 4 someone_1_x");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated entry!");
+        }
+        // 冲突的事务被回滚，写入的记录不可见
+        assert exec("select * from u where id = 4").equals("");
+        assert exec("select * from u where email = someone_1_x").equals("[2, someone_1_x]\n");
+        // 同一个事务中先删除再插入相同的值
+        long xid = begin();
+        tbm.delete(xid, (Delete)Parser.Parse("delete from u where id = 1".getBytes()));
+        tbm.insert(xid, (Insert)Parser.Parse("insert into u values 5 a_x".getBytes()));
+        tbm.commit(xid);
+        assert exec("select * from u where email = a_x").equals("[5, a_x]\n");
+        // 未提交的写入也算冲突，不等待它结束
+        xid = begin();
+        tbm.insert(xid, (Insert)Parser.Parse("insert into u values 6 b_x".getBytes()));
+        try {
+            exec("insert into u values 7 b_x");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated entry!");
+        }
+        tbm.abort(xid);
+        exec("insert into u values 7 b_x");
+        assert exec("select * from u where email = b_x").equals("[7, b_x]\n");
+        // 更新成已有的值冲突；更新成相同的值是 HOT 更新；更新后旧的值可以再使用
+        try {
+            exec("update u set email = someone_2_x where id = 2");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated entry!");
+        }
+        assert exec("update u set email = someone_1_x where id = 2").equals("update 1");
+        assert exec("update u set email = someone_9_x where id = 2").equals("update 1");
+        exec("insert into u values 8 someone_1_x");
+        assert rows(exec("select * from u where email > someone_")).equals(new HashSet<>(Arrays.asList(
+            "[2, someone_9_x]", "[3, someone_2_x]", "[8, someone_1_x]")));
+        close();
+    }
+
+    @Test
+    public void testHash() throws Exception {
+        open();
+        exec("create table h id int64, name string (index name) (hash id)");
+        for(int i = 0; i < 40; i ++) {
+            exec("insert into h values " + i + " n" + (i % 5));
+        }
+        assert exec("select * from h where id = 12").equals("[12, n2]\n");
+        assert exec("select * from h where id = 12 and name = n3").equals("");
+        assert exec("select * from h where name = n3 and id = 13").equals("[13, n3]\n");
+        // 哈希索引不能按范围查找，顺序扫描；也不能再建立B+树索引
+        assert rows(exec("select * from h where id > 37")).equals(rows("[38, n3]\n[39, n4]\n"));
+        try {
+            exec("create index idx_id on h(id)");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Duplicated index!");
+        }
+        // 修改 id 的更新要插入哈希索引
+        assert exec("update h set id = 100 where id = 12").equals("update 1");
+        assert exec("select * from h where id = 12").equals("");
+        assert exec("delete from h where id = 13").equals("delete 1");
+        close(false);
+        open(false);
+        assert exec("select * from h where id = 100").equals("[100, n2]\n");
+        assert exec("select * from h where id = 13").equals("");
+        assert exec("select * from h where id = 39").equals("[39, n4]\n");
+        close();
+    }
+
+    @Test
+    public void testBloom() throws Exception {
+        open();
+        exec("create table b id int64, name string (index name) (bloom id)");
+        for(int i = 0; i < 40; i ++) {
+            exec("insert into b values " + i + " n" + (i % 5));
+        }
+        assert exec("select * from b where id = 12").equals("[12, n2]\n");
+        assert exec("select * from b where id = 1000").equals("");
+        assert exec("select * from b where id > 37").equals("[38, n3]\n[39, n4]\n");
+        assert exec("update b set id = 1000 where id = 12").equals("update 1");
+        assert exec("select * from b where id = 1000").equals("[1000, n2]\n");
+
+        // vacuum 删除索引项之后重新建立过滤器
+        for(int i = 0; i < 30; i ++) {
+            exec("delete from b where id = " + i);
+        }
+        Field id = ((TableManagerImpl)tbm).tables().get(0).fields.get(0);
+        assert id.toString().equals("(id, int64, Index, Bloom)");
+        new Vacuum(tbm).runOnce();
+        assert !id.filterNeedsRebuild();
+        assert exec("select * from b where id = 35").equals("[35, n0]\n");
+        assert exec("select * from b where id = 5").equals("");
+
+        // 重新打开时由B+树重新建立过滤器
+        close(false);
+        open(false);
+        assert exec("select * from b where id = 1000").equals("[1000, n2]\n");
+        assert exec("select * from b where id = 39").equals("[39, n4]\n");
+        try {
+            exec("create table c id int64 (index id) (hash id) (bloom id)");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Invalid command!");
+        }
+        close();
+    }
+
+    @Test
+    public void testBloomRebuild() throws Exception {
+        open();
+        IndexTree tree = new IndexTree(dm);
+        tree.create();
+        for(int i = 0; i < 100; i ++) {
+            tree.insert(i, i+1);
+        }
+        tree.enableFilter();
+        for(int i = 100; i < 200; i ++) {
+            tree.insert(i, i+1);
+        }
+        for(int i = 0; i < 200; i ++) {
+            assert tree.mightContain(i);
+            assert tree.search(i, i).size() == 1;
+        }
+        for(int i = 0; i < 150; i ++) {
+            assert tree.delete(i, i+1);
+        }
+        assert tree.filterNeedsRebuild();
+        // 重新建立期间并发插入的 key 不能丢失
+        Thread t = new Thread(() -> {
+            try {
+                for(int i = 1000; i < 1200; i ++) {
+                    tree.insert(i, i+1);
+                }
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        tree.rebuildFilter();
+        t.join();
+        assert !tree.filterNeedsRebuild();
+        int stale = 0;
+        for(int i = 0; i < 150; i ++) {
+            if(tree.mightContain(i)) stale ++;
+        }
+        assert stale < 10;
+        for(int i = 150; i < 200; i ++) {
+            assert tree.mightContain(i);
+        }
+        for(int i = 1000; i < 1200; i ++) {
+            assert tree.mightContain(i);
+            assert tree.scan(i, i).next();
+        }
+        assert !tree.scan(5, 5).next();
+        close();
+    }
+
+    @Test
+    public void testHeapScan() throws Exception {
+        open();
+        exec("create table s id int32, pad string, v int64 (index)");
+        // 每条记录约 200 字节，记录分布在多个页面上
+        StringBuilder pad = new StringBuilder();
+        for(int i = 0; i < 200; i ++) {
+            pad.append('p');
+        }
+        int lim = 250;
+        for(int i = 0; i < lim; i ++) {
+            exec("insert into s values " + i + " " + pad + " " + (i % 10));
+        }
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        assert dm.getPages(tb.uid).size() > HeapScan.READ_AHEAD;
+        // 没有条件时按页面顺序读出所有记录
+        String[] lines = ((String)exec("select * from s")).split("\n");
+        assert lines.length == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert lines[i].equals("[" + i + ", " + pad + ", " + (i % 10) + "]");
+        }
+        assert rows(exec("select * from s where v = 3 and id < 30")).size() == 3;
+        assert rows(exec("select * from s where id > 245 or v = 0")).size() == 4 + 25;
+
+        // 更新和删除也通过顺序扫描找到记录，HOT 版本链上只读出可见的版本
+        assert exec("update s set v = 100 where id = 7").equals("update 1");
+        assert exec("update s set v = 101 where id = 7").equals("update 1");
+        assert exec("select * from s where id = 7").equals("[7, " + pad + ", 101]\n");
+        assert exec("delete from s where v = 9").equals("delete 25");
+        assert rows(exec("select * from s")).size() == lim - 25;
+
+        // 其他事务未提交的写入不可见
+        long writer = begin();
+        tbm.insert(writer, (Insert)Parser.Parse("insert into s values 1000 x 1".getBytes()));
+        tbm.delete(writer, (Delete)Parser.Parse("delete from s where id = 0".getBytes()));
+        assert exec("select * from s where id = 1000").equals("");
+        assert rows(exec("select * from s where id = 0")).size() == 1;
+        tbm.commit(writer);
+        assert exec("select * from s where id = 1000").equals("[1000, x, 1]\n");
+        assert exec("select * from s where id = 0").equals("");
+
+        // 或的一个条件有索引、另一个没有时只用一次顺序扫描，结果没有重复
+        exec("create index idx_id on s(id)");
+        assert rows(exec("select * from s where id < 5 or v = 1")).size() == 5 - 1 + 25;
+        close();
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        open();
+        exec("create table s id int32, pad string, v int64 (index v)");
+        StringBuilder pad = new StringBuilder();
+        for(int i = 0; i < 200; i ++) {
+            pad.append('p');
+        }
+        int lim = 250;
+        for(int i = 0; i < lim; i ++) {
+            exec("insert into s values " + i + " " + pad + " " + (i % 10));
+        }
+        // limit 满足后扫描提前结束，顺序扫描按页面顺序返回
+        assert exec("select * from s limit 2").equals("[0, " + pad + ", 0]\n[1, " + pad + ", 1]\n");
+        assert exec("select * from s limit 0").equals("");
+        assert exec("select * from s where id > 100 and id < 110 limit 3").equals(
+            "[101, " + pad + ", 1]\n[102, " + pad + ", 2]\n[103, " + pad + ", 3]\n");
+        assert rows(exec("select * from s where v = 3 limit 5")).size() == 5;
+        assert rows(exec("select * from s where v = 3 or v = 4 limit 1000")).size() == 50;
+
+        // 结果按批次拉取，拼接起来与一次读出的结果相同
+        long xid = begin();
+        ResultSet rs = tbm.select(xid, (Select)Parser.Parse("select * from s where v < 5".getBytes()));
+        StringBuilder sb = new StringBuilder();
+        int batches = 0;
+        rs.open();
+        try {
+            byte[] batch;
+            while((batch = rs.next(1024)) != null) {
+                assert batch.length < 1024 + pad.length() + 20;
+                sb.append(new String(batch));
+                batches ++;
+            }
+        } finally {
+            rs.close();
+        }
+        tbm.commit(xid);
+        assert batches > 1;
+        assert sb.toString().equals(exec("select * from s where v < 5"));
+        assert rows(sb.toString()).size() == lim / 2;
+        close();
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        open();
+        exec("create table w a int32, b string, c int64, d string, e int32 (index a)");
+        for(int i = 0; i < 50; i ++) {
+            exec("insert into w values " + i + " b" + i + " " + (i * 10L) + " d" + i + " " + (i % 3));
+        }
+        // 只输出列出的字段，按语句中的顺序
+        assert exec("select d, a from w where a = 7").equals("[d7, 7]\n");
+        assert exec("select c from w where a > 2 and a < 5").equals("[30]\n[40]\n");
+        assert exec("select a, a from w where a = 1").equals("[1, 1]\n");
+        // 条件中的字段不输出时也用于判断
+        assert rows(exec("select b from w where e = 2 and d = d8")).equals(new HashSet<>(Arrays.asList("[b8]")));
+        assert rows(exec("select e from w where not b = b1 and a < 3")).equals(new HashSet<>(Arrays.asList("[0]", "[2]")));
+        // 索引覆盖输出的字段时只读索引，结果相同
+        assert ((String)exec("select a from w")).split("\n").length == 50;
+        assert exec("select a from w where a < 2").equals("[0]\n[1]\n");
+        assert exec("select * from w where a = 49").equals("[49, b49, 490, d49, 1]\n");
+        try {
+            exec("select x from w");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Field not found!");
+        }
+        close();
+    }
+
+    @Test
+    public void testRowLayout() throws Exception {
+        open();
+        exec("create table r s1 string, a int32, s2 string, b int64, s3 string (index a)");
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        RowLayout layout = tb.layout;
+        // 空位图 1 字节，定长字段 4 + 8 字节，三个变长字段的结束位置各 4 字节
+        assert layout.varStart == 1 + 4 + 8 + 3*4;
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("s1", "hello");
+        entry.put("a", -7);
+        entry.put("s2", "");
+        entry.put("b", Long.MIN_VALUE);
+        entry.put("s3", "world!");
+        byte[] raw = layout.encode(entry);
+        assert raw.length == layout.varStart + 5 + 6;
+        RowReader reader = new RowReader(layout);
+        reader.reset(raw);
+        // 任意字段直接按偏移读取
+        assert reader.getString(4).equals("world!");
+        assert reader.getLong(3) == Long.MIN_VALUE;
+        assert reader.getString(2).equals("");
+        assert reader.getInt(1) == -7;
+        assert reader.getString(0).equals("hello");
+        assert reader.entry(layout.all).equals(entry);
+        assert reader.entry(layout.columns(Arrays.asList(tb.getField("s3"), tb.getField("a"))))
+            .equals(reader.entry(new int[]{1, 4}));
+        // null 的字段只在位图中标记
+        entry.put("s2", null);
+        entry.put("b", null);
+        raw = layout.encode(entry);
+        reader.reset(raw);
+        assert reader.isNull(2) && reader.isNull(3) && !reader.isNull(4);
+        assert reader.get(2) == null && reader.get(3) == null;
+        assert reader.getString(4).equals("world!");
+        assert reader.entry(layout.all).equals(entry);
+
+        // 与表的读写一致
+        exec("insert into r values x 1 yy 2 zzz");
+        assert exec("select s3, b, s1 from r where a = 1").equals("[zzz, 2, x]\n");
+        assert exec("update r set s2 = longer_value where a = 1").equals("update 1");
+        assert exec("select * from r").equals("[x, 1, longer_value, 2, zzz]\n");
+        close();
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        open();
+        exec("create table g id int32, name string, age int64 (index id name)");
+        assert exec("select count(*), sum(age), min(id), max(name), avg(age) from g").equals("[0, 0, null, null, null]\n");
+        int n = 100;
+        for(int i = 0; i < n; i ++) {
+            exec("insert into g values " + i + " name_prefix_" + (1000 + i) + " " + (i % 7));
+        }
+        long sum = 0;
+        for(int i = 0; i < n; i ++) {
+            sum += i % 7;
+        }
+        assert exec("select count(*) from g").equals("[" + n + "]\n");
+        assert exec("select count(*), count(id) from g where age = 3").equals("[14, 14]\n");
+        assert exec("select sum(age), avg(age) from g").equals("[" + sum + ", " + (double)sum / n + "]\n");
+        assert exec("select min(age), max(age) from g where id > 10").equals("[0, 6]\n");
+        // 索引字段上的 min 和 max，字符串的 key 只有前 8 个字节，再按值比较
+        assert exec("select min(id), max(id), min(name), max(name) from g").equals("[0, 99, name_prefix_1000, name_prefix_1099]\n");
+        // 删除和更新后索引中的旧项无效
+        assert exec("delete from g where id = 99 or id = 0").equals("delete 2");
+        assert exec("update g set id = 500 where id = 1").equals("update 1");
+        assert exec("select min(id), max(id) from g").equals("[2, 500]\n");
+        assert exec("update g set id = -5 where id = 500").equals("update 1");
+        assert exec("select min(id), max(id) from g").equals("[-5, 98]\n");
+        // 其他事务未提交的写入不可见
+        long writer = begin();
+        tbm.insert(writer, (Insert)Parser.Parse("insert into g values 1000 x 1".getBytes()));
+        assert exec("select max(id), count(*) from g").equals("[98, 98]\n");
+        tbm.commit(writer);
+        assert exec("select max(id), count(*) from g").equals("[1000, 99]\n");
+        try {
+            exec("select sum(name) from g");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Invalid field type!");
+        }
+        close();
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        open();
+        exec("create table o id int32, name string, score int64 (index id)");
+        int n = 300;
+        // 插入顺序与 id 的顺序不同
+        for(int i = 0; i < n; i ++) {
+            int id = (i * 7) % n;
+            exec("insert into o values " + id + " name_" + (1000 + (id * 13) % n) + " " + (id % 50));
+        }
+        // 索引字段升序：按索引的顺序返回，limit 满足后结束
+        assert exec("select id from o order by id limit 3").equals("[0]\n[1]\n[2]\n");
+        assert exec("select id from o order by id asc limit 2 offset 10").equals("[10]\n[11]\n");
+        assert exec("select id from o where id > 100 order by id limit 2").equals("[101]\n[102]\n");
+        // 降序和非索引字段：top-k 堆
+        assert exec("select id from o order by id desc limit 3").equals("[299]\n[298]\n[297]\n");
+        assert exec("select id from o order by id desc limit 2 offset 297").equals("[2]\n[1]\n");
+        assert exec("select name from o order by name limit 2").equals("[name_1000]\n[name_1001]\n");
+        assert exec("select name, id from o where score = 7 order by name desc limit 1").equals("[name_1291, 207]\n");
+        // 没有 limit 时排序全部记录，排序字段可以不在输出中
+        String[] sorted = ((String)exec("select score, id from o order by score")).split("\n");
+        assert sorted.length == n;
+        for(int i = 0; i < n; i ++) {
+            assert sorted[i].startsWith("[" + i * 50 / n + ", ");
+        }
+        assert rows(exec("select id from o order by score")).equals(rows(exec("select id from o")));
+        assert exec("select score from o order by score").equals(exec("select score from o order by score limit 1000"));
+        assert exec("select id from o order by id limit 0").equals("");
+        assert exec("select id from o order by id limit 5 offset 1000").equals("");
+        // 更新后索引中的旧项无效，按索引的顺序返回的仍然是当前的值
+        exec("update o set id = 1000 where id = 0");
+        exec("delete from o where id = 1");
+        assert exec("select id from o order by id limit 2").equals("[2]\n[3]\n");
+        assert exec("select id from o order by id desc limit 1").equals("[1000]\n");
+        // 聚合只有一条结果，limit 和 offset 作用在结果上
+        assert exec("select count(*) from o order by id limit 1").equals("[" + (n - 1) + "]\n");
+        assert exec("select count(*) from o limit 1 offset 1").equals("");
+        try {
+            exec("select * from o order by nothing limit 1");
+            assert false;
+        } catch(Exception e) {
+            assert e.getMessage().equals("Field not found!");
+        }
+        close();
+    }
+
+    @Test
+    public void testPredicate() throws Exception {
+        open();
+        exec("create table c id int64, city string, age int32 (index id)");
+        int n = 210;
+        for(int i = 0; i < n; i ++) {
+            exec("insert into c values " + i + " " + city(i) + " " + age(i));
+        }
+        // 任意字段上的比较，not 和括号
+        assert rows(exec("select * from c where not city = c1 and not (age < 0 or age > 20) and id < 200"))
+            .equals(filter(n, i -> i < 200 && !city(i).equals("c1") && age(i) >= 0 && age(i) <= 20));
+        assert rows(exec("select * from c where (city = c2 or city = c3) and (age = 5 or age = -5)"))
+            .equals(filter(n, i -> (city(i).equals("c2") || city(i).equals("c3")) && Math.abs(age(i)) == 5));
+        assert rows(exec("select * from c where not (not id > 100 and not id < 5)"))
+            .equals(filter(n, i -> i > 100 || i < 5));
+        // 或的子条件有重叠时每条记录只出现一次
+        assert rows(exec("select * from c where id < 10 or id < 20 or (id > 200 and age = 1)"))
+            .equals(filter(n, i -> i < 20 || i > 200 && age(i) == 1));
+        // 索引缩小范围，其余的条件在读出记录后判断
+        assert rows(exec("select * from c where id > 50 and id < 60 and not city = c0 and age > 0"))
+            .equals(filter(n, i -> i > 50 && i < 60 && !city(i).equals("c0") && age(i) > 0));
+        assert exec("select * from c where id = 7 and id = 8").equals("");
+        // 更新和删除使用相同的条件
+        assert exec("update c set age = 100 where (id < 3 or id > 207) and not city = c1").equals("update 4");
+        assert rows(exec("select * from c where age = 100")).size() == 4;
+        assert exec("delete from c where id < 3 or id = 5 or city = metropolis_a or age = 100").equals("delete " + (4 + 5 + 1));
+        assert rows(exec("select * from c")).equals(filter(n, i -> !(i < 3 || i == 5 || i >= 200 && i % 2 == 0 || i == 209)));
+        close();
+    }
+
+    private static Set<String> filter(int n, IntPredicate p) {
+        Set<String> set = new HashSet<>();
+        for(int i = 0; i < n; i ++) {
+            if(p.test(i)) {
+                set.add("[" + i + ", " + city(i) + ", " + age(i) + "]");
+            }
+        }
+        return set;
+    }
+}
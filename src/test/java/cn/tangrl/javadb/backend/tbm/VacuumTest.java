@@ -0,0 +1,200 @@
+package cn.tangrl.javadb.backend.tbm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import cn.tangrl.javadb.backend.vm.VersionManager;
+
+/**
+ * Vacuum测试类
+ */
+public class VacuumTest extends TableManagerTestBase {
+    public VacuumTest() {
+        super("/tmp/TestVacuum");
+    }
+
+    private int count(long xid, String stat) throws Exception {
+        String res = exec(xid, stat);
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+
+    private void insert(int from, int to) throws Exception {
+        long xid = begin();
+        for(int i = from; i < to; i ++) {
+            exec(xid, "insert into test_table values " + i + " value_" + i);
+        }
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        open();
+        long xid = begin();
+        exec(xid, "create table test_table id int32, value string (index id)");
+        tbm.commit(xid);
+        insert(0, 1000);
+
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        int pages = dm.getPages(tb.uid).size();
+
+        // 可重复读事务在删除前开始，vacuum 不能回收它还能看到的版本
+        long reader = begin(true);
+        xid = begin();
+        exec(xid, "delete from test_table where id > 99");
+        tbm.commit(xid);
+
+        Vacuum vacuum = new Vacuum(tbm);
+        vacuum.runOnce();
+        vacuum.runOnce();
+        assert count(reader, "select * from test_table where id > 99") == 900;
+        tbm.commit(reader);
+
+        // reader 结束后，删除的版本被回收，索引项也一并删除
+        vacuum.runOnce();
+        vacuum.runOnce();
+        xid = begin();
+        assert count(xid, "select * from test_table where id > 99") == 0;
+        assert count(xid, "select * from test_table") == 100;
+        tbm.commit(xid);
+
+        // 回收的空间被之后的插入复用
+        insert(1000, 1900);
+        assert dm.getPages(tb.uid).size() == pages;
+        xid = begin();
+        assert count(xid, "select * from test_table") == 1000;
+        tbm.commit(xid);
+        close();
+    }
+
+    @Test
+    public void testHotUpdate() throws Exception {
+        open();
+        long xid = begin();
+        exec(xid, "create table test_table id int32, value string (index id)");
+        tbm.commit(xid);
+        insert(0, 10);
+
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        Field id = tb.fields.get(0);
+        int pages = dm.getPages(tb.uid).size();
+
+        // 只修改没有索引的字段，新版本链接在旧版本之后，索引不变
+        for(int i = 0; i < 20; i ++) {
+            xid = begin();
+            exec(xid, "update test_table set value = hot_" + i + " where id = 3");
+            tbm.commit(xid);
+        }
+        assert id.search(3, 3).size() == 1;
+        assert dm.getPages(tb.uid).size() == pages;
+        xid = begin();
+        String res = exec(xid, "select * from test_table where id = 3");
+        assert res.equals("[3, hot_19]\n");
+        tbm.commit(xid);
+
+        // vacuum 回收版本链上的旧版本，索引项转给最新的版本
+        Vacuum vacuum = new Vacuum(tbm);
+        vacuum.runOnce();
+        vacuum.runOnce();
+        assert id.search(3, 3).size() == 1;
+        xid = begin();
+        res = exec(xid, "select * from test_table where id = 3");
+        assert res.equals("[3, hot_19]\n");
+        assert count(xid, "select * from test_table") == 10;
+        tbm.commit(xid);
+
+        // 修改索引字段时仍是普通更新
+        xid = begin();
+        exec(xid, "update test_table set id = 100 where id = 3");
+        tbm.commit(xid);
+        assert id.search(3, 3).size() == 1;
+        assert id.search(100, 100).size() == 1;
+        xid = begin();
+        assert count(xid, "select * from test_table where id = 3") == 0;
+        assert count(xid, "select * from test_table where id = 100") == 1;
+        tbm.commit(xid);
+        close();
+    }
+
+    @Test
+    public void testIndexOnlyScan() throws Exception {
+        // 记下读取记录的次数
+        AtomicInteger reads = new AtomicInteger();
+        open(true, real -> (VersionManager)Proxy.newProxyInstance(VersionManager.class.getClassLoader(),
+            new Class<?>[]{VersionManager.class}, (proxy, method, args) -> {
+                if("read".equals(method.getName())) {
+                    reads.incrementAndGet();
+                }
+                try {
+                    return method.invoke(real, args);
+                } catch(InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }));
+        long xid = begin();
+        exec(xid, "create table c id int32, v int32 (index v)");
+        tbm.commit(xid);
+        xid = begin();
+        for(int i = 0; i < 30; i ++) {
+            exec(xid, "insert into c values " + i + " " + (i*2));
+        }
+        tbm.commit(xid);
+        xid = begin();
+        exec(xid, "create index idx_cover on c(id) include (v)");
+        tbm.commit(xid);
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+        int pgno = dm.getPages(tb.uid).get(0);
+
+        // vacuum 之前页面没有标记，需要读取记录
+        xid = begin();
+        assert count(xid, "select * from c where id > 10 and id < 20") == 9;
+        assert reads.get() > 0;
+        // 索引字段上的 min 和 max 只读取最小和最大的索引项对应的记录
+        reads.set(0);
+        assert exec(xid, "select min(v), max(v) from c").equals("[0, 58]\n");
+        assert reads.get() == 2;
+        tbm.commit(xid);
+        new Vacuum(tbm).runOnce();
+        assert vm.isAllVisible(pgno);
+
+        // 索引覆盖了所有字段，页面全部可见，不读取记录
+        reads.set(0);
+        xid = begin();
+        String res = exec(xid, "select * from c where id > 10 and id < 13");
+        assert res.equals("[11, 22]\n[12, 24]\n");
+        assert count(xid, "select * from c") == 30;
+        assert count(xid, "select * from c where id = 7 and v = 14") == 1;
+        assert exec(xid, "select min(v), max(v), count(*) from c").equals("[0, 58, 30]\n");
+        assert reads.get() == 0;
+        tbm.commit(xid);
+
+        // 未提交的删除清除页面的标记，其他事务仍能读到这条记录
+        long deleter = begin();
+        exec(deleter, "delete from c where id = 15");
+        assert !vm.isAllVisible(pgno);
+        xid = begin();
+        assert count(xid, "select * from c where id = 15") == 1;
+        assert reads.get() > 0;
+        tbm.commit(xid);
+        tbm.commit(deleter);
+        xid = begin();
+        assert count(xid, "select * from c where id = 15") == 0;
+        tbm.commit(xid);
+
+        // 死亡的版本回收之后才重新标记
+        Vacuum vacuum = new Vacuum(tbm);
+        vacuum.runOnce();
+        assert !vm.isAllVisible(pgno);
+        vacuum.runOnce();
+        vacuum.runOnce();
+        assert vm.isAllVisible(pgno);
+        reads.set(0);
+        xid = begin();
+        assert count(xid, "select * from c") == 29;
+        assert reads.get() == 0;
+        tbm.commit(xid);
+        close();
+    }
+}
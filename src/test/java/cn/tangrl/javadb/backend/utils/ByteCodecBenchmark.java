@@ -0,0 +1,98 @@
+package cn.tangrl.javadb.backend.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ByteCodec 的 JMH 基准测试
+ * 模拟在一个 B+ 树节点中顺序查找 key：旧的方式先 Arrays.copyOfRange 再用 ByteBuffer 解析，每个 key 分配两个对象；
+ * ByteCodec 原地解析，不分配对象。另外对比写入 key 的两种方式。
+ * 运行：mvn test-compile 后执行 main()，加 -prof gc 可以看到每次操作的分配量
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteCodecBenchmark {
+    /**
+     * 与 Node 相同的布局：11 字节头部，之后是 66 个 [Son][Key]
+     */
+    private static final int HEADER = 11;
+    private static final int ENTRIES = 66;
+
+    private byte[] node;
+    private long key;
+
+    @Setup
+    public void setup() {
+        node = new byte[HEADER + ENTRIES*16];
+        for(int i = 0; i < ENTRIES; i ++) {
+            ByteCodec.putLong(node, HEADER + i*16, i);
+            ByteCodec.putLong(node, HEADER + i*16 + 8, i*10L);
+        }
+        key = (ENTRIES - 1) * 10L;
+    }
+
+    @Benchmark
+    public long searchLegacy() {
+        for(int i = 0; i < ENTRIES; i ++) {
+            int offset = HEADER + i*16 + 8;
+            long ik = ByteBuffer.wrap(Arrays.copyOfRange(node, offset, offset+8)).getLong();
+            if(key <= ik) {
+                offset = HEADER + i*16;
+                return ByteBuffer.wrap(Arrays.copyOfRange(node, offset, offset+8)).getLong();
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public long searchCodec() {
+        for(int i = 0; i < ENTRIES; i ++) {
+            long ik = ByteCodec.getLong(node, HEADER + i*16 + 8);
+            if(key <= ik) {
+                return ByteCodec.getLong(node, HEADER + i*16);
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public byte[] writeLegacy() {
+        for(int i = 0; i < ENTRIES; i ++) {
+            byte[] raw = ByteBuffer.allocate(8).putLong(i*10L).array();
+            System.arraycopy(raw, 0, node, HEADER + i*16 + 8, 8);
+        }
+        return node;
+    }
+
+    @Benchmark
+    public byte[] writeCodec() {
+        for(int i = 0; i < ENTRIES; i ++) {
+            ByteCodec.putLong(node, HEADER + i*16 + 8, i*10L);
+        }
+        return node;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(ByteCodecBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
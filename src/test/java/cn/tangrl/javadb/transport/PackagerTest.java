@@ -10,11 +10,11 @@ import cn.tangrl.javadb.backend.utils.Panic;
 public class PackagerTest {
     @Test
     public void testPackager() throws Exception {
+        ServerSocket ss = new ServerSocket(10345);
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    ServerSocket ss = new ServerSocket(10345);
                     Socket socket = ss.accept();
                     Transporter t = new Transporter(socket);
                     Encoder e = new Encoder();